@@ -0,0 +1,135 @@
+package Benchmarks;
+
+import ImageHandler.BmpHeader;
+import ImageHandler.ImageHandler;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Run with: mvn -Pbenchmark test-compile exec:exec
+// JMH options are passed through the jmh.args property, e.g. to sweep over thread counts:
+// mvn -Pbenchmark test-compile exec:exec -Djmh.args="-prof gc -t 1,4,16 ImageHandlerBenchmark.getSubImage"
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageHandlerBenchmark {
+
+    private static final long warmPartCacheCapacity = 256L * 1024 * 1024;
+
+    @State(Scope.Benchmark)
+    public static class Storage {
+
+        @Param({"2000x2000", "20000x50000"})
+        public String imageSize;
+
+        @Param({"10x10", "500x500", "5000x5000"})
+        public String fragmentSize;
+
+        @Param({"512", "5000"})
+        public int partSize;
+
+        // Cold runs read every part from disk, warm runs are served by a filled part cache.
+        @Param({"cold", "warm"})
+        public String cache;
+
+        public Path workingDirectory;
+        public ImageHandler imageHandler;
+        public int imageId;
+        public int imageWidth;
+        public int imageHeight;
+        public int fragmentWidth;
+        public int fragmentHeight;
+        public byte[] fragment;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            imageWidth = parseWidth(imageSize);
+            imageHeight = parseHeight(imageSize);
+            fragmentWidth = parseWidth(fragmentSize);
+            fragmentHeight = parseHeight(fragmentSize);
+            fragment = createFragment(fragmentWidth, fragmentHeight);
+
+            workingDirectory = Files.createTempDirectory("chartographer-benchmark");
+            imageHandler = new ImageHandler(workingDirectory.toString(), partSize, partSize, "bmp",
+                    cache.equals("warm") ? warmPartCacheCapacity : 0);
+            imageId = imageHandler.createImage(imageWidth, imageHeight);
+
+            for (int y = 0; y < Math.min(imageHeight, 4 * fragmentHeight); y += fragmentHeight) {
+                for (int x = 0; x < Math.min(imageWidth, 4 * fragmentWidth); x += fragmentWidth) {
+                    imageHandler.drawImage(imageId, x, y, fragmentWidth, fragmentHeight,
+                            new ByteArrayInputStream(fragment));
+                }
+            }
+            if (cache.equals("warm")) {
+                imageHandler.writeSubImage(imageId, 0, 0, fragmentWidth, fragmentHeight,
+                        OutputStream.nullOutputStream());
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            imageHandler.close();
+            FileUtils.deleteDirectory(workingDirectory.toFile());
+        }
+
+        // Warm runs keep hitting the same region, cold runs pick a random one.
+        public int nextX() {
+            return cache.equals("warm") ? 0 : ThreadLocalRandom.current().nextInt(imageWidth);
+        }
+
+        public int nextY() {
+            return cache.equals("warm") ? 0 : ThreadLocalRandom.current().nextInt(imageHeight);
+        }
+    }
+
+    private static int parseWidth(String size) {
+        return Integer.parseInt(size.split("x")[0]);
+    }
+
+    private static int parseHeight(String size) {
+        return Integer.parseInt(size.split("x")[1]);
+    }
+
+    private static byte[] createFragment(int width, int height) {
+        BmpHeader header = new BmpHeader(width, height);
+        byte[] fragment = new byte[(int) header.getImageSize()];
+        System.arraycopy(header.toByteArray(), 0, fragment, 0, BmpHeader.SIZE);
+        for (int i = BmpHeader.SIZE; i < fragment.length; i++) {
+            fragment[i] = (byte) i;
+        }
+        return fragment;
+    }
+
+    @Benchmark
+    public int createImage(Storage storage) throws IOException {
+        return storage.imageHandler.createImage(storage.imageWidth, storage.imageHeight);
+    }
+
+    @Benchmark
+    public void createAndDeleteImage(Storage storage) throws IOException {
+        int imageId = storage.imageHandler.createImage(storage.imageWidth, storage.imageHeight);
+        storage.imageHandler.deleteImage(imageId);
+    }
+
+    @Benchmark
+    public void drawImage(Storage storage) throws IOException {
+        storage.imageHandler.drawImage(storage.imageId, storage.nextX(), storage.nextY(),
+                storage.fragmentWidth, storage.fragmentHeight, new ByteArrayInputStream(storage.fragment));
+    }
+
+    @Benchmark
+    public void getSubImage(Storage storage) throws IOException {
+        storage.imageHandler.writeSubImage(storage.imageId, storage.nextX(), storage.nextY(),
+                storage.fragmentWidth, storage.fragmentHeight, OutputStream.nullOutputStream());
+    }
+
+}
@@ -0,0 +1,282 @@
+package LoadTest;
+
+import App.Main;
+import ImageHandler.BmpHeader;
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.Histogram;
+import org.apache.commons.io.FileUtils;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+// Drives a mix of create/draw/get/delete requests against /chartas and reports latency
+// percentiles and throughput per endpoint. Every worker thread plays a scientist who pans a
+// viewport over one of the shared chartas and restores fragments that overlap what they see.
+//
+// Run with: mvn -Pload-test test-compile exec:exec -Dload.args="duration=60 scientists=32"
+// Without url=... the server is started in the same JVM on a temp directory, configured through
+// load.jvmArgs, e.g. -Dload.jvmArgs="-Dchartas.frontEnd=nio".
+public class LoadGenerator {
+
+    private static final String[] endpoints = {"create", "draw", "get", "delete"};
+    private static final long maxLatencyMicros = 60_000_000;
+
+    private final Map<String, String> config = new HashMap<>(Map.of(
+            "port", "8081",
+            "duration", "60",
+            "warmup", "10",
+            "scientists", "16",
+            "chartas", "4",
+            "charta", "20000x50000",
+            "viewport", "1000x800",
+            "fragment", "256x256",
+            "pan", "200",
+            "mix", "create:1,draw:20,get:78,delete:1"));
+
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private final Deque<Integer> scratchChartas = new ConcurrentLinkedDeque<>();
+    private final List<Integer> chartas = new ArrayList<>();
+    private final int[] weights = new int[endpoints.length];
+    private String baseUrl;
+    private int chartaWidth;
+    private int chartaHeight;
+    private int viewportWidth;
+    private int viewportHeight;
+    private int fragmentWidth;
+    private int fragmentHeight;
+    private int pan;
+
+    private static class EndpointStats {
+
+        public final Histogram latencies = new Histogram(maxLatencyMicros, 3);
+        public final Map<Integer, Long> statusCodes = new TreeMap<>();
+        public long errors = 0;
+
+        public void record(long latencyMicros, int statusCode) {
+            latencies.recordValue(min(latencyMicros, maxLatencyMicros));
+            statusCodes.merge(statusCode, 1L, Long::sum);
+        }
+
+        public void add(EndpointStats other) {
+            latencies.add(other.latencies);
+            other.statusCodes.forEach((code, count) -> statusCodes.merge(code, count, Long::sum));
+            errors += other.errors;
+        }
+    }
+
+    private static int parseWidth(String size) {
+        return Integer.parseInt(size.split("x")[0]);
+    }
+
+    private static int parseHeight(String size) {
+        return Integer.parseInt(size.split("x")[1]);
+    }
+
+    private static byte[] createFragment(int width, int height, int color) {
+        BmpHeader header = new BmpHeader(width, height);
+        byte[] fragment = new byte[(int) header.getImageSize()];
+        System.arraycopy(header.toByteArray(), 0, fragment, 0, BmpHeader.SIZE);
+        for (int row = 0; row < height; row++) {
+            int rowOffset = BmpHeader.SIZE + row * header.getRowStride();
+            for (int i = 0; i < width; i++) {
+                fragment[rowOffset + 3 * i] = (byte) color;
+                fragment[rowOffset + 3 * i + 1] = (byte) (color >> 8);
+                fragment[rowOffset + 3 * i + 2] = (byte) (color >> 16);
+            }
+        }
+        return fragment;
+    }
+
+    private int createCharta() throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/chartas/?width=" + chartaWidth +
+                "&height=" + chartaHeight)).POST(HttpRequest.BodyPublishers.noBody()).build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+        if (response.statusCode() != 201) {
+            throw new IOException("Failed to create a charta: " + response.statusCode());
+        }
+        return Integer.parseInt(response.body());
+    }
+
+    private String pickEndpoint(Random random) {
+        int value = random.nextInt(Arrays.stream(weights).sum());
+        for (int i = 0; i < endpoints.length; i++) {
+            value -= weights[i];
+            if (value < 0) {
+                return endpoints[i];
+            }
+        }
+        return endpoints[endpoints.length - 1];
+    }
+
+    private Map<String, EndpointStats> runScientist(int scientist, long warmupEnd, long end) {
+        Map<String, EndpointStats> stats = new HashMap<>();
+        for (String endpoint : endpoints) {
+            stats.put(endpoint, new EndpointStats());
+        }
+
+        Random random = ThreadLocalRandom.current();
+        int charta = chartas.get(scientist % chartas.size());
+        byte[][] fragments = new byte[4][];
+        for (int i = 0; i < fragments.length; i++) {
+            fragments[i] = createFragment(fragmentWidth, fragmentHeight, random.nextInt(1 << 24));
+        }
+        int viewportX = random.nextInt(max(1, chartaWidth - viewportWidth));
+        int viewportY = random.nextInt(max(1, chartaHeight - viewportHeight));
+
+        while (System.nanoTime() < end) {
+            String endpoint = pickEndpoint(random);
+            HttpRequest request;
+
+            switch (endpoint) {
+                case "create":
+                    request = HttpRequest.newBuilder(URI.create(baseUrl + "/chartas/?width=" + chartaWidth +
+                            "&height=" + chartaHeight)).POST(HttpRequest.BodyPublishers.noBody()).build();
+                    break;
+                case "draw":
+                    int x = min(viewportX + random.nextInt(viewportWidth), chartaWidth - 1) - fragmentWidth / 2;
+                    int y = min(viewportY + random.nextInt(viewportHeight), chartaHeight - 1) - fragmentHeight / 2;
+                    request = HttpRequest.newBuilder(URI.create(baseUrl + "/chartas/" + charta + "/?x=" + x +
+                                    "&y=" + y + "&width=" + fragmentWidth + "&height=" + fragmentHeight))
+                            .POST(HttpRequest.BodyPublishers.ofByteArray(fragments[random.nextInt(fragments.length)]))
+                            .build();
+                    break;
+                case "get":
+                    viewportX = min(max(viewportX + random.nextInt(2 * pan + 1) - pan, 0), chartaWidth - 1);
+                    viewportY = min(max(viewportY + random.nextInt(2 * pan + 1) - pan, 0), chartaHeight - 1);
+                    request = HttpRequest.newBuilder(URI.create(baseUrl + "/chartas/" + charta + "/?x=" + viewportX +
+                            "&y=" + viewportY + "&width=" + viewportWidth + "&height=" + viewportHeight)).GET().build();
+                    break;
+                default:
+                    Integer scratchCharta = scratchChartas.pollFirst();
+                    if (scratchCharta == null) {
+                        continue;
+                    }
+                    request = HttpRequest.newBuilder(URI.create(baseUrl + "/chartas/" + scratchCharta + "/"))
+                            .DELETE().build();
+            }
+
+            long start = System.nanoTime();
+            try {
+                HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+                long latencyMicros = (System.nanoTime() - start) / 1000;
+
+                if (endpoint.equals("create") && response.statusCode() == 201) {
+                    scratchChartas.addLast(Integer.parseInt(new String(response.body(), StandardCharsets.UTF_8)));
+                }
+                if (start >= warmupEnd) {
+                    stats.get(endpoint).record(latencyMicros, response.statusCode());
+                }
+            } catch (IOException e) {
+                if (start >= warmupEnd) {
+                    stats.get(endpoint).errors++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return stats;
+    }
+
+    private static void printReport(Map<String, EndpointStats> stats, double seconds) {
+        System.out.printf("%-8s %10s %10s %10s %10s %10s %10s %10s %10s  %s%n", "endpoint", "requests",
+                "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "errors", "status codes");
+        for (String endpoint : endpoints) {
+            EndpointStats endpointStats = stats.get(endpoint);
+            Histogram latencies = endpointStats.latencies;
+            System.out.printf("%-8s %10d %10.1f %10.2f %10.2f %10.2f %10.2f %10.2f %10d  %s%n", endpoint,
+                    latencies.getTotalCount(), latencies.getTotalCount() / seconds,
+                    latencies.getValueAtPercentile(50) / 1000.0, latencies.getValueAtPercentile(90) / 1000.0,
+                    latencies.getValueAtPercentile(99) / 1000.0, latencies.getValueAtPercentile(99.9) / 1000.0,
+                    latencies.getMaxValue() / 1000.0, endpointStats.errors, endpointStats.statusCodes);
+        }
+    }
+
+    public void run(String[] args) throws Exception {
+        for (String arg : args) {
+            String[] keyValue = arg.split("=", 2);
+            if (keyValue.length != 2) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            config.put(keyValue[0], keyValue[1]);
+        }
+
+        chartaWidth = parseWidth(config.get("charta"));
+        chartaHeight = parseHeight(config.get("charta"));
+        viewportWidth = parseWidth(config.get("viewport"));
+        viewportHeight = parseHeight(config.get("viewport"));
+        fragmentWidth = parseWidth(config.get("fragment"));
+        fragmentHeight = parseHeight(config.get("fragment"));
+        pan = Integer.parseInt(config.get("pan"));
+        for (String weight : config.get("mix").split(",")) {
+            String[] endpointWeight = weight.split(":");
+            weights[Arrays.asList(endpoints).indexOf(endpointWeight[0])] = Integer.parseInt(endpointWeight[1]);
+        }
+
+        HttpServer server = null;
+        Path workingDirectory = null;
+        if (config.containsKey("url")) {
+            baseUrl = config.get("url");
+        } else {
+            workingDirectory = Files.createTempDirectory("chartographer-load-test");
+            server = Main.startServer(workingDirectory.toString(), Integer.parseInt(config.get("port")));
+            baseUrl = "http://localhost:" + config.get("port");
+        }
+
+        try {
+            for (int i = 0; i < Integer.parseInt(config.get("chartas")); i++) {
+                chartas.add(createCharta());
+            }
+
+            int scientists = Integer.parseInt(config.get("scientists"));
+            long warmupEnd = System.nanoTime() + Long.parseLong(config.get("warmup")) * 1_000_000_000L;
+            long end = warmupEnd + Long.parseLong(config.get("duration")) * 1_000_000_000L;
+            List<Map<String, EndpointStats>> scientistStats = Collections.synchronizedList(new ArrayList<>());
+            List<Thread> threads = new ArrayList<>();
+
+            System.out.println("Running " + scientists + " scientists on " + chartas.size() + " chartas at " +
+                    baseUrl + " with " + config);
+            for (int i = 0; i < scientists; i++) {
+                int scientist = i;
+                Thread thread = new Thread(() -> scientistStats.add(runScientist(scientist, warmupEnd, end)));
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            Map<String, EndpointStats> stats = new HashMap<>();
+            for (String endpoint : endpoints) {
+                stats.put(endpoint, new EndpointStats());
+                for (Map<String, EndpointStats> scientistStat : scientistStats) {
+                    stats.get(endpoint).add(scientistStat.get(endpoint));
+                }
+            }
+            printReport(stats, Double.parseDouble(config.get("duration")));
+        } finally {
+            if (server != null) {
+                server.stop(0);
+                FileUtils.deleteDirectory(workingDirectory.toFile());
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator().run(args);
+        System.exit(0);
+    }
+
+}
@@ -1,24 +1,78 @@
 package App;
 
+import ChartasHttpHandler.AdmissionControl;
 import ChartasHttpHandler.ChartasHttpHandler;
+import ImageHandler.Durability;
+import ImageHandler.ImageHandler;
+import Metrics.MetricsHttpHandler;
+import Metrics.MetricsRegistry;
+import NioHttpServer.NioHttpServer;
 import com.sun.net.httpserver.HttpServer;
-import org.apache.commons.io.FileUtils;
 
-import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.concurrent.Executors;
 
 
 public class Main {
 
     private static final int port = 8080;
     private static final String requestPath = "/chartas";
-    private static final int maxImagePartWidth = 20000;
-    private static final int maxImagePartHeight = 5000;
+    private static final String metricsPath = "/admin/metrics";
+    private static final int maxImagePartWidth = 512;
+    private static final int maxImagePartHeight = 512;
     private static final String imageExtension = "bmp";
+    private static final long partCacheCapacity = 256L * 1024 * 1024;
+    private static final long slowRequestThresholdMillis = Long.getLong("chartas.slowRequestThresholdMillis", 1000);
+    // Budgets of the sub-image and draw requests in progress, see AdmissionControl.
+    private static final long memoryBudget = Long.getLong("chartas.memoryBudgetBytes",
+            Runtime.getRuntime().maxMemory() / 4);
+    private static final long ioBudget = Long.getLong("chartas.ioBudgetBytes", 1024L * 1024 * 1024);
+    private static final long maxAdmissionWaitMillis = Long.getLong("chartas.maxAdmissionWaitMillis", 2000);
+    private static final int maxAdmissionWaiting = Integer.getInteger("chartas.maxAdmissionWaiting", 256);
+    // jdk for the HttpServer of the JDK, nio for NioHttpServer.
+    private static final String frontEnd = System.getProperty("chartas.frontEnd", "jdk");
+    // One of fixed, cached or virtual, see ServerExecutors.
+    private static final String executorMode = System.getProperty("chartas.executor", ServerExecutors.fixedMode);
+    private static final int requestThreads = Integer.getInteger("chartas.requestThreads",
+            Runtime.getRuntime().availableProcessors());
+    private static final int ioThreads = Integer.getInteger("chartas.ioThreads",
+            4 * Runtime.getRuntime().availableProcessors());
+    // Draws are written behind if this is positive, see WriteBehindBuffer.
+    private static final long writeBehindMaxDirtyBytes = Long.getLong("chartas.writeBehindMaxDirtyBytes", 0);
+    private static final long writeBehindFlushIntervalMillis =
+            Long.getLong("chartas.writeBehindFlushIntervalMillis", 1000);
+    // One of none, group or sync, see Durability.
+    private static final String durability = System.getProperty("chartas.durability", "none");
+    private static final long groupCommitIntervalMillis = Long.getLong("chartas.groupCommitIntervalMillis", 5);
 
 
+    private static HttpServer createServer(int port) throws IOException {
+        switch (frontEnd) {
+            case "jdk":
+                return HttpServer.create(new InetSocketAddress(port), 0);
+            case "nio":
+                return NioHttpServer.create(new InetSocketAddress(port), 0);
+            default:
+                throw new IllegalArgumentException("Unknown server front end: " + frontEnd);
+        }
+    }
+
+    public static HttpServer startServer(String workingDirectory, int port) throws IOException {
+        HttpServer server = createServer(port);
+        ImageHandler imageHandler = new ImageHandler(workingDirectory, maxImagePartWidth, maxImagePartHeight,
+                imageExtension, partCacheCapacity, new MetricsRegistry(), ServerExecutors.newIoExecutor(ioThreads),
+                writeBehindMaxDirtyBytes, writeBehindFlushIntervalMillis, Durability.parse(durability),
+                groupCommitIntervalMillis);
+        AdmissionControl admissionControl = new AdmissionControl(memoryBudget, ioBudget,
+                maxAdmissionWaitMillis, maxAdmissionWaiting);
+        server.createContext(requestPath,
+                new ChartasHttpHandler(imageHandler, slowRequestThresholdMillis, admissionControl));
+        server.createContext(metricsPath, new MetricsHttpHandler(imageHandler.getMetrics()));
+        server.setExecutor(ServerExecutors.newRequestExecutor(executorMode, requestThreads));
+        server.start();
+        return server;
+    }
+
     public static void main(String[] args) {
         try {
             if (args.length <= 0) {
@@ -26,12 +80,7 @@ public class Main {
                 return;
             }
 
-            String workingDirectory = args[0];
-            HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
-            server.createContext(requestPath, new ChartasHttpHandler(workingDirectory,
-                    maxImagePartWidth, maxImagePartHeight, imageExtension));
-            server.setExecutor(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
-            server.start();
+            startServer(args[0], port);
         } catch (Exception e) {
             System.out.println(e.getMessage());
         }
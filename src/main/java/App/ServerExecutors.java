@@ -0,0 +1,66 @@
+package App;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+// Executors of the server. Requests spend most of their time blocked on disk, so in the virtual mode
+// every request gets its own virtual thread when the JDK has them (21+), and a cached pool otherwise.
+public class ServerExecutors {
+
+    private static final Logger log = Logger.getLogger(ServerExecutors.class.getName());
+
+    public static final String fixedMode = "fixed";
+    public static final String cachedMode = "cached";
+    public static final String virtualMode = "virtual";
+
+    private static ThreadFactory daemonThreadFactory(String namePrefix) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // Looked up reflectively, the sources are still compiled for Java 11.
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    public static ExecutorService newRequestExecutor(String mode, int threads) {
+        switch (mode) {
+            case fixedMode:
+                return Executors.newFixedThreadPool(threads);
+            case cachedMode:
+                return Executors.newCachedThreadPool();
+            case virtualMode:
+                ExecutorService executor = newVirtualThreadPerTaskExecutor();
+                if (executor == null) {
+                    log.warning("Virtual threads are not supported by this JDK, using an unbounded cached pool.");
+                    return Executors.newCachedThreadPool();
+                }
+                return executor;
+            default:
+                throw new IllegalArgumentException("Unknown executor mode: " + mode);
+        }
+    }
+
+    // A bounded pool for blocking disk reads. When all threads are busy and the queue is full
+    // the task runs in the submitting thread, which throttles the requests that produce the load.
+    public static ExecutorService newIoExecutor(int threads) {
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(4 * threads), daemonThreadFactory("chartas-io-"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+}
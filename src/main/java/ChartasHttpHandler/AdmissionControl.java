@@ -0,0 +1,140 @@
+package ChartasHttpHandler;
+
+import ImageHandler.RequestCost;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Global budgets of memory and I/O bytes shared by the requests in progress. A request reserves
+// its estimated cost before it starts and waits in a FIFO queue while the budgets are exhausted,
+// so a large request is not starved by smaller ones. Requests that wait longer than maxWaitMillis,
+// or find maxWaiting requests already queued, are rejected. A request costing more than a whole
+// budget is admitted alone once everything else has finished.
+public class AdmissionControl {
+
+    private final long memoryBudget;
+    private final long ioBudget;
+    private final long maxWaitNanos;
+    private final int maxWaiting;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final ArrayDeque<Object> waiting = new ArrayDeque<>();
+    private long availableMemory;
+    private long availableIo;
+
+    public class Permit implements AutoCloseable {
+
+        private final long memoryBytes;
+        private final long ioBytes;
+        private boolean released = false;
+
+        private Permit(long memoryBytes, long ioBytes) {
+            this.memoryBytes = memoryBytes;
+            this.ioBytes = ioBytes;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                release(memoryBytes, ioBytes);
+            }
+        }
+    }
+
+    public AdmissionControl(long memoryBudget, long ioBudget, long maxWaitMillis, int maxWaiting) {
+        if (memoryBudget <= 0 || ioBudget <= 0 || maxWaitMillis < 0 || maxWaiting < 0) {
+            throw new IllegalArgumentException("Invalid admission control limits.");
+        }
+
+        this.memoryBudget = memoryBudget;
+        this.ioBudget = ioBudget;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.maxWaiting = maxWaiting;
+        this.availableMemory = memoryBudget;
+        this.availableIo = ioBudget;
+    }
+
+    // Returns null if the request was rejected.
+    public Permit tryAdmit(RequestCost cost) {
+        long memoryBytes = Math.min(cost.getMemoryBytes(), memoryBudget);
+        long ioBytes = Math.min(cost.getIoBytes(), ioBudget);
+        Object ticket = new Object();
+
+        lock.lock();
+        try {
+            if (waiting.isEmpty() && memoryBytes <= availableMemory && ioBytes <= availableIo) {
+                availableMemory -= memoryBytes;
+                availableIo -= ioBytes;
+                return new Permit(memoryBytes, ioBytes);
+            }
+            if (waiting.size() >= maxWaiting) {
+                return null;
+            }
+
+            waiting.add(ticket);
+            try {
+                long remainingNanos = maxWaitNanos;
+                while (waiting.peek() != ticket || memoryBytes > availableMemory || ioBytes > availableIo) {
+                    if (remainingNanos <= 0) {
+                        return null;
+                    }
+                    remainingNanos = released.awaitNanos(remainingNanos);
+                }
+                availableMemory -= memoryBytes;
+                availableIo -= ioBytes;
+                return new Permit(memoryBytes, ioBytes);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } finally {
+                waiting.remove(ticket);
+                // The next request in the queue may fit into what is left.
+                released.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(long memoryBytes, long ioBytes) {
+        lock.lock();
+        try {
+            availableMemory += memoryBytes;
+            availableIo += ioBytes;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getAvailableMemory() {
+        lock.lock();
+        try {
+            return availableMemory;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getAvailableIo() {
+        lock.lock();
+        try {
+            return availableIo;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getWaiting() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -1,8 +1,15 @@
 package ChartasHttpHandler;
 
+import ImageHandler.Exceptions.IncorrectImageFormatException;
 import ImageHandler.Exceptions.IncorrectImageIdException;
 import ImageHandler.Exceptions.IncorrectImageRegionException;
+import ImageHandler.ImageCoverage;
+import ImageHandler.ImageFragment;
 import ImageHandler.ImageHandler;
+import ImageHandler.ImageRegion;
+import ImageHandler.RequestCost;
+import Metrics.MetricsRegistry;
+import Metrics.RequestTiming;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import org.apache.http.HttpStatus;
@@ -10,29 +17,186 @@ import org.apache.http.NameValuePair;
 import org.apache.http.client.utils.URLEncodedUtils;
 import org.apache.commons.lang3.StringUtils;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 public class ChartasHttpHandler implements HttpHandler {
 
+    private static final int responseBufferSize = 64 * 1024;
+    // A response length of 0 means a chunked body for HttpExchange.
+    private static final long noResponseBody = -1;
+    private static final long defaultSlowRequestThresholdMillis = 1000;
+    private static final String timingAttribute = "chartas.timing";
+    private static final long defaultMemoryBudget = Runtime.getRuntime().maxMemory() / 4;
+    private static final long defaultIoBudget = 1024L * 1024 * 1024;
+    private static final long defaultMaxAdmissionWaitMillis = 2000;
+    private static final int defaultMaxAdmissionWaiting = 256;
+    private static final String retryAfterSeconds = "1";
+    private static final long maxDrainedBytes = 64 * 1024;
+    private static final String coveragePath = "/coverage";
+    private static final String batchPath = "/batch";
+    private static final int maxBatchRegions = 256;
+    private static final int maxBatchFragments = 1024;
+    private static final long maxBatchDrawBytes = 64 * 1024 * 1024;
+    private static final Logger slowRequestLog = Logger.getLogger(ChartasHttpHandler.class.getName() + ".slow");
+
     private final ImageHandler imageHandler;
+    private final MetricsRegistry metrics;
+    private final long slowRequestThresholdNanos;
+    private final AdmissionControl admissionControl;
+
+    // Sends the response headers only when the first byte of the body is written,
+    // so that errors detected before that can still be answered with their own status code.
+    private static class ResponseBodyStream extends FilterOutputStream {
+
+        private final HttpExchange httpExchange;
+        private final int responseCode;
+        private final long responseLength;
+        private boolean headersSent = false;
+
+        public ResponseBodyStream(HttpExchange httpExchange, int responseCode, long responseLength) {
+            super(httpExchange.getResponseBody());
+            this.httpExchange = httpExchange;
+            this.responseCode = responseCode;
+            this.responseLength = responseLength;
+        }
+
+        private void sendHeaders() throws IOException {
+            if (!headersSent) {
+                setServerTiming(httpExchange);
+                httpExchange.sendResponseHeaders(responseCode, responseLength);
+                headersSent = true;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            sendHeaders();
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            sendHeaders();
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            sendHeaders();
+            super.close();
+        }
+    }
 
     public ChartasHttpHandler(String workingDirectory, int maxImagePartWidth,
                               int maxImagePartHeight, String imageExtension) throws IOException {
-        imageHandler = new ImageHandler(workingDirectory, maxImagePartWidth, maxImagePartHeight, imageExtension);
+        this(new ImageHandler(workingDirectory, maxImagePartWidth, maxImagePartHeight, imageExtension));
+    }
+
+    public ChartasHttpHandler(ImageHandler imageHandler) {
+        this(imageHandler, defaultSlowRequestThresholdMillis);
+    }
+
+    // Requests that take longer than slowRequestThresholdMillis are logged with the time spent in each phase.
+    public ChartasHttpHandler(ImageHandler imageHandler, long slowRequestThresholdMillis) {
+        this(imageHandler, slowRequestThresholdMillis, new AdmissionControl(defaultMemoryBudget, defaultIoBudget,
+                defaultMaxAdmissionWaitMillis, defaultMaxAdmissionWaiting));
+    }
+
+    // Sub-image and draw requests are admitted by admissionControl before any work is done for them.
+    public ChartasHttpHandler(ImageHandler imageHandler, long slowRequestThresholdMillis,
+                              AdmissionControl admissionControl) {
+        this.imageHandler = imageHandler;
+        this.metrics = imageHandler.getMetrics();
+        this.slowRequestThresholdNanos = slowRequestThresholdMillis * 1_000_000;
+        this.admissionControl = admissionControl;
+
+        metrics.gauge("http.admission.available_memory_bytes", admissionControl::getAvailableMemory);
+        metrics.gauge("http.admission.available_io_bytes", admissionControl::getAvailableIo);
+        metrics.gauge("http.admission.waiting", admissionControl::getWaiting);
+    }
+
+    private AdmissionControl.Permit admit(RequestCost cost) {
+        long start = System.nanoTime();
+        AdmissionControl.Permit permit = admissionControl.tryAdmit(cost);
+        metrics.histogram("http.admission.wait_ns").record(System.nanoTime() - start);
+        if (permit == null) {
+            metrics.counter("http.admission.rejected").increment();
+        }
+        return permit;
+    }
+
+    private static RequestTiming getTiming(HttpExchange httpExchange) {
+        return (RequestTiming) httpExchange.getAttribute(timingAttribute);
+    }
+
+    // The header can only hold the phases finished before the response headers are sent,
+    // for a streamed sub-image that is everything up to the first flushed chunk of the body.
+    private static void setServerTiming(HttpExchange httpExchange) {
+        httpExchange.getResponseHeaders().set("Server-Timing", getTiming(httpExchange).toServerTiming());
+    }
+
+    // HttpExchange closes the connection instead of keeping it alive if an empty response
+    // is sent before the request body was read to the end, so a short rest of it is read first.
+    // A longer rest is not worth reading to keep the connection, which is closed instead.
+    private static void sendEmptyResponse(HttpExchange httpExchange, int responseCode) throws IOException {
+        if (!drainRequestBody(httpExchange.getRequestBody())) {
+            httpExchange.getResponseHeaders().set("Connection", "close");
+        }
+        setServerTiming(httpExchange);
+        httpExchange.sendResponseHeaders(responseCode, noResponseBody);
+    }
+
+    // Whether the body was read to the end within maxDrainedBytes.
+    private static boolean drainRequestBody(InputStream requestBody) throws IOException {
+        byte[] buffer = new byte[8192];
+        long drainedBytes = 0;
+        while (drainedBytes <= maxDrainedBytes) {
+            int bytesRead = requestBody.read(buffer);
+            if (bytesRead < 0) {
+                return true;
+            }
+            drainedBytes += bytesRead;
+        }
+        return false;
     }
 
     private static void sendBadRequest(HttpExchange httpExchange) throws IOException {
-        httpExchange.sendResponseHeaders(HttpStatus.SC_BAD_REQUEST, 0);
+        sendEmptyResponse(httpExchange, HttpStatus.SC_BAD_REQUEST);
     }
 
     private static void sendNotFound(HttpExchange httpExchange) throws IOException {
-        httpExchange.sendResponseHeaders(HttpStatus.SC_NOT_FOUND, 0);
+        sendEmptyResponse(httpExchange, HttpStatus.SC_NOT_FOUND);
+    }
+
+    // The request body is not read, it may be large and reading it is the load being shed.
+    // Both server front ends close the connection instead of reusing it then.
+    private static void sendServiceUnavailable(HttpExchange httpExchange) throws IOException {
+        httpExchange.getResponseHeaders().set("Retry-After", retryAfterSeconds);
+        httpExchange.getResponseHeaders().set("Connection", "close");
+        setServerTiming(httpExchange);
+        httpExchange.sendResponseHeaders(HttpStatus.SC_SERVICE_UNAVAILABLE, noResponseBody);
+    }
+
+    // Like a rejected request, the rest of a body that is too large is not read.
+    private static void sendPayloadTooLarge(HttpExchange httpExchange) throws IOException {
+        httpExchange.getResponseHeaders().set("Connection", "close");
+        setServerTiming(httpExchange);
+        httpExchange.sendResponseHeaders(HttpStatus.SC_REQUEST_TOO_LONG, noResponseBody);
     }
 
     private static int getImageId(HttpExchange httpExchange) {
@@ -42,6 +206,31 @@ public class ChartasHttpHandler implements HttpHandler {
                 .split("/")[2]);
     }
 
+    private static boolean isCoverageRequest(HttpExchange httpExchange) {
+        return httpExchange.getRequestURI().getPath().endsWith(coveragePath);
+    }
+
+    private static boolean isBatchRequest(HttpExchange httpExchange) {
+        return httpExchange.getRequestURI().getPath().endsWith(batchPath);
+    }
+
+    private static String getEndpoint(HttpExchange httpExchange) {
+        switch (httpExchange.getRequestMethod()) {
+            case "GET":
+                return isCoverageRequest(httpExchange) ? "coverage" : isBatchRequest(httpExchange) ? "batch" : "get";
+            case "DELETE":
+                return "delete";
+            case "POST":
+                if (isBatchRequest(httpExchange)) {
+                    return "batch_draw";
+                }
+                return StringUtils.countMatches(httpExchange.getRequestURI().toString(), '/') == 2 ?
+                        "create" : "draw";
+            default:
+                return "other";
+        }
+    }
+
     private static Map<String, Integer> getParams(HttpExchange httpExchange) {
         URI uri = httpExchange.getRequestURI();
         List<NameValuePair> params = URLEncodedUtils.parse(uri, StandardCharsets.UTF_8);
@@ -55,18 +244,42 @@ public class ChartasHttpHandler implements HttpHandler {
 
     @Override
     public void handle(HttpExchange httpExchange) throws IOException {
-        switch (httpExchange.getRequestMethod()) {
-            case "GET":
-                handleGetRequest(httpExchange);
-                break;
-            case "POST":
-                handlePostRequest(httpExchange);
-                break;
-            case "DELETE":
-                handleDeleteRequest(httpExchange);
-                break;
-            default:
-                sendBadRequest(httpExchange);
+        RequestTiming timing = new RequestTiming();
+        httpExchange.setAttribute(timingAttribute, timing);
+        try {
+            switch (httpExchange.getRequestMethod()) {
+                case "GET":
+                    if (isCoverageRequest(httpExchange)) {
+                        handleCoverageRequest(httpExchange);
+                    } else if (isBatchRequest(httpExchange)) {
+                        handleBatchRequest(httpExchange);
+                    } else {
+                        handleGetRequest(httpExchange);
+                    }
+                    break;
+                case "POST":
+                    handlePostRequest(httpExchange);
+                    break;
+                case "DELETE":
+                    handleDeleteRequest(httpExchange);
+                    break;
+                default:
+                    sendBadRequest(httpExchange);
+            }
+        } finally {
+            httpExchange.close();
+
+            long totalTime = timing.getTotalTime();
+            String endpoint = getEndpoint(httpExchange);
+            metrics.histogram("http." + endpoint + ".latency_ns").record(totalTime);
+            metrics.counter("http." + endpoint + ".status." + httpExchange.getResponseCode()).increment();
+
+            if (totalTime > slowRequestThresholdNanos) {
+                slowRequestLog.warning("slow_request endpoint=" + endpoint +
+                        " method=" + httpExchange.getRequestMethod() +
+                        " uri=" + httpExchange.getRequestURI() +
+                        " status=" + httpExchange.getResponseCode() + " " + timing.toLogFields());
+            }
         }
     }
 
@@ -81,13 +294,83 @@ public class ChartasHttpHandler implements HttpHandler {
                 return;
             }
 
-            byte[] subImage = imageHandler.getSubImage(imageId, params.get("x"),
-                    params.get("y"), params.get("width"), params.get("height"));
-            OutputStream outputStream = httpExchange.getResponseBody();
+            // The optional level selects a downscaled level of the image, the region is in its pixels.
+            int level = params.getOrDefault("level", 0);
+            RequestCost cost = imageHandler.estimateSubImageCost(imageId, level, params.get("x"), params.get("y"),
+                    params.get("width"), params.get("height"));
+            try (AdmissionControl.Permit permit = admit(new RequestCost(
+                    cost.getMemoryBytes() + responseBufferSize, cost.getIoBytes()))) {
+                if (permit == null) {
+                    sendServiceUnavailable(httpExchange);
+                    return;
+                }
 
-            httpExchange.sendResponseHeaders(HttpStatus.SC_OK, subImage.length);
-            outputStream.write(subImage);
-            outputStream.close();
+                long subImageSize = imageHandler.getSubImageSize(params.get("width"), params.get("height"));
+                OutputStream outputStream = new BufferedOutputStream(
+                        new ResponseBodyStream(httpExchange, HttpStatus.SC_OK, subImageSize), responseBufferSize);
+
+                imageHandler.writeSubImage(imageId, level, params.get("x"), params.get("y"),
+                        params.get("width"), params.get("height"), outputStream, getTiming(httpExchange));
+                outputStream.close();
+            }
+        } catch (NumberFormatException | IncorrectImageRegionException e) {
+            sendBadRequest(httpExchange);
+        } catch (IncorrectImageIdException e) {
+            sendNotFound(httpExchange);
+        }
+    }
+
+    // GET /chartas/{id}/batch?region=x,y,width,height&region=...&level=... reads many sub-images at once.
+    // The response body holds the number of sub-images as a 4 byte big-endian integer, the length
+    // of each of them as an 8 byte one and then the sub-images themselves, in the order of the request.
+    private void handleBatchRequest(HttpExchange httpExchange) throws IOException {
+        try {
+            int imageId = getImageId(httpExchange);
+            int level = 0;
+            List<ImageRegion> regions = new ArrayList<>();
+            for (NameValuePair param : URLEncodedUtils.parse(httpExchange.getRequestURI(), StandardCharsets.UTF_8)) {
+                if (param.getName().equals("level")) {
+                    level = Integer.parseInt(param.getValue());
+                } else if (param.getName().equals("region")) {
+                    String[] values = StringUtils.split(param.getValue(), ',');
+                    if (values.length != 4 || Integer.parseInt(values[2]) <= 0 || Integer.parseInt(values[3]) <= 0) {
+                        sendBadRequest(httpExchange);
+                        return;
+                    }
+                    regions.add(new ImageRegion(Integer.parseInt(values[0]), Integer.parseInt(values[1]),
+                            Integer.parseInt(values[2]), Integer.parseInt(values[3])));
+                }
+            }
+
+            if (regions.isEmpty() || regions.size() > maxBatchRegions) {
+                sendBadRequest(httpExchange);
+                return;
+            }
+
+            RequestCost cost = imageHandler.estimateSubImagesCost(imageId, level, regions);
+            try (AdmissionControl.Permit permit = admit(new RequestCost(
+                    cost.getMemoryBytes() + responseBufferSize, cost.getIoBytes()))) {
+                if (permit == null) {
+                    sendServiceUnavailable(httpExchange);
+                    return;
+                }
+
+                long responseLength = Integer.BYTES + (long) Long.BYTES * regions.size();
+                for (ImageRegion region : regions) {
+                    responseLength += imageHandler.getSubImageSize(region.getWidth(), region.getHeight());
+                }
+                // The lengths stay in the buffer until the sub-images are written, so an incorrect
+                // region can still be answered with 400.
+                DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(
+                        new ResponseBodyStream(httpExchange, HttpStatus.SC_OK, responseLength), responseBufferSize));
+                outputStream.writeInt(regions.size());
+                for (ImageRegion region : regions) {
+                    outputStream.writeLong(imageHandler.getSubImageSize(region.getWidth(), region.getHeight()));
+                }
+
+                imageHandler.writeSubImages(imageId, level, regions, outputStream, getTiming(httpExchange));
+                outputStream.close();
+            }
         } catch (NumberFormatException | IncorrectImageRegionException e) {
             sendBadRequest(httpExchange);
         } catch (IncorrectImageIdException e) {
@@ -95,11 +378,34 @@ public class ChartasHttpHandler implements HttpHandler {
         }
     }
 
+    // One statistic per line, in the format of the metrics report.
+    private void handleCoverageRequest(HttpExchange httpExchange) throws IOException {
+        try {
+            ImageCoverage coverage = imageHandler.getCoverage(getImageId(httpExchange));
+            byte[] report = ("parts " + coverage.getParts() + "\n" +
+                    "covered_parts " + coverage.getCoveredParts() + "\n" +
+                    "pixels " + coverage.getPixels() + "\n" +
+                    "covered_pixels " + coverage.getCoveredPixels() + "\n" +
+                    "covered_percent " + coverage.getCoveredPercent() + "\n").getBytes(StandardCharsets.UTF_8);
+
+            httpExchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            setServerTiming(httpExchange);
+            httpExchange.sendResponseHeaders(HttpStatus.SC_OK, report.length);
+            OutputStream outputStream = httpExchange.getResponseBody();
+            outputStream.write(report);
+            outputStream.close();
+        } catch (NumberFormatException e) {
+            sendBadRequest(httpExchange);
+        } catch (IncorrectImageIdException e) {
+            sendNotFound(httpExchange);
+        }
+    }
+
     private void handleDeleteRequest(HttpExchange httpExchange) throws IOException {
         try {
             int imageId = getImageId(httpExchange);
             imageHandler.deleteImage(imageId);
-            httpExchange.sendResponseHeaders(HttpStatus.SC_OK, 0);
+            sendEmptyResponse(httpExchange, HttpStatus.SC_OK);
         } catch (NumberFormatException e) {
             sendBadRequest(httpExchange);
         } catch (IncorrectImageIdException e) {
@@ -108,6 +414,10 @@ public class ChartasHttpHandler implements HttpHandler {
     }
 
     private void handlePostRequest(HttpExchange httpExchange) throws IOException {
+        if (isBatchRequest(httpExchange)) {
+            handleBatchDrawRequest(httpExchange);
+            return;
+        }
         switch (StringUtils.countMatches(httpExchange.getRequestURI().toString(), '/')) {
             case 2:
                 handleCreateRequest(httpExchange);
@@ -133,6 +443,7 @@ public class ChartasHttpHandler implements HttpHandler {
             byte[] imageIdBytes = imageId.getBytes(StandardCharsets.UTF_8);
             OutputStream outputStream = httpExchange.getResponseBody();
 
+            setServerTiming(httpExchange);
             httpExchange.sendResponseHeaders(HttpStatus.SC_CREATED, imageIdBytes.length);
             outputStream.write(imageIdBytes);
             outputStream.close();
@@ -152,10 +463,80 @@ public class ChartasHttpHandler implements HttpHandler {
                 return;
             }
 
-            imageHandler.drawImage(imageId, params.get("x"),
-                    params.get("y"), params.get("width"), params.get("height"), httpExchange.getRequestBody());
-            httpExchange.sendResponseHeaders(HttpStatus.SC_OK, 0);
-        } catch (NumberFormatException | IncorrectImageRegionException e) {
+            try (AdmissionControl.Permit permit = admit(imageHandler.estimateDrawImageCost(imageId,
+                    params.get("x"), params.get("y"), params.get("width"), params.get("height")))) {
+                if (permit == null) {
+                    sendServiceUnavailable(httpExchange);
+                    return;
+                }
+
+                imageHandler.drawImage(imageId, params.get("x"), params.get("y"), params.get("width"),
+                        params.get("height"), httpExchange.getRequestBody(), getTiming(httpExchange));
+            }
+            sendEmptyResponse(httpExchange, HttpStatus.SC_OK);
+        } catch (NumberFormatException | IncorrectImageRegionException | IncorrectImageFormatException e) {
+            sendBadRequest(httpExchange);
+        } catch (IncorrectImageIdException e) {
+            sendNotFound(httpExchange);
+        }
+    }
+
+    // POST /chartas/{id}/batch draws many fragments at once. The request body holds the number
+    // of fragments as a 4 byte big-endian integer, then for each of them its x and y as 4 byte ones,
+    // the length of its BMP image as an 8 byte one and the image itself. Where fragments overlap
+    // the one that comes later in the body wins.
+    private void handleBatchDrawRequest(HttpExchange httpExchange) throws IOException {
+        try {
+            int imageId = getImageId(httpExchange);
+            long contentLength = httpExchange.getRequestHeaders().containsKey("Content-Length") ?
+                    Long.parseLong(httpExchange.getRequestHeaders().getFirst("Content-Length")) : maxBatchDrawBytes;
+            if (contentLength > maxBatchDrawBytes) {
+                sendPayloadTooLarge(httpExchange);
+                return;
+            }
+
+            try (AdmissionControl.Permit permit = admit(imageHandler.estimateDrawImagesCost(imageId, contentLength))) {
+                if (permit == null) {
+                    sendServiceUnavailable(httpExchange);
+                    return;
+                }
+
+                DataInputStream inputStream = new DataInputStream(
+                        new BufferedInputStream(httpExchange.getRequestBody(), responseBufferSize));
+                int count = inputStream.readInt();
+                if (count <= 0 || count > maxBatchFragments) {
+                    sendBadRequest(httpExchange);
+                    return;
+                }
+
+                List<ImageFragment> fragments = new ArrayList<>(count);
+                long fragmentBytes = 0;
+                for (int i = 0; i < count; i++) {
+                    int x = inputStream.readInt();
+                    int y = inputStream.readInt();
+                    long length = inputStream.readLong();
+                    if (length < 0) {
+                        sendBadRequest(httpExchange);
+                        return;
+                    }
+                    fragmentBytes += length;
+                    // A chunked body has no Content-Length to be checked up front.
+                    if (fragmentBytes > maxBatchDrawBytes) {
+                        sendPayloadTooLarge(httpExchange);
+                        return;
+                    }
+                    byte[] bmp = inputStream.readNBytes((int) length);
+                    if (bmp.length != length) {
+                        throw new EOFException();
+                    }
+                    fragments.add(new ImageFragment(x, y, bmp));
+                }
+
+                imageHandler.drawImages(imageId, fragments, getTiming(httpExchange));
+            }
+            sendEmptyResponse(httpExchange, HttpStatus.SC_OK);
+        } catch (NumberFormatException | EOFException |
+                 IncorrectImageRegionException | IncorrectImageFormatException e) {
             sendBadRequest(httpExchange);
         } catch (IncorrectImageIdException e) {
             sendNotFound(httpExchange);
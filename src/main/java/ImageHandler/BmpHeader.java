@@ -0,0 +1,100 @@
+package ImageHandler;
+
+import ImageHandler.Exceptions.IncorrectImageFormatException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+public class BmpHeader {
+
+    public static final int SIZE = 54;
+    private static final int INFO_HEADER_SIZE = 40;
+    private static final int BITS_PER_PIXEL = 24;
+    private static final int BYTES_PER_PIXEL = 3;
+    // The widest image whose rows fit into an array.
+    public static final int MAX_WIDTH = (Integer.MAX_VALUE - 8 - 3) / BYTES_PER_PIXEL;
+
+    private final int width;
+    private final int height;
+    private final boolean topDown;
+    private final int pixelDataOffset;
+
+    public BmpHeader(int width, int height) {
+        this(width, height, false, SIZE);
+    }
+
+    private BmpHeader(int width, int height, boolean topDown, int pixelDataOffset) {
+        this.width = width;
+        this.height = height;
+        this.topDown = topDown;
+        this.pixelDataOffset = pixelDataOffset;
+    }
+
+    public static int getRowStride(int width) {
+        return (width * BYTES_PER_PIXEL + 3) & ~3;
+    }
+
+    public static BmpHeader read(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                throw new IncorrectImageFormatException();
+            }
+        }
+        buffer.flip();
+        return parse(buffer);
+    }
+
+    public static BmpHeader parse(ByteBuffer buffer) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < SIZE || buffer.get(0) != 'B' || buffer.get(1) != 'M') {
+            throw new IncorrectImageFormatException();
+        }
+
+        int pixelDataOffset = buffer.getInt(10);
+        int infoHeaderSize = buffer.getInt(14);
+        int width = buffer.getInt(18);
+        int height = buffer.getInt(22);
+        int bitsPerPixel = buffer.getShort(28);
+        int compression = buffer.getInt(30);
+
+        if (infoHeaderSize < INFO_HEADER_SIZE || bitsPerPixel != BITS_PER_PIXEL || compression != 0 ||
+                width <= 0 || width > MAX_WIDTH || height == 0 || height == Integer.MIN_VALUE ||
+                pixelDataOffset < SIZE) {
+            throw new IncorrectImageFormatException();
+        }
+
+        return new BmpHeader(width, Math.abs(height), height < 0, pixelDataOffset);
+    }
+
+    public byte[] toByteArray() {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 'B').put((byte) 'M');
+        buffer.putInt((int) getImageSize());
+        buffer.putInt(0);
+        buffer.putInt(SIZE);
+        buffer.putInt(INFO_HEADER_SIZE);
+        buffer.putInt(width);
+        buffer.putInt(topDown ? -height : height);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) BITS_PER_PIXEL);
+        buffer.putInt(0);
+        buffer.putInt(getRowStride() * height);
+        return buffer.array();
+    }
+
+    public int getWidth() { return width; }
+    public int getHeight() { return height; }
+    public boolean isTopDown() { return topDown; }
+    public int getPixelDataOffset() { return pixelDataOffset; }
+    public int getRowStride() { return getRowStride(width); }
+    public long getImageSize() { return pixelDataOffset + (long) getRowStride() * height; }
+
+    public long getPixelOffset(int x, int y) {
+        int storedRow = topDown ? y : height - 1 - y;
+        return pixelDataOffset + (long) storedRow * getRowStride() + (long) x * BYTES_PER_PIXEL;
+    }
+
+}
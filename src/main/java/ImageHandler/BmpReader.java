@@ -0,0 +1,71 @@
+package ImageHandler;
+
+import ImageHandler.Exceptions.IncorrectImageFormatException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+public class BmpReader {
+
+    private static final int skipBufferSize = 4096;
+
+    private final InputStream inputStream;
+    private final byte[] skipBuffer = new byte[skipBufferSize];
+    private final BmpHeader header;
+    private int rowsRead = 0;
+
+    public BmpReader(InputStream inputStream) throws IOException {
+        this.inputStream = inputStream;
+
+        byte[] headerBytes = new byte[BmpHeader.SIZE];
+        readFully(headerBytes, 0, headerBytes.length);
+        header = BmpHeader.parse(ByteBuffer.wrap(headerBytes));
+        skipFully(header.getPixelDataOffset() - BmpHeader.SIZE);
+    }
+
+    private void readFully(byte[] buffer, int offset, int length) throws IOException {
+        if (inputStream.readNBytes(buffer, offset, length) != length) {
+            throw new IncorrectImageFormatException();
+        }
+    }
+
+    // The skipped bytes are read, as the request body of HttpServer passes skip on to the connection
+    // without counting the skipped bytes towards the length of the body.
+    private void skipFully(long length) throws IOException {
+        while (length > 0) {
+            int skipped = inputStream.read(skipBuffer, 0, (int) Math.min(length, skipBuffer.length));
+            if (skipped < 0) {
+                throw new IncorrectImageFormatException();
+            }
+            length -= skipped;
+        }
+    }
+
+    public BmpHeader getHeader() { return header; }
+
+    public boolean hasNextRow() { return rowsRead < header.getHeight(); }
+
+    // Reads the next row in storage order into row, which must hold at least getRowStride() bytes,
+    // and returns its y coordinate counted from the top of the image.
+    public int readRow(byte[] row) throws IOException {
+        readFully(row, 0, header.getRowStride());
+        return nextRow();
+    }
+
+    // Reads only the width pixels of the next row starting at pixel x into row and skips the rest of it,
+    // so a row that is mostly outside of the image it is drawn on does not have to be held in memory.
+    public int readRow(byte[] row, int x, int width) throws IOException {
+        skipFully((long) x * 3);
+        readFully(row, 0, width * 3);
+        skipFully(header.getRowStride() - ((long) x + width) * 3);
+        return nextRow();
+    }
+
+    private int nextRow() {
+        int y = header.isTopDown() ? rowsRead : header.getHeight() - 1 - rowsRead;
+        rowsRead++;
+        return y;
+    }
+
+}
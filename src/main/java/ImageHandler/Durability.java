@@ -0,0 +1,24 @@
+package ImageHandler;
+
+import java.util.Locale;
+
+// How far a draw is made to survive a crash before it is acknowledged. What is forced to disk are
+// the parts written by the draw, or the write-ahead log if draws are written behind.
+public enum Durability {
+
+    // Left in the page cache, which only survives a crash of the process.
+    NONE,
+    // Forced to disk together with the other draws committed within the group commit interval.
+    GROUP,
+    // Forced to disk by every draw.
+    SYNC;
+
+    public static Durability parse(String name) {
+        return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+
+    public String getName() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+}
@@ -0,0 +1,5 @@
+package ImageHandler.Exceptions;
+
+public class IncorrectImageFormatException extends RuntimeException {
+    public IncorrectImageFormatException() { super(); }
+}
@@ -0,0 +1,158 @@
+package ImageHandler;
+
+import Metrics.Histogram;
+import Metrics.MetricsRegistry;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Forces the files of concurrent commits to disk together. The first commit starts a batch, which is
+// forced by a background thread at most commitIntervalMillis later along with all commits made
+// meanwhile, and a file committed more than once in a batch is forced once. Commits made while
+// a batch is forced go into the next one.
+public class GroupCommit implements Closeable {
+
+    public interface Force {
+        void force() throws IOException;
+    }
+
+    private final long commitIntervalNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pending = lock.newCondition();
+    private final Condition committed = lock.newCondition();
+    private final Thread committer;
+    private final Histogram batchCommits;
+    private final Histogram batchForces;
+    private final LongAdder forces;
+    private Batch batch = new Batch();
+    private boolean closed = false;
+
+    private static class Batch {
+        private final Map<String, Force> forces = new LinkedHashMap<>();
+        private int commits = 0;
+        private boolean done = false;
+        private IOException failure;
+    }
+
+    public GroupCommit(long commitIntervalMillis, MetricsRegistry metrics) {
+        if (commitIntervalMillis < 0) {
+            throw new IllegalArgumentException("Invalid commit interval.");
+        }
+
+        this.commitIntervalNanos = TimeUnit.MILLISECONDS.toNanos(commitIntervalMillis);
+        this.batchCommits = metrics.histogram("durability.group.batch_commits");
+        this.batchForces = metrics.histogram("durability.group.batch_forces");
+        this.forces = metrics.counter("durability.group.forces");
+
+        this.committer = new Thread(this::runCommitter, "group-commit");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    // Returns once everything in forces, keyed by the path of the file, was forced to disk.
+    public void commit(Map<String, Force> forces) throws IOException {
+        if (forces.isEmpty()) {
+            return;
+        }
+
+        Batch committedBatch;
+        lock.lock();
+        try {
+            if (closed) {
+                committedBatch = null;
+            } else {
+                committedBatch = batch;
+                for (Map.Entry<String, Force> force : forces.entrySet()) {
+                    committedBatch.forces.putIfAbsent(force.getKey(), force.getValue());
+                }
+                committedBatch.commits++;
+                pending.signal();
+                while (!committedBatch.done) {
+                    committed.awaitUninterruptibly();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        IOException failure = committedBatch == null ? forceAll(forces) : committedBatch.failure;
+        if (failure != null) {
+            throw new IOException("Could not force the committed files.", failure);
+        }
+    }
+
+    private IOException forceAll(Map<String, Force> forcedFiles) {
+        try {
+            for (Force force : forcedFiles.values()) {
+                force.force();
+                forces.increment();
+            }
+            return null;
+        } catch (IOException e) {
+            return e;
+        }
+    }
+
+    private void runCommitter() {
+        lock.lock();
+        try {
+            while (true) {
+                while (batch.commits == 0 && !closed) {
+                    pending.awaitUninterruptibly();
+                }
+                if (batch.commits == 0) {
+                    return;
+                }
+
+                // Collects the commits made within the interval, close does not cut it short.
+                long remainingNanos = commitIntervalNanos;
+                while (remainingNanos > 0) {
+                    remainingNanos = pending.awaitNanos(remainingNanos);
+                }
+                Batch forcedBatch = batch;
+                batch = new Batch();
+
+                IOException failure;
+                lock.unlock();
+                try {
+                    failure = forceAll(forcedBatch.forces);
+                } finally {
+                    lock.lock();
+                }
+                forcedBatch.failure = failure;
+                forcedBatch.done = true;
+                batchCommits.record(forcedBatch.commits);
+                batchForces.record(forcedBatch.forces.size());
+                committed.signalAll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Forces the pending batch, commits made afterwards force their files themselves.
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            pending.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
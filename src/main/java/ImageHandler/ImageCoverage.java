@@ -0,0 +1,29 @@
+package ImageHandler;
+
+// How much of an image was restored, counted in whole parts: a part is covered
+// once anything was drawn on it, even if only some of its pixels.
+public class ImageCoverage {
+
+    private final long parts;
+    private final long coveredParts;
+    private final long pixels;
+    private final long coveredPixels;
+
+    public ImageCoverage(long parts, long coveredParts, long pixels, long coveredPixels) {
+        this.parts = parts;
+        this.coveredParts = coveredParts;
+        this.pixels = pixels;
+        this.coveredPixels = coveredPixels;
+    }
+
+    public long getParts() { return parts; }
+
+    public long getCoveredParts() { return coveredParts; }
+
+    public long getPixels() { return pixels; }
+
+    public long getCoveredPixels() { return coveredPixels; }
+
+    public long getCoveredPercent() { return coveredPixels * 100 / pixels; }
+
+}
@@ -0,0 +1,22 @@
+package ImageHandler;
+
+// One of the fragments of a batch draw: a BMP image to be drawn with its top left corner at (x, y).
+public class ImageFragment {
+
+    private final int x;
+    private final int y;
+    private final byte[] bmp;
+
+    public ImageFragment(int x, int y, byte[] bmp) {
+        this.x = x;
+        this.y = y;
+        this.bmp = bmp;
+    }
+
+    public int getX() { return x; }
+
+    public int getY() { return y; }
+
+    public byte[] getBmp() { return bmp; }
+
+}
@@ -1,43 +1,552 @@
 package ImageHandler;
 
+import ImageHandler.Exceptions.IncorrectImageFormatException;
 import ImageHandler.Exceptions.IncorrectImageIdException;
 import ImageHandler.Exceptions.IncorrectImageRegionException;
+import Metrics.Histogram;
+import Metrics.MetricsRegistry;
+import Metrics.RequestTiming;
+import Metrics.RequestTiming.Phase;
 import org.apache.commons.io.FileUtils;
 
-import javax.imageio.ImageIO;
-import java.awt.*;
-import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Collections;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import static java.lang.Math.max;
 import static java.lang.Math.min;
 
-public class ImageHandler {
+public class ImageHandler implements Closeable {
+
+    private static final long defaultPartCacheCapacity = 64L * 1024 * 1024;
+    private static final String registryLogName = "registry.log";
+    private static final String imageMetadataName = "image.meta";
+    private static final String levelDirectoryPrefix = "level";
+    private static final String writeAheadLogDirectoryName = "wal";
+    // Sub-images up to this size are read once for all identical concurrent requests, see SingleFlight.
+    private static final long maxSharedSubImageSize = 4L * 1024 * 1024;
+    private static final long defaultGroupCommitIntervalMillis = 5;
+    private static final long reclaimIntervalMillis = 100;
+    private static final long partVersionReservation = 1 << 20;
+    // A new version of a part is written to a file with this suffix until it is published.
+    private static final String unpublishedPartSuffix = ".new";
 
     private final int maxImagePartWidth;
     private final int maxImagePartHeight;
     private final String imageExtension;
     final private String workingDirectory;
-    final private AtomicInteger imageCount = new AtomicInteger();
-    final private List<LargeImage> imageList = Collections.synchronizedList(new ArrayList<>());
-    final private List<ReadWriteLock> imageLocks = Collections.synchronizedList(new ArrayList<>());
+    final private ImageRegistry images = new ImageRegistry();
+    final private SingleFlight<SubImageKey> subImageFlights = new SingleFlight<>();
+    final private PartCache partCache;
+    final private RegistryLog registryLog;
+    final private MetricsRegistry metrics;
+    final private Executor ioExecutor;
+    // Null unless draws are written behind, see WriteBehindBuffer.
+    final private WriteBehindBuffer writeBehind;
+    final private Durability durability;
+    // Null unless the durability is GROUP.
+    final private GroupCommit groupCommit;
+    final private VersionReclaimer reclaimer;
+    // Versions of parts are unique among all parts, see WriteBehindBuffer. They are reserved in blocks
+    // in the registry log, so a restart continues above them without knowing the versions of the parts.
+    final private AtomicLong lastPartVersion = new AtomicLong();
+    private volatile long reservedPartVersions = 0;
+    // Draws are told apart in the write-ahead log, which is emptied on every start.
+    final private AtomicLong lastDraw = new AtomicLong();
+    private final Histogram encodeTime;
+    private final Histogram decodeTime;
+    private final Histogram partReadBytes;
+    private final Histogram partWrittenBytes;
+    private final Histogram snapshotHoldTime;
+    private final Histogram writeLockWaitTime;
+    private final Histogram writeLockHoldTime;
+    private final Histogram imageLockWaitTime;
+    private final Histogram imageLockHoldTime;
+    private final LongAdder unrestoredSubImages;
+    private final Histogram levelUpdateTime;
+    private final Histogram levelLockWaitTime;
+    private final Histogram levelLockHoldTime;
+    private final Histogram commitTime;
+    private final LongAdder forcedFiles;
+
+    private static class SubImageKey {
+
+        private final int imageId;
+        private final int level;
+        private final int x;
+        private final int y;
+        private final int width;
+        private final int height;
+        private final long version;
+
+        public SubImageKey(int imageId, int level, int x, int y, int width, int height, long version) {
+            this.imageId = imageId;
+            this.level = level;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SubImageKey)) {
+                return false;
+            }
+            SubImageKey other = (SubImageKey) o;
+            return imageId == other.imageId && level == other.level && x == other.x && y == other.y &&
+                    width == other.width && height == other.height && version == other.version;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(imageId, level, x, y, width, height, version);
+        }
+    }
 
     private String getImageDirectoryPath(int imageId) {
         return workingDirectory + "/" + imageId;
     }
 
-    private String getImagePartPath(int imageId, int imagePart) {
-        return workingDirectory + "/" + imageId + "/" + imagePart + "." + imageExtension;
+    // Parts of the image itself are kept in its directory, parts of its levels in subdirectories.
+    private String getLevelDirectoryPath(int imageId, LargeImage image) {
+        return image.getLevel() == 0 ? getImageDirectoryPath(imageId) :
+                getImageDirectoryPath(imageId) + "/" + levelDirectoryPrefix + image.getLevel();
+    }
+
+    private String getImagePartPath(int imageId, LargeImage image, int partIndex, long version) {
+        return getLevelDirectoryPath(imageId, image) + "/" + partIndex + "." + version + "." + imageExtension;
+    }
+
+    private String getImageMetadataPath(int imageId) {
+        return workingDirectory + "/" + imageId + "/" + imageMetadataName;
+    }
+
+    private void writeImageMetadata(int imageId, LargeImage image) throws IOException {
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(getImageMetadataPath(imageId)))) {
+            image.write(output);
+        }
+    }
+
+    // Only used when the working directory has no registry log yet, e.g. when it was lost.
+    private Map<Integer, LargeImage> readImageMetadata() throws IOException {
+        Map<Integer, LargeImage> images = new TreeMap<>();
+        File[] imageDirectories = new File(workingDirectory).listFiles(File::isDirectory);
+
+        for (File imageDirectory : Objects.requireNonNull(imageDirectories)) {
+            int imageId;
+            try {
+                imageId = Integer.parseInt(imageDirectory.getName());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+
+            File imageMetadata = new File(getImageMetadataPath(imageId));
+            if (imageId >= 0 && imageMetadata.isFile()) {
+                try (DataInputStream input = new DataInputStream(new FileInputStream(imageMetadata))) {
+                    images.put(imageId, LargeImage.read(input));
+                }
+            }
+        }
+        return images;
+    }
+
+    // The part index and version of a part file, null if it is not one. Files without
+    // a version were stored before parts had versions.
+    private static long[] parsePartFileName(String partFileName, String partFileSuffix) {
+        String[] fields = partFileName.substring(0, partFileName.length() - partFileSuffix.length())
+                .split("\\.", -1);
+        if (fields.length > 2) {
+            return null;
+        }
+        try {
+            long[] part = {Integer.parseInt(fields[0]), fields.length == 2 ? Long.parseLong(fields[1]) : 0};
+            return part[1] < 0 ? null : part;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Parts that have a file were drawn on, see ImagePartFile.openForReading. A part has files of several
+    // versions if the older ones were not reclaimed before a restart. The latest published version becomes
+    // the current one and the other files are deleted, along with those of versions a restart cut short
+    // before they were published, see publishPartFiles. Images are loaded the first time they are used, see getImage, so startup does
+    // not scan their directories. An image deleted meanwhile is not loaded, its files may be gone.
+    private void loadParts(int imageId, LargeImage image) throws IOException {
+        synchronized (image) {
+            if (image.arePartsLoaded()) {
+                return;
+            }
+            long pinnedEpoch = reclaimer.pin();
+            try {
+                if (images.get(imageId) == image) {
+                    loadPartFiles(imageId, image);
+                    image.setPartsLoaded();
+                }
+            } finally {
+                reclaimer.unpin(pinnedEpoch);
+            }
+        }
+    }
+
+    private void loadPartFiles(int imageId, LargeImage image) throws IOException {
+        String partFileSuffix = "." + imageExtension;
+        for (int level = 0; level < image.getNumberOfLevels(); level++) {
+            LargeImage levelImage = image.getLevel(level);
+            File levelDirectory = new File(getLevelDirectoryPath(imageId, levelImage));
+            File[] unpublishedFiles = levelDirectory.listFiles((directory, name) ->
+                    name.endsWith(partFileSuffix + unpublishedPartSuffix));
+            if (unpublishedFiles == null) {
+                continue;
+            }
+            for (File unpublishedFile : unpublishedFiles) {
+                Files.deleteIfExists(unpublishedFile.toPath());
+            }
+            File[] partFiles = Objects.requireNonNull(levelDirectory.listFiles((directory, name) ->
+                    name.endsWith(partFileSuffix)));
+
+            // The latest published version of every part, -1 for parts without files.
+            long[] versions = new long[levelImage.getNumberOfParts()];
+            Arrays.fill(versions, -1);
+            for (File partFile : partFiles) {
+                long[] part = parsePartFileName(partFile.getName(), partFileSuffix);
+                if (part == null || part[0] < 0 || part[0] >= levelImage.getNumberOfParts()) {
+                    continue;
+                }
+                versions[(int) part[0]] = max(versions[(int) part[0]], part[1]);
+            }
+
+            for (File partFile : partFiles) {
+                long[] part = parsePartFileName(partFile.getName(), partFileSuffix);
+                if (part == null || part[0] < 0 || part[0] >= levelImage.getNumberOfParts()) {
+                    continue;
+                }
+                int partIndex = (int) part[0];
+                long version = versions[partIndex];
+                if (part[1] != version) {
+                    Files.deleteIfExists(partFile.toPath());
+                    continue;
+                }
+
+                if (version == 0) {
+                    version = 1;
+                    Files.move(partFile.toPath(), Path.of(getImagePartPath(imageId, levelImage, partIndex, version)),
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+                levelImage.setPartVersion(partIndex, version);
+                lastPartVersion.accumulateAndGet(version, Math::max);
+                levelImage.markCovered(levelImage.getPartColumnOfIndex(partIndex),
+                        levelImage.getPartRowOfIndex(partIndex));
+            }
+        }
+    }
+
+    private void loadImages() throws IOException {
+        Map<Integer, LargeImage> loadedImages = registryLog.load();
+        int nextImageId = registryLog.getNextImageId();
+
+        if (loadedImages == null) {
+            loadedImages = readImageMetadata();
+            for (int imageId : loadedImages.keySet()) {
+                nextImageId = max(nextImageId, imageId + 1);
+            }
+        } else {
+            deleteUnregisteredImages(loadedImages.keySet());
+        }
+        registryLog.open(loadedImages);
+
+        for (Map.Entry<Integer, LargeImage> image : loadedImages.entrySet()) {
+            images.put(image.getKey(), image.getValue());
+        }
+        images.setNextImageId(nextImageId);
+
+        // Logs written before versions were reserved only know the versions of parts from their files,
+        // so those are loaded now. The directories of levels are also created for images stored before
+        // levels were added.
+        if (registryLog.getReservedPartVersions() == 0) {
+            for (Map.Entry<Integer, LargeImage> image : loadedImages.entrySet()) {
+                for (int level = 0; level < image.getValue().getNumberOfLevels(); level++) {
+                    new File(getLevelDirectoryPath(image.getKey(), image.getValue().getLevel(level))).mkdirs();
+                }
+                loadParts(image.getKey(), image.getValue());
+            }
+        }
+        lastPartVersion.accumulateAndGet(registryLog.getReservedPartVersions(), Math::max);
+        reservedPartVersions = lastPartVersion.get();
+    }
+
+    // The files of a deleted image are deleted once no reader uses them, see deleteImage, so a crash
+    // may leave them after the image was removed from the registry log.
+    private void deleteUnregisteredImages(Set<Integer> imageIds) throws IOException {
+        File[] imageDirectories = new File(workingDirectory).listFiles(File::isDirectory);
+        if (imageDirectories == null) {
+            return;
+        }
+        for (File imageDirectory : imageDirectories) {
+            int imageId;
+            try {
+                imageId = Integer.parseInt(imageDirectory.getName());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (imageId >= 0 && imageDirectory.getName().equals(Integer.toString(imageId)) &&
+                    !imageIds.contains(imageId)) {
+                FileUtils.deleteDirectory(imageDirectory);
+            }
+        }
+    }
+
+    // Versions are handed out once the registry log reserved them, so none is reused after a crash.
+    private long nextPartVersion() throws IOException {
+        long version = lastPartVersion.incrementAndGet();
+        if (version > reservedPartVersions) {
+            reservePartVersions(version);
+        }
+        return version;
+    }
+
+    private synchronized void reservePartVersions(long version) throws IOException {
+        if (version > reservedPartVersions) {
+            registryLog.appendReserve(version + partVersionReservation);
+            reservedPartVersions = version + partVersionReservation;
+        }
+    }
+
+    // Slices of a row buffer, laid out from x, that hold the bytes of the region columns
+    // [regionX, regionX + regionWidth) falling into each of the part columns firstColumn..lastColumn.
+    private static ByteBuffer[] getPartRowBuffers(LargeImage image, byte[] row, int x,
+                                                  int regionX, int regionWidth, int firstColumn, int lastColumn) {
+        ByteBuffer[] partRowBuffers = new ByteBuffer[lastColumn - firstColumn + 1];
+        for (int column = firstColumn; column <= lastColumn; column++) {
+            int partRegionX = max(regionX, image.getPartX(column));
+            int partRegionWidth = min(regionX + regionWidth,
+                    image.getPartX(column) + image.getPartWidth(column)) - partRegionX;
+            partRowBuffers[column - firstColumn] = ByteBuffer.wrap(row, (partRegionX - x) * 3,
+                    partRegionWidth * 3).slice();
+        }
+        return partRowBuffers;
+    }
+
+    // Returns the time the lock was acquired at, to be passed to unlock.
+    private static long lock(RegionLock lock, Histogram waitTime, RequestTiming timing) {
+        long start = System.nanoTime();
+        lock.lock();
+        long lockedAt = System.nanoTime();
+        waitTime.record(lockedAt - start);
+        timing.stop(Phase.LOCK, start);
+        return lockedAt;
+    }
+
+    private static void unlock(RegionLock lock, Histogram holdTime, long lockedAt) {
+        lock.unlock();
+        holdTime.record(System.nanoTime() - lockedAt);
+    }
+
+    // Records how many bytes were transferred from or to each part of a part row.
+    private static void recordPartBytes(Histogram partBytes, ByteBuffer[] partRowBuffers, int rows) {
+        if (rows == 0) {
+            return;
+        }
+        for (ByteBuffer partRowBuffer : partRowBuffers) {
+            partBytes.record((long) partRowBuffer.capacity() * rows);
+        }
+    }
+
+    // Reads a row of the region starting at regionX from the opened parts of its part row.
+    private static void readPartRow(LargeImage image, ImagePartFile[] imageParts, ByteBuffer[] partRowBuffers,
+                                    int regionX, int firstColumn, int row) throws IOException {
+        for (int i = 0; i < imageParts.length; i++) {
+            int partX = image.getPartX(firstColumn + i);
+            partRowBuffers[i].clear();
+            imageParts[i].readRow(partRowBuffers[i], max(regionX, partX) - partX,
+                    row - image.getPartY(image.getPartRow(row)));
+        }
+    }
+
+    private static void writePartRow(LargeImage image, ImagePartFile[] imageParts, ByteBuffer[] partRowBuffers,
+                                     int regionX, int firstColumn, int row) throws IOException {
+        for (int i = 0; i < imageParts.length; i++) {
+            int partX = image.getPartX(firstColumn + i);
+            partRowBuffers[i].clear();
+            imageParts[i].writeRow(partRowBuffers[i], max(regionX, partX) - partX,
+                    row - image.getPartY(image.getPartRow(row)));
+        }
+    }
+
+    private void registerGauges() {
+        metrics.gauge("images.live", images::size);
+        metrics.gauge("cache.hits", partCache::getHits);
+        metrics.gauge("cache.misses", partCache::getMisses);
+        metrics.gauge("cache.hit_rate_percent", () -> {
+            long hits = partCache.getHits();
+            long requests = hits + partCache.getMisses();
+            return requests == 0 ? 0 : hits * 100 / requests;
+        });
+        metrics.gauge("cache.size_bytes", partCache::getSize);
+        metrics.gauge("cache.capacity_bytes", partCache::getCapacity);
+        metrics.gauge("subimage.reads", subImageFlights::getComputations);
+        metrics.gauge("subimage.shared_reads", subImageFlights::getSharedResults);
+    }
+
+    // A version of a part is never written to once it is published, and is only deleted once no reader
+    // that took it is left, so it is read without locks.
+    private ImagePartFile openPartForReading(int imageId, LargeImage image, int partIndex,
+                                             long version) throws IOException {
+        int partKey = image.getPartKey(partIndex);
+        if (writeBehind != null) {
+            ByteBuffer dirtyPart = writeBehind.get(version);
+            if (dirtyPart != null) {
+                return ImagePartFile.openCached(dirtyPart);
+            }
+        }
+        ByteBuffer cachedPart = partCache.get(imageId, partKey, version);
+        if (cachedPart != null) {
+            return ImagePartFile.openCached(cachedPart);
+        }
+
+        ImagePartFile imagePart = ImagePartFile.openForReading(getImagePartPath(imageId, image, partIndex, version));
+        if (!imagePart.exists() || !partCache.fits(imagePart.getHeader().getImageSize())) {
+            return imagePart;
+        }
+
+        try (imagePart) {
+            ByteBuffer partContent = imagePart.readContent();
+            partCache.put(imageId, partKey, version, partContent);
+            return ImagePartFile.openCached(partContent);
+        }
+    }
+
+    // Opens the versions of the parts of one part row that are not open yet. Parts that were never drawn on
+    // are read as black without touching the disk. Of the others the first is opened by the calling thread
+    // and the rest in ioExecutor, so the disk reads of cache misses overlap.
+    private void openPartRowForReading(int imageId, LargeImage image, long[] partVersions, int partRow,
+                                       int firstColumn, ImagePartFile[] imageParts) throws IOException {
+        List<FutureTask<ImagePartFile>> openTasks = new ArrayList<>();
+        int firstCovered = -1;
+        for (int i = 0; i < imageParts.length; i++) {
+            int partIndex = image.getPartIndex(firstColumn + i, partRow);
+            if (imageParts[i] != null) {
+                openTasks.add(null);
+            } else if (partVersions[partIndex] == 0) {
+                imageParts[i] = ImagePartFile.openBlack();
+                openTasks.add(null);
+            } else if (firstCovered == -1) {
+                firstCovered = i;
+                openTasks.add(null);
+            } else {
+                FutureTask<ImagePartFile> openTask = new FutureTask<>(() ->
+                        openPartForReading(imageId, image, partIndex, partVersions[partIndex]));
+                ioExecutor.execute(openTask);
+                openTasks.add(openTask);
+            }
+        }
+
+        Throwable failure = null;
+        if (firstCovered != -1) {
+            try {
+                int partIndex = image.getPartIndex(firstColumn + firstCovered, partRow);
+                imageParts[firstCovered] = openPartForReading(imageId, image, partIndex, partVersions[partIndex]);
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+            }
+        }
+        for (int i = 0; i < imageParts.length; i++) {
+            if (openTasks.get(i) == null) {
+                continue;
+            }
+            try {
+                imageParts[i] = getUninterruptibly(openTasks.get(i));
+            } catch (ExecutionException e) {
+                failure = failure != null ? failure : e.getCause();
+            }
+        }
+
+        if (failure != null) {
+            ImagePartFile.closeAll(imageParts);
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            throw failure instanceof RuntimeException ? (RuntimeException) failure : new RuntimeException(failure);
+        }
+    }
+
+    // The opened part has to be closed even if the waiting thread is interrupted.
+    private static <T> T getUninterruptibly(FutureTask<T> task) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     public ImageHandler(String workingDirectory, int maxImagePartWidth,
-                        int maxImagePartHeight, String imageExtension) {
+                        int maxImagePartHeight, String imageExtension) throws IOException {
+        this(workingDirectory, maxImagePartWidth, maxImagePartHeight, imageExtension, defaultPartCacheCapacity);
+    }
+
+    public ImageHandler(String workingDirectory, int maxImagePartWidth,
+                        int maxImagePartHeight, String imageExtension, long partCacheCapacity) throws IOException {
+        this(workingDirectory, maxImagePartWidth, maxImagePartHeight, imageExtension, partCacheCapacity,
+                new MetricsRegistry());
+    }
+
+    public ImageHandler(String workingDirectory, int maxImagePartWidth, int maxImagePartHeight,
+                        String imageExtension, long partCacheCapacity, MetricsRegistry metrics) throws IOException {
+        this(workingDirectory, maxImagePartWidth, maxImagePartHeight, imageExtension, partCacheCapacity,
+                metrics, Runnable::run);
+    }
+
+    // ioExecutor runs blocking disk reads, see openPartRowForReading.
+    public ImageHandler(String workingDirectory, int maxImagePartWidth, int maxImagePartHeight,
+                        String imageExtension, long partCacheCapacity, MetricsRegistry metrics,
+                        Executor ioExecutor) throws IOException {
+        this(workingDirectory, maxImagePartWidth, maxImagePartHeight, imageExtension, partCacheCapacity,
+                metrics, ioExecutor, 0, 0);
+    }
+
+    // Draws are written behind if maxDirtyBytes is positive, see WriteBehindBuffer. The write-ahead log
+    // is then forced by every draw.
+    public ImageHandler(String workingDirectory, int maxImagePartWidth, int maxImagePartHeight,
+                        String imageExtension, long partCacheCapacity, MetricsRegistry metrics,
+                        Executor ioExecutor, long maxDirtyBytes, long flushIntervalMillis) throws IOException {
+        this(workingDirectory, maxImagePartWidth, maxImagePartHeight, imageExtension, partCacheCapacity,
+                metrics, ioExecutor, maxDirtyBytes, flushIntervalMillis,
+                maxDirtyBytes > 0 ? Durability.SYNC : Durability.NONE, defaultGroupCommitIntervalMillis);
+    }
+
+    // The durability decides what a draw forces to disk before it is acknowledged, groupCommitIntervalMillis
+    // bounds the time a draw waits for others to be forced with in the GROUP mode.
+    public ImageHandler(String workingDirectory, int maxImagePartWidth, int maxImagePartHeight,
+                        String imageExtension, long partCacheCapacity, MetricsRegistry metrics,
+                        Executor ioExecutor, long maxDirtyBytes, long flushIntervalMillis,
+                        Durability durability, long groupCommitIntervalMillis) throws IOException {
         File directory = new File(workingDirectory);
 
         if (!directory.isDirectory()) {
@@ -52,101 +561,1167 @@ public class ImageHandler {
         this.maxImagePartWidth = maxImagePartWidth;
         this.maxImagePartHeight = maxImagePartHeight;
         this.imageExtension = imageExtension;
+        this.partCache = new PartCache(partCacheCapacity);
+        this.registryLog = new RegistryLog(Path.of(this.workingDirectory, registryLogName));
+        this.metrics = metrics;
+        this.ioExecutor = ioExecutor;
+        this.encodeTime = metrics.histogram("image.encode_ns");
+        this.decodeTime = metrics.histogram("image.decode_ns");
+        this.partReadBytes = metrics.histogram("part.read_bytes");
+        this.partWrittenBytes = metrics.histogram("part.written_bytes");
+        this.snapshotHoldTime = metrics.histogram("versions.snapshot_hold_ns");
+        this.writeLockWaitTime = metrics.histogram("lock.region_write.wait_ns");
+        this.writeLockHoldTime = metrics.histogram("lock.region_write.hold_ns");
+        this.imageLockWaitTime = metrics.histogram("lock.image.wait_ns");
+        this.imageLockHoldTime = metrics.histogram("lock.image.hold_ns");
+        this.unrestoredSubImages = metrics.counter("subimage.unrestored_reads");
+        this.levelUpdateTime = metrics.histogram("image.level_update_ns");
+        this.levelLockWaitTime = metrics.histogram("lock.level_update.wait_ns");
+        this.levelLockHoldTime = metrics.histogram("lock.level_update.hold_ns");
+        this.durability = durability;
+        this.commitTime = metrics.histogram("durability." + durability.getName() + ".commit_ns");
+        this.forcedFiles = metrics.counter("durability.sync.forces");
+        this.reclaimer = new VersionReclaimer(reclaimIntervalMillis, metrics);
+        loadImages();
+
+        WriteAheadLog writeAheadLog = new WriteAheadLog(Path.of(this.workingDirectory, writeAheadLogDirectoryName));
+        recoverWriteAheadLog(writeAheadLog);
+        if (maxDirtyBytes > 0) {
+            writeAheadLog.open();
+            this.writeBehind = new WriteBehindBuffer(writeAheadLog, maxDirtyBytes, flushIntervalMillis,
+                    this::flushDirtyPart, metrics);
+        } else {
+            this.writeBehind = null;
+        }
+        this.groupCommit = durability == Durability.GROUP ?
+                new GroupCommit(groupCommitIntervalMillis, metrics) : null;
+        registerGauges();
+    }
+
+    // Applies the rows of draws that were acknowledged but maybe not flushed before a crash, see
+    // WriteBehindBuffer. The log is replayed even if draws are not written behind anymore.
+    private void recoverWriteAheadLog(WriteAheadLog writeAheadLog) throws IOException {
+        Map<String, ImagePartFile> recoveredParts = new HashMap<>();
+        try {
+            long records = writeAheadLog.replay((imageId, level, partIndex, x, y, row) -> {
+                LargeImage image = images.get(imageId);
+                // The image was deleted after the draw.
+                if (image == null || level < 0 || level >= image.getNumberOfLevels() ||
+                        partIndex < 0 || partIndex >= image.getLevel(level).getNumberOfParts()) {
+                    return;
+                }
+                loadParts(imageId, image);
+
+                // Nothing reads the images yet, so the rows are written to the current versions of the parts.
+                LargeImage levelImage = image.getLevel(level);
+                long version = levelImage.getPartVersions()[partIndex];
+                if (version == 0) {
+                    version = nextPartVersion();
+                    levelImage.setPartVersion(partIndex, version);
+                }
+                String path = getImagePartPath(imageId, levelImage, partIndex, version);
+                ImagePartFile part = recoveredParts.get(path);
+                if (part == null) {
+                    int column = levelImage.getPartColumnOfIndex(partIndex);
+                    int partRow = levelImage.getPartRowOfIndex(partIndex);
+                    levelImage.markCovered(column, partRow);
+                    part = ImagePartFile.openForWriting(path, levelImage.getPartWidth(column),
+                            levelImage.getPartHeight(partRow), null);
+                    recoveredParts.put(path, part);
+                }
+                part.writeRow(row, x, y);
+            });
+            Set<String> recoveredDirectories = new HashSet<>();
+            for (Map.Entry<String, ImagePartFile> part : recoveredParts.entrySet()) {
+                part.getValue().force();
+                recoveredDirectories.add(Path.of(part.getKey()).getParent().toString());
+            }
+            // The log is deleted next, so the files created from it have to stay too.
+            for (String directory : recoveredDirectories) {
+                ImagePartFile.forceDirectory(directory);
+            }
+            metrics.counter("wal.replayed_records").add(records);
+        } finally {
+            for (ImagePartFile part : recoveredParts.values()) {
+                part.close();
+            }
+        }
+        writeAheadLog.deleteSegmentsBefore(Long.MAX_VALUE);
+    }
+
+    // Writes the current version of a dirty part under the read lock of the part, so that it is not drawn
+    // on meanwhile. The written version stays in the part cache, and the versions it replaced are retired.
+    private boolean flushDirtyPart(WriteBehindBuffer.DirtyPart dirtyPart) throws IOException {
+        int imageId = dirtyPart.getImageId();
+        LargeImage image = dirtyPart.getImage();
+        int partIndex = dirtyPart.getPartIndex();
+        int column = image.getPartColumnOfIndex(partIndex);
+        int row = image.getPartRowOfIndex(partIndex);
+        RegionLock partLock = image.getLocks().getRegionReadLock(image, column, column, row, row);
+        partLock.lock();
+        try {
+            // The dirty parts of a deleted image are dropped once nothing reads them.
+            LargeImage baseImage = images.get(imageId);
+            if (baseImage == null || baseImage.getLevel(image.getLevel()) != image) {
+                return false;
+            }
+            WriteBehindBuffer.DirtyPart part = writeBehind.getPart(image.getPartVersions()[partIndex]);
+            if (part == null) {
+                return false;
+            }
+
+            String path = getImagePartPath(imageId, image, partIndex, part.getVersion());
+            ImagePartFile.writeContent(path + unpublishedPartSuffix, part.getContent());
+            ImagePartFile.publish(path + unpublishedPartSuffix, path, false);
+            // The segments of the log with the rows of the part are deleted once it is written.
+            ImagePartFile.forceDirectory(getLevelDirectoryPath(imageId, image));
+            partWrittenBytes.record(part.getContent().capacity());
+            partCache.put(imageId, image.getPartKey(partIndex), part.getVersion(), part.getContent());
+            writeBehind.remove(part.getVersion());
+            List<Long> olderVersions = writeBehind.supersedeOlderVersions(part);
+            reclaimer.retire(() -> {
+                for (long version : olderVersions) {
+                    deletePartVersion(imageId, image, partIndex, version);
+                }
+            });
+            return true;
+        } finally {
+            partLock.unlock();
+        }
+    }
+
+    // Deletes a version of a part that is not current anymore, or was never published.
+    private void deletePartVersion(int imageId, LargeImage image, int partIndex, long version) throws IOException {
+        if (version == 0) {
+            return;
+        }
+        partCache.invalidate(imageId, image.getPartKey(partIndex), version);
+        if (writeBehind != null) {
+            writeBehind.remove(version);
+        }
+        String path = getImagePartPath(imageId, image, partIndex, version);
+        Files.deleteIfExists(Path.of(path));
+        Files.deleteIfExists(Path.of(path + unpublishedPartSuffix));
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    private byte[] readSubImage(int imageId, int level, int x, int y, int width, int height,
+                                RequestTiming timing) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IncorrectImageRegionException();
+        }
+
+        ByteArrayOutputStream byteArrayOutputStream =
+                new ByteArrayOutputStream((int) min(getSubImageSize(width, height), Integer.MAX_VALUE - 8));
+        streamSubImage(imageId, level, x, y, width, height, byteArrayOutputStream, timing);
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private boolean isShared(int width, int height) {
+        return width > 0 && height > 0 && getSubImageSize(width, height) <= maxSharedSubImageSize;
     }
 
     public byte[] getSubImage(int imageId, int x, int y, int width, int height) throws IOException {
-        if (imageId < 0 || imageId >= imageCount.get() || imageList.get(imageId) == null) {
+        return getSubImage(imageId, 0, x, y, width, height, RequestTiming.disabled);
+    }
+
+    public byte[] getSubImage(int imageId, int level, int x, int y, int width, int height) throws IOException {
+        return getSubImage(imageId, level, x, y, width, height, RequestTiming.disabled);
+    }
+
+    // Identical concurrent requests of a small sub-image share a single read of it. A draw changes
+    // the version of the image, so requests made after it completes do not get a result read before.
+    public byte[] getSubImage(int imageId, int level, int x, int y, int width, int height,
+                              RequestTiming timing) throws IOException {
+        if (!isShared(width, height)) {
+            return readSubImage(imageId, level, x, y, width, height, timing);
+        }
+
+        LargeImage image = getLevel(getImage(imageId), level);
+        SubImageKey key = new SubImageKey(imageId, level, x, y, width, height, image.getVersion());
+        return subImageFlights.run(key, () -> readSubImage(imageId, level, x, y, width, height, timing));
+    }
+
+    public int getNumberOfLevels(int imageId) throws IOException {
+        return getImage(imageId).getNumberOfLevels();
+    }
+
+    private LargeImage getImage(int imageId) throws IOException {
+        LargeImage image = images.get(imageId);
+        if (image == null) {
             throw new IncorrectImageIdException();
         }
+        if (!image.arePartsLoaded()) {
+            loadParts(imageId, image);
+        }
+        return image;
+    }
+
+    // A level that does not exist is treated like a region outside of the image.
+    private static LargeImage getLevel(LargeImage image, int level) {
+        if (level < 0 || level >= image.getNumberOfLevels()) {
+            throw new IncorrectImageRegionException();
+        }
+        return image.getLevel(level);
+    }
+
+    public long getSubImageSize(int width, int height) {
+        return new BmpHeader(width, height).getImageSize();
+    }
+
+    // Clipped to the image, the part columns of the region and the number of pixels in it.
+    // Reads of regions that were never drawn on do no I/O.
+    private static RequestCost estimateRegionCost(LargeImage image, int x, int y, int width, int height,
+                                                  long rowMemory, long partMemory, boolean read) {
+        int regionX = max(x, 0);
+        int regionY = max(y, 0);
+        long regionWidth = min((long) x + width, image.getImageWidth()) - regionX;
+        long regionHeight = min((long) y + height, image.getImageHeight()) - regionY;
+        if (width <= 0 || height <= 0 || regionWidth <= 0 || regionHeight <= 0) {
+            return RequestCost.none;
+        }
+
+        int firstColumn = image.getPartColumn(regionX);
+        int lastColumn = image.getPartColumn(regionX + (int) regionWidth - 1);
+        if (read && !image.isAnyCovered(firstColumn, lastColumn, image.getPartRow(regionY),
+                image.getPartRow(regionY + (int) regionHeight - 1))) {
+            return new RequestCost(rowMemory, 0);
+        }
+
+        int columns = lastColumn - firstColumn + 1;
+        return new RequestCost(rowMemory + columns * partMemory, regionWidth * regionHeight * 3);
+    }
+
+    public RequestCost estimateSubImageCost(int imageId, int x, int y, int width, int height) throws IOException {
+        return estimateSubImageCost(imageId, 0, x, y, width, height);
+    }
+
+    // Reading a region fills the part cache with the whole files of the parts in one part row at a time.
+    public RequestCost estimateSubImageCost(int imageId, int level, int x, int y, int width, int height)
+            throws IOException {
+        LargeImage image = getLevel(getImage(imageId), level);
+
+        long partSize = new BmpHeader(min(maxImagePartWidth, image.getImageWidth()),
+                min(maxImagePartHeight, image.getImageHeight())).getImageSize();
+        long rowMemory = BmpHeader.getRowStride(max(width, 0));
+        if (isShared(width, height)) {
+            rowMemory += getSubImageSize(width, height);
+        }
+        return estimateRegionCost(image, x, y, width, height, rowMemory,
+                partCache.fits(partSize) ? partSize : 0, true);
+    }
+
+    // Drawing only keeps the part of a row of the source image that is inside the image in memory. Updating
+    // the levels of the image then reads the drawn region from each level and writes a quarter of it to the next one.
+    public RequestCost estimateDrawImageCost(int imageId, int x, int y, int width, int height)
+            throws IOException {
+        LargeImage image = getImage(imageId);
+
+        long rowMemory = max(0, min((long) x + width, image.getImageWidth()) - max(x, 0)) * 3;
+        RequestCost cost = estimateRegionCost(image, x, y, width, height, rowMemory, 0, false);
+        return new RequestCost(cost.getMemoryBytes(), addLevelUpdateBytes(image, cost.getIoBytes()));
+    }
+
+    // A batch draw keeps the fragments and their decoded pixels in memory, with the drawn box of one part.
+    // The parts are read around the fragments and written once, then the levels are updated.
+    public RequestCost estimateDrawImagesCost(int imageId, long fragmentBytes) throws IOException {
+        LargeImage image = getImage(imageId);
+
+        long partSize = new BmpHeader(min(maxImagePartWidth, image.getImageWidth()),
+                min(maxImagePartHeight, image.getImageHeight())).getImageSize();
+        return new RequestCost(2 * fragmentBytes + partSize, addLevelUpdateBytes(image, 2 * fragmentBytes));
+    }
+
+    private static long addLevelUpdateBytes(LargeImage image, long drawnBytes) {
+        long ioBytes = drawnBytes;
+        long levelBytes = drawnBytes;
+        for (int level = 1; level < image.getNumberOfLevels(); level++) {
+            ioBytes += levelBytes + levelBytes / 4;
+            levelBytes /= 4;
+        }
+        return ioBytes;
+    }
+
+    public void writeSubImage(int imageId, int x, int y, int width, int height,
+                              OutputStream outputStream) throws IOException {
+        writeSubImage(imageId, x, y, width, height, outputStream, RequestTiming.disabled);
+    }
+
+    public void writeSubImage(int imageId, int x, int y, int width, int height,
+                              OutputStream outputStream, RequestTiming timing) throws IOException {
+        writeSubImage(imageId, 0, x, y, width, height, outputStream, timing);
+    }
+
+    // Level 0 is the image itself, the coordinates and size of a region of another level
+    // are in the pixels of that level.
+    public void writeSubImage(int imageId, int level, int x, int y, int width, int height,
+                              OutputStream outputStream, RequestTiming timing) throws IOException {
+        if (!isShared(width, height)) {
+            streamSubImage(imageId, level, x, y, width, height, outputStream, timing);
+            return;
+        }
+
+        byte[] subImage = getSubImage(imageId, level, x, y, width, height, timing);
+        long sendStart = timing.start();
+        outputStream.write(subImage);
+        timing.stop(Phase.SEND, sendStart);
+    }
+
+    // Reads take no locks. A read pins the versions of the parts it starts with and reads those however
+    // long it takes, while draws write new versions next to them, see VersionReclaimer.
+    private void streamSubImage(int imageId, int level, int x, int y, int width, int height,
+                                OutputStream outputStream, RequestTiming timing) throws IOException {
+        LargeImage baseImage = getImage(imageId);
+        LargeImage image = getLevel(baseImage, level);
 
         int regionX = max(x, 0);
         int regionY = max(y, 0);
         int regionWidth = min(width, width + x);
         int regionHeight = min(height, height + y);
 
-        LargeImage image = imageList.get(imageId);
         int sourceSubImageWidth = min(image.getImageWidth() - regionX, regionWidth);
         int sourceSubImageHeight = min(image.getImageHeight() - regionY, regionHeight);
-        int subImageX = 0;
-        int subImageY = 0;
-        if (x < 0) {
-            subImageX = -x;
+
+        if (sourceSubImageWidth <= 0 || sourceSubImageHeight <= 0) {
+            throw new IncorrectImageRegionException();
         }
-        if (y < 0) {
-            subImageY = -y;
+
+        // Only building the header and the rows is counted as encoding, not opening the parts or sending.
+        long encodeStart = System.nanoTime();
+        BmpHeader subImageHeader = new BmpHeader(width, height);
+        byte[] subImageHeaderBytes = subImageHeader.toByteArray();
+        long encodeNanos = System.nanoTime() - encodeStart;
+        byte[] subImageRow = new byte[subImageHeader.getRowStride()];
+
+        int firstColumn = image.getPartColumn(regionX);
+        int lastColumn = image.getPartColumn(regionX + sourceSubImageWidth - 1);
+        // Coverage is only ever added to and a draw adds it before writing, so a region
+        // that is not covered now reads as black without pinning any versions.
+        if (!image.isAnyCovered(firstColumn, lastColumn, image.getPartRow(regionY),
+                image.getPartRow(regionY + sourceSubImageHeight - 1))) {
+            writeBlackSubImage(subImageHeaderBytes, height, subImageRow, outputStream, timing);
+            unrestoredSubImages.increment();
+            encodeTime.record(encodeNanos);
+            return;
         }
+        ByteBuffer[] partRowBuffers = getPartRowBuffers(image, subImageRow, x,
+                regionX, sourceSubImageWidth, firstColumn, lastColumn);
+        ImagePartFile[] imageParts = new ImagePartFile[lastColumn - firstColumn + 1];
+        int partRow = -1;
+        int partRowRows = 0;
 
-        if (sourceSubImageWidth <= 0 || sourceSubImageHeight <= 0) {
+        long pinnedEpoch = reclaimer.pin();
+        long pinnedAt = System.nanoTime();
+        try {
+            if (images.get(imageId) != baseImage) {
+                throw new IncorrectImageIdException();
+            }
+            long[] partVersions = image.getPartVersions();
+
+            long sendStart = timing.start();
+            outputStream.write(subImageHeaderBytes);
+            timing.stop(Phase.SEND, sendStart);
+
+            for (int row = y + height - 1; row >= y; row--) {
+                if (row < regionY || row >= regionY + sourceSubImageHeight) {
+                    Arrays.fill(subImageRow, (byte) 0);
+                    sendStart = timing.start();
+                    outputStream.write(subImageRow);
+                    timing.stop(Phase.SEND, sendStart);
+                    continue;
+                }
+
+                if (image.getPartRow(row) != partRow) {
+                    partRow = image.getPartRow(row);
+                    ImagePartFile.closeAll(imageParts);
+                    recordPartBytes(partReadBytes, partRowBuffers, partRowRows);
+                    partRowRows = 0;
+                    long openStart = timing.start();
+                    openPartRowForReading(imageId, image, partVersions, partRow, firstColumn, imageParts);
+                    timing.stop(Phase.OPEN, openStart);
+                }
+
+                long readStart = System.nanoTime();
+                readPartRow(image, imageParts, partRowBuffers, regionX, firstColumn, row);
+                encodeNanos += System.nanoTime() - readStart;
+                timing.stop(Phase.READ, readStart);
+                partRowRows++;
+
+                sendStart = timing.start();
+                outputStream.write(subImageRow);
+                timing.stop(Phase.SEND, sendStart);
+            }
+            encodeTime.record(encodeNanos);
+        } finally {
+            ImagePartFile.closeAll(imageParts);
+            reclaimer.unpin(pinnedEpoch);
+            snapshotHoldTime.record(System.nanoTime() - pinnedAt);
+            recordPartBytes(partReadBytes, partRowBuffers, partRowRows);
+        }
+    }
+
+    // Reads the sub-images of the regions and writes them one after another. All of them are read
+    // from the same versions of the parts, each part is opened once for the whole batch and closed
+    // after the last region that needs it. Nothing is written if any of the regions is incorrect.
+    public void writeSubImages(int imageId, int level, List<ImageRegion> regions,
+                               OutputStream outputStream, RequestTiming timing) throws IOException {
+        LargeImage baseImage = getImage(imageId);
+        LargeImage image = getLevel(baseImage, level);
+        if (regions.isEmpty()) {
             throw new IncorrectImageRegionException();
         }
 
-        BufferedImage subImage = new BufferedImage(width,
-                height, BufferedImage.TYPE_INT_RGB);
-        Graphics subImageGraphics = subImage.createGraphics();
+        int[] lastRegionOfPart = new int[image.getNumberOfParts()];
+        Arrays.fill(lastRegionOfPart, -1);
+        for (int i = 0; i < regions.size(); i++) {
+            ImageRegion region = regions.get(i);
+            int regionX = max(region.getX(), 0);
+            int regionY = max(region.getY(), 0);
+            int regionWidth = min(region.getX() + region.getWidth(), image.getImageWidth()) - regionX;
+            int regionHeight = min(region.getY() + region.getHeight(), image.getImageHeight()) - regionY;
+            if (region.getWidth() <= 0 || region.getHeight() <= 0 || regionWidth <= 0 || regionHeight <= 0) {
+                throw new IncorrectImageRegionException();
+            }
+
+            int regionFirstColumn = image.getPartColumn(regionX);
+            int regionLastColumn = image.getPartColumn(regionX + regionWidth - 1);
+            int regionFirstRow = image.getPartRow(regionY);
+            int regionLastRow = image.getPartRow(regionY + regionHeight - 1);
+            for (int row = regionFirstRow; row <= regionLastRow; row++) {
+                for (int column = regionFirstColumn; column <= regionLastColumn; column++) {
+                    lastRegionOfPart[image.getPartIndex(column, row)] = i;
+                }
+            }
+        }
+
+        ImagePartFile[] openParts = new ImagePartFile[image.getNumberOfParts()];
+        long pinnedEpoch = reclaimer.pin();
+        long pinnedAt = System.nanoTime();
+        try {
+            if (images.get(imageId) != baseImage) {
+                throw new IncorrectImageIdException();
+            }
+            long[] partVersions = image.getPartVersions();
+
+            for (int i = 0; i < regions.size(); i++) {
+                writeBatchedSubImage(imageId, image, partVersions, regions.get(i), openParts, outputStream, timing);
+                for (int partIndex = 0; partIndex < openParts.length; partIndex++) {
+                    if (lastRegionOfPart[partIndex] == i && openParts[partIndex] != null) {
+                        openParts[partIndex].close();
+                        openParts[partIndex] = null;
+                    }
+                }
+            }
+        } finally {
+            ImagePartFile.closeAll(openParts);
+            reclaimer.unpin(pinnedEpoch);
+            snapshotHoldTime.record(System.nanoTime() - pinnedAt);
+        }
+    }
+
+    // Same as streamSubImage, but takes the parts from and leaves them in openParts.
+    private void writeBatchedSubImage(int imageId, LargeImage image, long[] partVersions, ImageRegion region,
+                                      ImagePartFile[] openParts, OutputStream outputStream,
+                                      RequestTiming timing) throws IOException {
+        int x = region.getX();
+        int y = region.getY();
+        int regionX = max(x, 0);
+        int regionY = max(y, 0);
+        int regionWidth = min(x + region.getWidth(), image.getImageWidth()) - regionX;
+        int regionHeight = min(y + region.getHeight(), image.getImageHeight()) - regionY;
 
-        int firstPartIndex = regionY / maxImagePartHeight;
-        int lastPartIndex = (regionY + sourceSubImageHeight - 1) / maxImagePartHeight;
+        long encodeStart = System.nanoTime();
+        BmpHeader subImageHeader = new BmpHeader(region.getWidth(), region.getHeight());
+        byte[] subImageHeaderBytes = subImageHeader.toByteArray();
+        long encodeNanos = System.nanoTime() - encodeStart;
+        byte[] subImageRow = new byte[subImageHeader.getRowStride()];
+        int firstColumn = image.getPartColumn(regionX);
+        int lastColumn = image.getPartColumn(regionX + regionWidth - 1);
+        if (!image.isAnyCovered(firstColumn, lastColumn, image.getPartRow(regionY),
+                image.getPartRow(regionY + regionHeight - 1))) {
+            writeBlackSubImage(subImageHeaderBytes, region.getHeight(), subImageRow, outputStream, timing);
+            unrestoredSubImages.increment();
+            encodeTime.record(encodeNanos);
+            return;
+        }
 
-        imageLocks.get(imageId).readLock().lock();
+        ByteBuffer[] partRowBuffers = getPartRowBuffers(image, subImageRow, x,
+                regionX, regionWidth, firstColumn, lastColumn);
+        ImagePartFile[] imageParts = new ImagePartFile[lastColumn - firstColumn + 1];
+        int partRow = -1;
+        int partRowRows = 0;
 
-        for (int i = firstPartIndex; i <= lastPartIndex; i++) {
-            BufferedImage imagePart = ImageIO.read(new File(getImagePartPath(imageId, i)));
+        long sendStart = timing.start();
+        outputStream.write(subImageHeaderBytes);
+        timing.stop(Phase.SEND, sendStart);
 
-            int partSubImageX = regionX;
-            int partSubImageY = 0;
-            if (regionY > maxImagePartHeight * i) {
-                partSubImageY = regionY - maxImagePartHeight * i;
+        for (int row = y + region.getHeight() - 1; row >= y; row--) {
+            if (row < regionY || row >= regionY + regionHeight) {
+                Arrays.fill(subImageRow, (byte) 0);
+                sendStart = timing.start();
+                outputStream.write(subImageRow);
+                timing.stop(Phase.SEND, sendStart);
+                continue;
             }
 
-            int partSubImageWidth = sourceSubImageWidth;
-            int partSubImageHeight = maxImagePartHeight - partSubImageY;
-            if (regionY + sourceSubImageHeight - 1 < maxImagePartHeight * (i + 1) - 1) {
-                partSubImageHeight = regionY + sourceSubImageHeight - maxImagePartHeight * i;
+            if (image.getPartRow(row) != partRow) {
+                partRow = image.getPartRow(row);
+                recordPartBytes(partReadBytes, partRowBuffers, partRowRows);
+                partRowRows = 0;
+                for (int i = 0; i < imageParts.length; i++) {
+                    imageParts[i] = openParts[image.getPartIndex(firstColumn + i, partRow)];
+                }
+                long openStart = timing.start();
+                openPartRowForReading(imageId, image, partVersions, partRow, firstColumn, imageParts);
+                timing.stop(Phase.OPEN, openStart);
+                for (int i = 0; i < imageParts.length; i++) {
+                    openParts[image.getPartIndex(firstColumn + i, partRow)] = imageParts[i];
+                }
             }
 
-            BufferedImage sourceSubImage = imagePart.getSubimage(partSubImageX,
-                    partSubImageY, partSubImageWidth, partSubImageHeight);
+            long readStart = System.nanoTime();
+            readPartRow(image, imageParts, partRowBuffers, regionX, firstColumn, row);
+            encodeNanos += System.nanoTime() - readStart;
+            timing.stop(Phase.READ, readStart);
+            partRowRows++;
+
+            sendStart = timing.start();
+            outputStream.write(subImageRow);
+            timing.stop(Phase.SEND, sendStart);
+        }
+        recordPartBytes(partReadBytes, partRowBuffers, partRowRows);
+        encodeTime.record(encodeNanos);
+    }
+
+    // Parts are read whole into the part cache if they fit, and each of them once per batch.
+    public RequestCost estimateSubImagesCost(int imageId, int level, List<ImageRegion> regions)
+            throws IOException {
+        LargeImage image = getLevel(getImage(imageId), level);
 
-            subImageGraphics.drawImage(sourceSubImage, subImageX, subImageY, null);
+        long partSize = new BmpHeader(min(maxImagePartWidth, image.getImageWidth()),
+                min(maxImagePartHeight, image.getImageHeight())).getImageSize();
+        BitSet coveredParts = new BitSet(image.getNumberOfParts());
+        long rowMemory = 0;
+        long regionBytes = 0;
+        for (ImageRegion region : regions) {
+            int regionX = max(region.getX(), 0);
+            int regionY = max(region.getY(), 0);
+            long regionWidth = min((long) region.getX() + region.getWidth(), image.getImageWidth()) - regionX;
+            long regionHeight = min((long) region.getY() + region.getHeight(), image.getImageHeight()) - regionY;
+            if (region.getWidth() <= 0 || region.getHeight() <= 0 || regionWidth <= 0 || regionHeight <= 0) {
+                continue;
+            }
 
-            subImageY += partSubImageHeight;
+            rowMemory = max(rowMemory, BmpHeader.getRowStride(region.getWidth()));
+            regionBytes += regionWidth * regionHeight * 3;
+            int lastColumn = image.getPartColumn(regionX + (int) regionWidth - 1);
+            int lastRow = image.getPartRow(regionY + (int) regionHeight - 1);
+            for (int row = image.getPartRow(regionY); row <= lastRow; row++) {
+                for (int column = image.getPartColumn(regionX); column <= lastColumn; column++) {
+                    int partIndex = image.getPartIndex(column, row);
+                    if (image.getCoverage().isCovered(partIndex)) {
+                        coveredParts.set(partIndex);
+                    }
+                }
+            }
         }
 
-        imageLocks.get(imageId).readLock().unlock();
+        if (!partCache.fits(partSize)) {
+            return new RequestCost(rowMemory, regionBytes);
+        }
+        long partBytes = coveredParts.cardinality() * partSize;
+        return new RequestCost(rowMemory + partBytes, partBytes);
+    }
 
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        ImageIO.write(subImage, imageExtension, byteArrayOutputStream);
-        return byteArrayOutputStream.toByteArray();
+    private static void writeBlackSubImage(byte[] subImageHeader, int height, byte[] blackRow,
+                                           OutputStream outputStream, RequestTiming timing) throws IOException {
+        long sendStart = timing.start();
+        outputStream.write(subImageHeader);
+        for (int row = 0; row < height; row++) {
+            outputStream.write(blackRow);
+        }
+        timing.stop(Phase.SEND, sendStart);
     }
 
     public void drawImage(int imageId, int x, int y, int width, int height, InputStream inputStream) throws IOException {
-        if (imageId < 0 || imageId >= imageCount.get() || imageList.get(imageId) == null) {
-            throw new IncorrectImageIdException();
+        drawImage(imageId, x, y, width, height, inputStream, RequestTiming.disabled);
+    }
+
+    public void drawImage(int imageId, int x, int y, int width, int height, InputStream inputStream,
+                          RequestTiming timing) throws IOException {
+        LargeImage targetImage = getImage(imageId);
+
+        if (width <= 0 || height <= 0 || (long) x + width <= 0 || (long) y + height <= 0 ||
+                y >= targetImage.getImageHeight() || x >= targetImage.getImageWidth()) {
+            throw new IncorrectImageRegionException();
+        }
+        if (writeBehind != null) {
+            writeBehind.awaitCapacity();
+        }
+
+        // Only parsing the header and the rows of the body is counted as decoding, not locking or writing the parts.
+        long decodeStart = System.nanoTime();
+        BmpReader sourceImage = new BmpReader(inputStream);
+        long decodeNanos = System.nanoTime() - decodeStart;
+        timing.stop(Phase.DECODE, decodeStart);
+        if (sourceImage.getHeader().getWidth() != width || sourceImage.getHeader().getHeight() != height) {
+            throw new IncorrectImageRegionException();
+        }
+
+        int regionX = max(x, 0);
+        int regionY = max(y, 0);
+        int regionWidth = (int) (min((long) x + width, targetImage.getImageWidth()) - regionX);
+        int regionHeight = (int) (min((long) y + height, targetImage.getImageHeight()) - regionY);
+        // Only the columns of the source rows inside the image are kept, whatever width the header claims.
+        byte[] sourceRow = new byte[regionWidth * 3];
+        int sourceRowX = (int) (regionX - (long) x);
+
+        int firstColumn = targetImage.getPartColumn(regionX);
+        int lastColumn = targetImage.getPartColumn(regionX + regionWidth - 1);
+        ByteBuffer[] partRowBuffers = getPartRowBuffers(targetImage, sourceRow, regionX,
+                regionX, regionWidth, firstColumn, lastColumn);
+        ImagePartFile[] targetImageParts = new ImagePartFile[lastColumn - firstColumn + 1];
+        int partRow = -1;
+        int partRowRows = 0;
+        PartWrites writes = new PartWrites(lastDraw.incrementAndGet());
+        boolean drawn = false;
+
+        RegionLock regionLock = targetImage.getLocks().getRegionWriteLock(targetImage, firstColumn, lastColumn,
+                targetImage.getPartRow(regionY), targetImage.getPartRow(regionY + regionHeight - 1));
+        long lockedAt = lock(regionLock, writeLockWaitTime, timing);
+        try {
+            if (images.get(imageId) != targetImage) {
+                throw new IncorrectImageIdException();
+            }
+
+            while (sourceImage.hasNextRow()) {
+                decodeStart = System.nanoTime();
+                int row = y + sourceImage.readRow(sourceRow, sourceRowX, regionWidth);
+                decodeNanos += System.nanoTime() - decodeStart;
+                timing.stop(Phase.DECODE, decodeStart);
+                if (row < regionY || row >= regionY + regionHeight) {
+                    continue;
+                }
+
+                if (targetImage.getPartRow(row) != partRow) {
+                    partRow = targetImage.getPartRow(row);
+                    ImagePartFile.closeAll(targetImageParts);
+                    recordPartBytes(partWrittenBytes, partRowBuffers, partRowRows);
+                    partRowRows = 0;
+                    long openStart = timing.start();
+                    openPartRowForWriting(imageId, targetImage, partRow, firstColumn, targetImageParts,
+                            new ImageRegion(regionX, regionY, regionWidth, regionHeight), writes);
+                    timing.stop(Phase.OPEN, openStart);
+                }
+
+                long writeStart = timing.start();
+                writePartRow(targetImage, targetImageParts, partRowBuffers, regionX, firstColumn, row);
+                timing.stop(Phase.WRITE, writeStart);
+                partRowRows++;
+            }
+            drawn = true;
+        } finally {
+            ImagePartFile.closeAll(targetImageParts);
+            finishPartWrites(imageId, targetImage, writes, drawn);
+            targetImage.incrementVersion();
+            unlock(regionLock, writeLockHoldTime, lockedAt);
+            recordPartBytes(partWrittenBytes, partRowBuffers, partRowRows);
+            decodeTime.record(decodeNanos);
+        }
+
+        // The levels are updated after the region lock is released, so other draws on the region
+        // are not blocked by it. A draw that fails before this leaves the image and its levels as they were.
+        try {
+            updateLevels(imageId, targetImage, regionX, regionY, regionWidth, regionHeight, writes, timing);
+            commitDraw(writes, timing);
+        } finally {
+            retireReplacedVersions(imageId, writes);
+        }
+    }
+
+    // Publishes the versions of the parts of image written since the last call, or deletes them if the draw
+    // failed, so that a failed draw leaves the level as it was. The versions replaced by the published ones
+    // are retired once the draw commits. When draws are written behind, a replaced version is retired
+    // once a newer one is flushed instead, see WriteBehindBuffer.
+    private void finishPartWrites(int imageId, LargeImage image, PartWrites writes,
+                                  boolean publish) throws IOException {
+        Map<Integer, Long> versions = writes.takeVersions();
+        if (versions.isEmpty()) {
+            return;
+        }
+        boolean published = false;
+        try {
+            if (publish && writeBehind == null) {
+                publishPartFiles(imageId, image, versions);
+            }
+            published = publish;
+        } finally {
+            if (!published) {
+                reclaimer.retire(() -> {
+                    for (Map.Entry<Integer, Long> version : versions.entrySet()) {
+                        deletePartVersion(imageId, image, version.getKey(), version.getValue());
+                    }
+                });
+            }
         }
+        if (!published) {
+            return;
+        }
+
+        Map<Integer, Long> replacedVersions = image.publishPartVersions(versions);
+        if (writeBehind == null) {
+            for (Map.Entry<Integer, Long> version : replacedVersions.entrySet()) {
+                if (version.getValue() != 0) {
+                    writes.addReplaced(image, version.getKey(), version.getValue());
+                }
+            }
+        }
+    }
+
+    // Gives the files of new versions the names they are loaded by after a restart, so one that a crash
+    // cut short is never loaded. When draws are durable, a file is forced before it is renamed, and
+    // the directory with the new name is forced when the draw commits.
+    private void publishPartFiles(int imageId, LargeImage image, Map<Integer, Long> versions) throws IOException {
+        for (Map.Entry<Integer, Long> version : versions.entrySet()) {
+            String path = getImagePartPath(imageId, image, version.getKey(), version.getValue());
+            ImagePartFile.publish(path + unpublishedPartSuffix, path, durability != Durability.NONE);
+        }
+        if (durability == Durability.SYNC) {
+            forcedFiles.add(versions.size());
+        }
+    }
 
-        LargeImage targetImage = imageList.get(imageId);
-        BufferedImage sourceImage = ImageIO.read(inputStream);
-        if (sourceImage.getWidth() != width || sourceImage.getHeight() != height) {
+    // Called once the draw committed or failed, see finishPartWrites.
+    private void retireReplacedVersions(int imageId, PartWrites writes) {
+        List<PartWrites.ReplacedVersion> replacedVersions = writes.getReplacedVersions();
+        if (replacedVersions.isEmpty()) {
+            return;
+        }
+        reclaimer.retire(() -> {
+            for (PartWrites.ReplacedVersion version : replacedVersions) {
+                deletePartVersion(imageId, version.getImage(), version.getPartIndex(), version.getVersion());
+            }
+        });
+    }
+
+    // Makes the draw survive a crash as far as the durability requires, before it is acknowledged.
+    private void commitDraw(PartWrites writes, RequestTiming timing) throws IOException {
+        long start = System.nanoTime();
+        long writeStart = timing.start();
+        if (writeBehind != null) {
+            writeBehind.logCommit(writes.getDraw());
+        }
+        switch (durability) {
+            case NONE:
+                if (writeBehind != null) {
+                    writeBehind.commit(false);
+                }
+                break;
+            case GROUP:
+                Map<String, GroupCommit.Force> forces = new HashMap<>();
+                if (writeBehind != null) {
+                    forces.put(writeAheadLogDirectoryName, () -> writeBehind.commit(true));
+                }
+                for (String directory : writes.getDirectories()) {
+                    forces.put(directory, () -> ImagePartFile.forceDirectory(directory));
+                }
+                groupCommit.commit(forces);
+                break;
+            case SYNC:
+                if (writeBehind != null) {
+                    writeBehind.commit(true);
+                }
+                for (String directory : writes.getDirectories()) {
+                    ImagePartFile.forceDirectory(directory);
+                }
+                forcedFiles.add(writes.getDirectories().size() + (writeBehind != null ? 1 : 0));
+                break;
+        }
+        timing.stop(Phase.WRITE, writeStart);
+        commitTime.record(System.nanoTime() - start);
+    }
+
+    // Draws the fragments in the given order, so where they overlap the last one wins. The fragments
+    // are grouped by the parts they touch, and each touched part is written once under a single lock
+    // instead of once per fragment. Nothing is drawn if any of the fragments is incorrect.
+    public void drawImages(int imageId, List<ImageFragment> fragments, RequestTiming timing) throws IOException {
+        LargeImage targetImage = getImage(imageId);
+        if (fragments.isEmpty()) {
             throw new IncorrectImageRegionException();
         }
 
-        if (x + width < 0 || y + height < 0 || y >= targetImage.getImageHeight() || x >= targetImage.getImageWidth()) {
+        ImageRegion[] fragmentRegions = new ImageRegion[fragments.size()];
+        byte[][] fragmentPixels = new byte[fragments.size()][];
+        long decodeStart = System.nanoTime();
+        for (int i = 0; i < fragments.size(); i++) {
+            fragmentRegions[i] = decodeFragment(targetImage, fragments.get(i), fragmentPixels, i);
+        }
+        decodeTime.record(System.nanoTime() - decodeStart);
+        timing.stop(Phase.DECODE, decodeStart);
+        if (writeBehind != null) {
+            writeBehind.awaitCapacity();
+        }
+
+        // Parts in the order of their indexes, each with the fragments drawn on it in the order of the request.
+        TreeMap<Integer, List<Integer>> fragmentsOfParts = new TreeMap<>();
+        int firstColumn = Integer.MAX_VALUE;
+        int lastColumn = -1;
+        int firstRow = Integer.MAX_VALUE;
+        int lastRow = -1;
+        for (int i = 0; i < fragmentRegions.length; i++) {
+            ImageRegion region = fragmentRegions[i];
+            int regionX = max(region.getX(), 0);
+            int regionY = max(region.getY(), 0);
+            int regionFirstColumn = targetImage.getPartColumn(regionX);
+            int regionLastColumn = targetImage.getPartColumn(
+                    min(region.getX() + region.getWidth(), targetImage.getImageWidth()) - 1);
+            int regionFirstRow = targetImage.getPartRow(regionY);
+            int regionLastRow = targetImage.getPartRow(
+                    min(region.getY() + region.getHeight(), targetImage.getImageHeight()) - 1);
+            for (int row = regionFirstRow; row <= regionLastRow; row++) {
+                for (int column = regionFirstColumn; column <= regionLastColumn; column++) {
+                    fragmentsOfParts.computeIfAbsent(targetImage.getPartIndex(column, row),
+                            partIndex -> new ArrayList<>()).add(i);
+                }
+            }
+            firstColumn = min(firstColumn, regionFirstColumn);
+            lastColumn = max(lastColumn, regionLastColumn);
+            firstRow = min(firstRow, regionFirstRow);
+            lastRow = max(lastRow, regionLastRow);
+        }
+
+        List<ImageRegion> drawnRegions = new ArrayList<>();
+        PartWrites writes = new PartWrites(lastDraw.incrementAndGet());
+        boolean drawn = false;
+        RegionLock regionLock = targetImage.getLocks().getRegionWriteLock(targetImage, firstColumn, lastColumn,
+                firstRow, lastRow);
+        long lockedAt = lock(regionLock, writeLockWaitTime, timing);
+        try {
+            if (images.get(imageId) != targetImage) {
+                throw new IncorrectImageIdException();
+            }
+
+            for (Map.Entry<Integer, List<Integer>> part : fragmentsOfParts.entrySet()) {
+                drawnRegions.add(drawPart(imageId, targetImage, part.getKey(), part.getValue(),
+                        fragmentRegions, fragmentPixels, writes, timing));
+            }
+            drawn = true;
+        } finally {
+            finishPartWrites(imageId, targetImage, writes, drawn);
+            targetImage.incrementVersion();
+            unlock(regionLock, writeLockHoldTime, lockedAt);
+        }
+
+        try {
+            for (ImageRegion region : drawnRegions) {
+                updateLevels(imageId, targetImage, region.getX(), region.getY(),
+                        region.getWidth(), region.getHeight(), writes, timing);
+            }
+            commitDraw(writes, timing);
+        } finally {
+            retireReplacedVersions(imageId, writes);
+        }
+    }
+
+    // Decodes the pixels of a fragment into top-down rows without padding, and returns its region.
+    private static ImageRegion decodeFragment(LargeImage image, ImageFragment fragment,
+                                              byte[][] fragmentPixels, int i) throws IOException {
+        BmpReader reader = new BmpReader(new ByteArrayInputStream(fragment.getBmp()));
+        BmpHeader header = reader.getHeader();
+        int x = fragment.getX();
+        int y = fragment.getY();
+        int width = header.getWidth();
+        int height = header.getHeight();
+        if (width <= 0 || height <= 0 || (long) x + width <= 0 || (long) y + height <= 0 ||
+                y >= image.getImageHeight() || x >= image.getImageWidth()) {
             throw new IncorrectImageRegionException();
         }
+        // Checked before the pixels are allocated, the header alone could claim any size. The width
+        // of a parsed header is small enough for its row stride not to overflow, see BmpHeader.
+        if ((long) header.getRowStride() * height > fragment.getBmp().length) {
+            throw new IncorrectImageFormatException();
+        }
+
+        byte[] row = new byte[header.getRowStride()];
+        byte[] pixels = new byte[Math.toIntExact((long) width * 3 * height)];
+        while (reader.hasNextRow()) {
+            int rowY = reader.readRow(row);
+            System.arraycopy(row, 0, pixels, rowY * width * 3, width * 3);
+        }
+        fragmentPixels[i] = pixels;
+        return new ImageRegion(x, y, width, height);
+    }
+
+    // Builds the box of the part covered by its fragments in memory and writes it with one pass over
+    // the rows of the box. The box is read from the part first, unless a single fragment covers it.
+    // Returns the box, in the pixels of the image.
+    private ImageRegion drawPart(int imageId, LargeImage image, int partIndex, List<Integer> fragmentIndexes,
+                                 ImageRegion[] fragmentRegions, byte[][] fragmentPixels,
+                                 PartWrites writes, RequestTiming timing) throws IOException {
+        int column = image.getPartColumnOfIndex(partIndex);
+        int row = image.getPartRowOfIndex(partIndex);
+        int partX = image.getPartX(column);
+        int partY = image.getPartY(row);
+        int partWidth = image.getPartWidth(column);
+        int partHeight = image.getPartHeight(row);
+
+        int boxX0 = Integer.MAX_VALUE;
+        int boxY0 = Integer.MAX_VALUE;
+        int boxX1 = Integer.MIN_VALUE;
+        int boxY1 = Integer.MIN_VALUE;
+        for (int i : fragmentIndexes) {
+            ImageRegion region = fragmentRegions[i];
+            boxX0 = min(boxX0, max(region.getX(), partX));
+            boxY0 = min(boxY0, max(region.getY(), partY));
+            boxX1 = max(boxX1, min(region.getX() + region.getWidth(), partX + partWidth));
+            boxY1 = max(boxY1, min(region.getY() + region.getHeight(), partY + partHeight));
+        }
+        boolean boxCovered = false;
+        for (int i : fragmentIndexes) {
+            ImageRegion region = fragmentRegions[i];
+            boxCovered |= region.getX() <= boxX0 && region.getY() <= boxY0 &&
+                    region.getX() + region.getWidth() >= boxX1 && region.getY() + region.getHeight() >= boxY1;
+        }
+
+        int boxWidth = boxX1 - boxX0;
+        int boxHeight = boxY1 - boxY0;
+        byte[] box = new byte[boxWidth * 3 * boxHeight];
+        boolean wholePart = boxCovered && boxWidth == partWidth && boxHeight == partHeight;
+
+        long openStart = timing.start();
+        image.markCovered(column, row);
+        try (ImagePartFile part = openPartForWriting(imageId, image, partIndex, wholePart, writes)) {
+            timing.stop(Phase.OPEN, openStart);
+
+            // Rows are stored bottom-up, so they are read and written from the bottom of the box.
+            if (!boxCovered) {
+                long readStart = timing.start();
+                for (int y = boxHeight - 1; y >= 0; y--) {
+                    part.readRow(ByteBuffer.wrap(box, y * boxWidth * 3, boxWidth * 3),
+                            boxX0 - partX, boxY0 - partY + y);
+                }
+                timing.stop(Phase.READ, readStart);
+            }
+
+            for (int i : fragmentIndexes) {
+                ImageRegion region = fragmentRegions[i];
+                int x0 = max(region.getX(), boxX0);
+                int x1 = min(region.getX() + region.getWidth(), boxX1);
+                int y0 = max(region.getY(), boxY0);
+                int y1 = min(region.getY() + region.getHeight(), boxY1);
+                for (int y = y0; y < y1; y++) {
+                    System.arraycopy(fragmentPixels[i], ((y - region.getY()) * region.getWidth() +
+                                    x0 - region.getX()) * 3,
+                            box, ((y - boxY0) * boxWidth + x0 - boxX0) * 3, (x1 - x0) * 3);
+                }
+            }
+
+            long writeStart = timing.start();
+            for (int y = boxHeight - 1; y >= 0; y--) {
+                part.writeRow(ByteBuffer.wrap(box, y * boxWidth * 3, boxWidth * 3),
+                        boxX0 - partX, boxY0 - partY + y);
+            }
+            timing.stop(Phase.WRITE, writeStart);
+        }
+        partWrittenBytes.record(box.length);
+        return new ImageRegion(boxX0, boxY0, boxWidth, boxHeight);
+    }
+
+    // Opens new versions of the parts of one part row, region is the region of the image that is drawn.
+    private void openPartRowForWriting(int imageId, LargeImage image, int partRow, int firstColumn,
+                                       ImagePartFile[] imageParts, ImageRegion region,
+                                       PartWrites writes) throws IOException {
+        for (int i = 0; i < imageParts.length; i++) {
+            int column = firstColumn + i;
+            int partIndex = image.getPartIndex(column, partRow);
+            int partX = image.getPartX(column);
+            int partY = image.getPartY(partRow);
+            boolean wholePart = region.getX() <= partX && region.getY() <= partY &&
+                    region.getX() + region.getWidth() >= partX + image.getPartWidth(column) &&
+                    region.getY() + region.getHeight() >= partY + image.getPartHeight(partRow);
+            image.markCovered(column, partRow);
+            imageParts[i] = openPartForWriting(imageId, image, partIndex, wholePart, writes);
+        }
+    }
 
-        imageLocks.get(imageId).writeLock().lock();
+    // The draw writes a new version of the part, which starts as a copy of the current one, or as black
+    // if the draw covers the whole part. When draws are written behind, the new version is only written
+    // in memory and to the write-ahead log. Otherwise it is written to its own file, which is renamed when
+    // the draw publishes it, see publishPartFiles, and to a copy of the cached current version.
+    private ImagePartFile openPartForWriting(int imageId, LargeImage image, int partIndex, boolean wholePart,
+                                             PartWrites writes) throws IOException {
+        int partKey = image.getPartKey(partIndex);
+        int width = image.getPartWidth(image.getPartColumnOfIndex(partIndex));
+        int height = image.getPartHeight(image.getPartRowOfIndex(partIndex));
+        long currentVersion = image.getPartVersions()[partIndex];
+        boolean copied = !wholePart && currentVersion != 0;
+        long version = nextPartVersion();
+        String path = getImagePartPath(imageId, image, partIndex, version);
+        if (writeBehind == null) {
+            writes.add(partIndex, version, path);
+            ByteBuffer content = null;
+            if (copied) {
+                ImagePartFile.copy(getImagePartPath(imageId, image, partIndex, currentVersion),
+                        path + unpublishedPartSuffix);
+                ByteBuffer cachedPart = partCache.peek(imageId, partKey, currentVersion);
+                if (cachedPart != null) {
+                    content = ImagePartFile.copyContent(cachedPart);
+                    partCache.put(imageId, partKey, version, content);
+                }
+            }
+            return ImagePartFile.openForWriting(path + unpublishedPartSuffix, width, height, content);
+        }
 
-        for (int i = 0; i < targetImage.getNumberOfParts(); i++) {
-            String imagePartPath = getImagePartPath(imageId, i);
-            BufferedImage targetImagePart = ImageIO.read(new File(imagePartPath));
-            Graphics targetImagePartGraphics = targetImagePart.createGraphics();
-            int sourceImageX = x;
-            int sourceImageY = y - maxImagePartHeight * i;
+        writes.add(partIndex, version, null);
+        ByteBuffer content = writeBehind.open(imageId, image, partIndex, version, currentVersion, () -> {
+            if (copied) {
+                ByteBuffer currentPart = writeBehind.get(currentVersion);
+                if (currentPart == null) {
+                    currentPart = partCache.peek(imageId, partKey, currentVersion);
+                }
+                if (currentPart != null) {
+                    return ImagePartFile.copyContent(currentPart);
+                }
+                try (ImagePartFile part = ImagePartFile.openForReading(
+                        getImagePartPath(imageId, image, partIndex, currentVersion))) {
+                    if (part.exists()) {
+                        return part.readContent();
+                    }
+                }
+            }
+            BmpHeader header = new BmpHeader(width, height);
+            return ByteBuffer.allocateDirect((int) header.getImageSize()).put(header.toByteArray()).clear();
+        });
+        return ImagePartFile.openBuffered(content, (x, y, row) ->
+                writeBehind.log(writes.getDraw(), imageId, image.getLevel(), partIndex, x, y, row));
+    }
 
-            targetImagePartGraphics.drawImage(sourceImage, sourceImageX, sourceImageY, null);
-            ImageIO.write(targetImagePart, imageExtension, new File(imagePartPath));
+    // Recomputes the region of every level from the level below it, starting from a region of the image.
+    private void updateLevels(int imageId, LargeImage image, int x, int y, int width, int height,
+                              PartWrites writes, RequestTiming timing) throws IOException {
+        long start = System.nanoTime();
+        try {
+            for (int level = 1; level < image.getNumberOfLevels(); level++) {
+                int levelX = x / 2;
+                int levelY = y / 2;
+                width = (x + width + 1) / 2 - levelX;
+                height = (y + height + 1) / 2 - levelY;
+                x = levelX;
+                y = levelY;
+                if (!downscaleRegion(imageId, image, image.getLevel(level - 1), image.getLevel(level),
+                        x, y, width, height, writes, timing)) {
+                    return;
+                }
+            }
+        } finally {
+            levelUpdateTime.record(System.nanoTime() - start);
+        }
+    }
+
+    // Every pixel of the region of target is the average of the 2x2 pixels of source it covers,
+    // fewer at the right and top edges of source. The region of source is locked for reading and
+    // the one of target for writing, always in this order, as levels are only ever locked upwards.
+    // Draws on source are excluded by the lock, so its current versions are read without pinning them.
+    // Returns false if the image was deleted.
+    private boolean downscaleRegion(int imageId, LargeImage image, LargeImage source, LargeImage target,
+                                    int x, int y, int width, int height, PartWrites writes,
+                                    RequestTiming timing) throws IOException {
+        int sourceX = 2 * x;
+        int sourceY = 2 * y;
+        int sourceWidth = min(2 * width, source.getImageWidth() - sourceX);
+        int sourceHeight = min(2 * height, source.getImageHeight() - sourceY);
+
+        byte[][] sourceRows = {new byte[sourceWidth * 3], new byte[sourceWidth * 3]};
+        int sourceFirstColumn = source.getPartColumn(sourceX);
+        int sourceLastColumn = source.getPartColumn(sourceX + sourceWidth - 1);
+        ByteBuffer[][] sourcePartRowBuffers = new ByteBuffer[2][];
+        for (int i = 0; i < 2; i++) {
+            sourcePartRowBuffers[i] = getPartRowBuffers(source, sourceRows[i], sourceX,
+                    sourceX, sourceWidth, sourceFirstColumn, sourceLastColumn);
+        }
+        ImagePartFile[] sourceParts = new ImagePartFile[sourceLastColumn - sourceFirstColumn + 1];
+        int sourcePartRow = -1;
+
+        byte[] targetRow = new byte[width * 3];
+        int firstColumn = target.getPartColumn(x);
+        int lastColumn = target.getPartColumn(x + width - 1);
+        ByteBuffer[] partRowBuffers = getPartRowBuffers(target, targetRow, x, x, width, firstColumn, lastColumn);
+        ImagePartFile[] targetParts = new ImagePartFile[lastColumn - firstColumn + 1];
+        int partRow = -1;
+        boolean drawn = false;
+
+        RegionLock sourceLock = source.getLocks().getRegionReadLock(source, sourceFirstColumn, sourceLastColumn,
+                source.getPartRow(sourceY), source.getPartRow(sourceY + sourceHeight - 1));
+        RegionLock targetLock = target.getLocks().getRegionWriteLock(target, firstColumn, lastColumn,
+                target.getPartRow(y), target.getPartRow(y + height - 1));
+        long sourceLockedAt = lock(sourceLock, levelLockWaitTime, timing);
+        long targetLockedAt = lock(targetLock, levelLockWaitTime, timing);
+        try {
+            if (images.get(imageId) != image) {
+                return false;
+            }
+            long[] sourceVersions = source.getPartVersions();
+
+            for (int row = y + height - 1; row >= y; row--) {
+                int rows = min(2, sourceY + sourceHeight - 2 * row);
+                for (int i = rows - 1; i >= 0; i--) {
+                    int sourceRow = 2 * row + i;
+                    if (source.getPartRow(sourceRow) != sourcePartRow) {
+                        sourcePartRow = source.getPartRow(sourceRow);
+                        ImagePartFile.closeAll(sourceParts);
+                        long openStart = timing.start();
+                        openPartRowForReading(imageId, source, sourceVersions, sourcePartRow,
+                                sourceFirstColumn, sourceParts);
+                        timing.stop(Phase.OPEN, openStart);
+                    }
+                    long readStart = timing.start();
+                    readPartRow(source, sourceParts, sourcePartRowBuffers[i], sourceX, sourceFirstColumn, sourceRow);
+                    timing.stop(Phase.READ, readStart);
+                }
+
+                downscaleRow(sourceRows, rows, sourceWidth, targetRow);
+
+                if (target.getPartRow(row) != partRow) {
+                    partRow = target.getPartRow(row);
+                    ImagePartFile.closeAll(targetParts);
+                    long openStart = timing.start();
+                    openPartRowForWriting(imageId, target, partRow, firstColumn, targetParts,
+                            new ImageRegion(x, y, width, height), writes);
+                    timing.stop(Phase.OPEN, openStart);
+                }
+                long writeStart = timing.start();
+                writePartRow(target, targetParts, partRowBuffers, x, firstColumn, row);
+                timing.stop(Phase.WRITE, writeStart);
+            }
+            drawn = true;
+            return true;
+        } finally {
+            ImagePartFile.closeAll(sourceParts);
+            ImagePartFile.closeAll(targetParts);
+            finishPartWrites(imageId, target, writes, drawn);
+            target.incrementVersion();
+            unlock(targetLock, levelLockHoldTime, targetLockedAt);
+            unlock(sourceLock, levelLockHoldTime, sourceLockedAt);
+        }
+    }
+
+    private static void downscaleRow(byte[][] sourceRows, int rows, int sourceWidth, byte[] targetRow) {
+        for (int pixel = 0; pixel < targetRow.length / 3; pixel++) {
+            int columns = min(2, sourceWidth - 2 * pixel);
+            int samples = rows * columns;
+            for (int channel = 0; channel < 3; channel++) {
+                int sum = 0;
+                for (int row = 0; row < rows; row++) {
+                    for (int column = 0; column < columns; column++) {
+                        sum += sourceRows[row][(2 * pixel + column) * 3 + channel] & 0xff;
+                    }
+                }
+                targetRow[pixel * 3 + channel] = (byte) ((sum + samples / 2) / samples);
+            }
         }
-        imageLocks.get(imageId).writeLock().unlock();
     }
 
     public int createImage(int width, int height) throws IOException {
@@ -154,36 +1729,82 @@ public class ImageHandler {
             throw new IncorrectImageRegionException();
         }
 
-        int imageId = imageCount.getAndIncrement();
+        int imageId = images.allocateId();
 
-        imageLocks.add(imageId, new ReentrantReadWriteLock());
-        imageLocks.get(imageId).writeLock().lock();
-
-        int numberOfParts = (height + maxImagePartHeight - 1) / maxImagePartHeight;
-        new File(getImageDirectoryPath(imageId)).mkdirs();
-
-        for (int i = 0; i < numberOfParts; i++) {
-            int imagePartHeight = min(height - i * maxImagePartHeight, maxImagePartHeight);
-            int imagePartWidth = min(width, maxImagePartWidth);
-            BufferedImage imagePart = new BufferedImage(imagePartWidth, imagePartHeight, BufferedImage.TYPE_INT_RGB);
-            File imagePartFile = new File(getImagePartPath(imageId, i));
-            ImageIO.write(imagePart, imageExtension, imagePartFile);
+        LargeImage image = new LargeImage(width, height, maxImagePartWidth, maxImagePartHeight);
+        image.setPartsLoaded();
+        File imageDirectory = new File(getImageDirectoryPath(imageId));
+        FileUtils.deleteDirectory(imageDirectory);
+        for (int level = 0; level < image.getNumberOfLevels(); level++) {
+            new File(getLevelDirectoryPath(imageId, image.getLevel(level))).mkdirs();
         }
+        writeImageMetadata(imageId, image);
+        // Draws on the image only force the directories of its levels.
+        ImagePartFile.forceDirectory(getImageDirectoryPath(imageId));
+        ImagePartFile.forceDirectory(workingDirectory);
+        registryLog.appendCreate(imageId, image);
 
-        imageList.add(imageId, new LargeImage(width, height, numberOfParts));
-        imageLocks.get(imageId).writeLock().unlock();
+        images.put(imageId, image);
         return imageId;
     }
 
     public void deleteImage(int imageId) throws IOException {
-        if (imageId < 0 || imageId >= imageCount.get() || imageList.get(imageId) == null) {
+        LargeImage image = images.get(imageId);
+        if (image == null) {
             throw new IncorrectImageIdException();
         }
 
-        imageLocks.get(imageId).writeLock().lock();
-        FileUtils.deleteDirectory(new File(getImageDirectoryPath(imageId)));
-        imageList.set(imageId, null);
-        imageLocks.get(imageId).writeLock().unlock();
+        // The locks of all levels are taken upwards, like the level updates of draws do.
+        RegionLock imageLock = image.getLocks().imageLock();
+        long lockedAt = lock(imageLock, imageLockWaitTime, RequestTiming.disabled);
+        int lockedLevels = 1;
+        try {
+            for (; lockedLevels < image.getNumberOfLevels(); lockedLevels++) {
+                image.getLevel(lockedLevels).getLocks().imageLock().lock();
+            }
+            if (images.get(imageId) != image) {
+                throw new IncorrectImageIdException();
+            }
+
+            registryLog.appendDelete(imageId);
+            images.remove(imageId, image);
+            // Reads that took the image before go on with the versions of its parts they pinned.
+            reclaimer.retire(() -> {
+                FileUtils.deleteDirectory(new File(getImageDirectoryPath(imageId)));
+                partCache.invalidateImage(imageId);
+                if (writeBehind != null) {
+                    writeBehind.invalidateImage(imageId);
+                }
+            });
+        } finally {
+            while (--lockedLevels > 0) {
+                image.getLevel(lockedLevels).getLocks().imageLock().unlock();
+            }
+            unlock(imageLock, imageLockHoldTime, lockedAt);
+        }
+    }
+
+    public ImageCoverage getCoverage(int imageId) throws IOException {
+        return getImage(imageId).getCoverageStats();
+    }
+
+    public int getNumberOfImages() {
+        return images.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (groupCommit != null) {
+                groupCommit.close();
+            }
+            if (writeBehind != null) {
+                writeBehind.close();
+            }
+        } finally {
+            reclaimer.close();
+            registryLog.close();
+        }
     }
 
 }
@@ -0,0 +1,69 @@
+package ImageHandler;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Locks of a single image. Parts are mapped onto a bounded number of lock stripes,
+// so operations on disjoint regions of the same image usually do not block each other.
+// Stripes are always acquired in ascending order, which rules out deadlocks between regions.
+public class ImageLocks {
+
+    private static final int maxNumberOfStripes = 64;
+
+    private final ReentrantReadWriteLock imageLock = new ReentrantReadWriteLock();
+    private final AtomicReferenceArray<ReentrantReadWriteLock> stripes;
+
+    public ImageLocks(int numberOfParts) {
+        stripes = new AtomicReferenceArray<>(Math.max(1, Math.min(numberOfParts, maxNumberOfStripes)));
+    }
+
+    private ReentrantReadWriteLock getStripe(int stripeIndex) {
+        ReentrantReadWriteLock stripe = stripes.get(stripeIndex);
+        if (stripe == null) {
+            stripes.compareAndSet(stripeIndex, null, new ReentrantReadWriteLock());
+            stripe = stripes.get(stripeIndex);
+        }
+        return stripe;
+    }
+
+    // Exclusive lock of the whole image, used when the image is deleted.
+    public RegionLock imageLock() {
+        return new RegionLock(imageLock.writeLock());
+    }
+
+    private int[] getRegionStripes(LargeImage image, int firstColumn, int lastColumn, int firstRow, int lastRow) {
+        BitSet stripeIndices = new BitSet(stripes.length());
+        for (int row = firstRow; row <= lastRow && stripeIndices.cardinality() < stripes.length(); row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                stripeIndices.set(image.getPartIndex(column, row) % stripes.length());
+            }
+        }
+        return stripeIndices.stream().toArray();
+    }
+
+    // Shared lock of the parts of a region, the image lock is shared by both region locks.
+    public RegionLock getRegionReadLock(LargeImage image, int firstColumn, int lastColumn,
+                                        int firstRow, int lastRow) {
+        int[] regionStripes = getRegionStripes(image, firstColumn, lastColumn, firstRow, lastRow);
+        Lock[] locks = new Lock[regionStripes.length + 1];
+        locks[0] = imageLock.readLock();
+        for (int i = 0; i < regionStripes.length; i++) {
+            locks[i + 1] = getStripe(regionStripes[i]).readLock();
+        }
+        return new RegionLock(locks);
+    }
+
+    public RegionLock getRegionWriteLock(LargeImage image, int firstColumn, int lastColumn,
+                                         int firstRow, int lastRow) {
+        int[] regionStripes = getRegionStripes(image, firstColumn, lastColumn, firstRow, lastRow);
+        Lock[] locks = new Lock[regionStripes.length + 1];
+        locks[0] = imageLock.readLock();
+        for (int i = 0; i < regionStripes.length; i++) {
+            locks[i + 1] = getStripe(regionStripes[i]).writeLock();
+        }
+        return new RegionLock(locks);
+    }
+
+}
@@ -0,0 +1,205 @@
+package ImageHandler;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+public class ImagePartFile implements Closeable {
+
+    private final FileChannel channel;
+    private final BmpHeader header;
+    private final ByteBuffer content;
+    private final RowLog rowLog;
+
+    // Gets every row written to the part, see WriteBehindBuffer.
+    public interface RowLog {
+        void append(int x, int y, ByteBuffer row) throws IOException;
+    }
+
+    private ImagePartFile(FileChannel channel, BmpHeader header, ByteBuffer content) {
+        this(channel, header, content, null);
+    }
+
+    private ImagePartFile(FileChannel channel, BmpHeader header, ByteBuffer content, RowLog rowLog) {
+        this.channel = channel;
+        this.header = header;
+        this.content = content;
+        this.rowLog = rowLog;
+    }
+
+    private static ImagePartFile open(FileChannel channel, ByteBuffer content) throws IOException {
+        try {
+            return new ImagePartFile(channel, BmpHeader.read(channel), content);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int bytesRead = channel.read(buffer, position);
+            if (bytesRead < 0) {
+                throw new EOFException();
+            }
+            position += bytesRead;
+        }
+    }
+
+    // Parts are only written to disk when something is first drawn on them,
+    // a part without a file is read as black.
+    public static ImagePartFile openForReading(String path) throws IOException {
+        try {
+            return open(FileChannel.open(Path.of(path), StandardOpenOption.READ), null);
+        } catch (NoSuchFileException e) {
+            return openBlack();
+        }
+    }
+
+    // A part that was never drawn on, see PartCoverage.
+    public static ImagePartFile openBlack() {
+        return new ImagePartFile(null, null, null);
+    }
+
+    // Reads the part from a copy of its whole file kept in memory, see PartCache.
+    public static ImagePartFile openCached(ByteBuffer content) {
+        return new ImagePartFile(null, BmpHeader.parse(content.duplicate()), content);
+    }
+
+    // Writes go both to the file and to content, the cached copy of the file, if it is not null.
+    public static ImagePartFile openForWriting(String path, int width, int height,
+                                               ByteBuffer content) throws IOException {
+        FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+
+        if (channel.size() < BmpHeader.SIZE) {
+            try {
+                BmpHeader header = new BmpHeader(width, height);
+                channel.write(ByteBuffer.wrap(header.toByteArray()), 0);
+                channel.write(ByteBuffer.allocate(1), header.getImageSize() - 1);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        return open(channel, content);
+    }
+
+    // Writes only go to content, the whole file of the part kept in memory, and to rowLog.
+    public static ImagePartFile openBuffered(ByteBuffer content, RowLog rowLog) {
+        return new ImagePartFile(null, BmpHeader.parse(content.duplicate()), content, rowLog);
+    }
+
+    public static void closeAll(ImagePartFile[] imageParts) throws IOException {
+        for (int i = 0; i < imageParts.length; i++) {
+            if (imageParts[i] != null) {
+                imageParts[i].close();
+                imageParts[i] = null;
+            }
+        }
+    }
+
+    public BmpHeader getHeader() { return header; }
+
+    public boolean exists() { return channel != null || content != null; }
+
+    public ByteBuffer readContent() throws IOException {
+        ByteBuffer partContent = ByteBuffer.allocateDirect((int) channel.size());
+        readFully(channel, partContent, 0);
+        return partContent.flip();
+    }
+
+    // Writes the whole file of a part from a copy of it kept in memory and forces it to disk.
+    public static void writeContent(String path, ByteBuffer content) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE)) {
+            ByteBuffer buffer = content.duplicate().clear();
+            long position = 0;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            channel.force(false);
+        }
+    }
+
+    public static void force(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.WRITE)) {
+            channel.force(false);
+        }
+    }
+
+    // Makes the files created in a directory, which forcing them does not, survive a crash of the machine.
+    // A directory that was deleted meanwhile belonged to a deleted image.
+    public static void forceDirectory(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (NoSuchFileException ignored) {
+        }
+    }
+
+    // Starts a new version of a part as a copy of the file of the current one.
+    public static void copy(String sourcePath, String path) throws IOException {
+        Files.copy(Path.of(sourcePath), Path.of(path), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Gives the file of a new version of a part the name it is read by. If force, its content is forced
+    // first, so the name never survives a crash without it.
+    public static void publish(String unpublishedPath, String path, boolean force) throws IOException {
+        if (force) {
+            force(unpublishedPath);
+        }
+        Files.move(Path.of(unpublishedPath), Path.of(path), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static ByteBuffer copyContent(ByteBuffer content) {
+        return ByteBuffer.allocateDirect(content.capacity()).put(content.duplicate().clear()).clear();
+    }
+
+    public void readRow(ByteBuffer buffer, int x, int y) throws IOException {
+        if (!exists()) {
+            while (buffer.hasRemaining()) {
+                buffer.put((byte) 0);
+            }
+        } else if (content != null) {
+            int position = (int) header.getPixelOffset(x, y);
+            buffer.put(content.duplicate().limit(position + buffer.remaining()).position(position));
+        } else {
+            readFully(channel, buffer, header.getPixelOffset(x, y));
+        }
+    }
+
+    public void writeRow(ByteBuffer buffer, int x, int y) throws IOException {
+        long position = header.getPixelOffset(x, y);
+        if (rowLog != null) {
+            rowLog.append(x, y, buffer);
+        }
+        if (content != null) {
+            content.duplicate().position((int) position).put(buffer.duplicate());
+        }
+        while (channel != null && buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    public void force() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+}
@@ -0,0 +1,26 @@
+package ImageHandler;
+
+// A rectangle of an image, e.g. one of the sub-images read by a batch.
+public class ImageRegion {
+
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+
+    public ImageRegion(int x, int y, int width, int height) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getX() { return x; }
+
+    public int getY() { return y; }
+
+    public int getWidth() { return width; }
+
+    public int getHeight() { return height; }
+
+}
@@ -0,0 +1,67 @@
+package ImageHandler;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Images by id. Ids are allocated sequentially and the images are kept in chunks
+// that are allocated on first use, so lookups take two volatile reads and no locks.
+public class ImageRegistry {
+
+    private static final int chunkBits = 16;
+    private static final int chunkSize = 1 << chunkBits;
+    private static final int numberOfChunks = 1 << (Integer.SIZE - 1 - chunkBits);
+
+    private final AtomicReferenceArray<AtomicReferenceArray<LargeImage>> chunks =
+            new AtomicReferenceArray<>(numberOfChunks);
+    private final AtomicInteger nextImageId = new AtomicInteger();
+    private final AtomicInteger numberOfImages = new AtomicInteger();
+
+    private AtomicReferenceArray<LargeImage> getChunk(int imageId) {
+        AtomicReferenceArray<LargeImage> chunk = chunks.get(imageId >>> chunkBits);
+        if (chunk == null) {
+            chunks.compareAndSet(imageId >>> chunkBits, null, new AtomicReferenceArray<>(chunkSize));
+            chunk = chunks.get(imageId >>> chunkBits);
+        }
+        return chunk;
+    }
+
+    public LargeImage get(int imageId) {
+        if (imageId < 0) {
+            return null;
+        }
+
+        AtomicReferenceArray<LargeImage> chunk = chunks.get(imageId >>> chunkBits);
+        return chunk == null ? null : chunk.get(imageId & chunkSize - 1);
+    }
+
+    public int allocateId() {
+        int imageId = nextImageId.getAndIncrement();
+        if (imageId < 0) {
+            throw new IllegalStateException("Image ids are exhausted.");
+        }
+        return imageId;
+    }
+
+    // Used while loading the registry, ids below nextImageId will not be allocated.
+    public void setNextImageId(int nextImageId) {
+        this.nextImageId.set(nextImageId);
+    }
+
+    public void put(int imageId, LargeImage image) {
+        if (getChunk(imageId).getAndSet(imageId & chunkSize - 1, image) == null) {
+            numberOfImages.incrementAndGet();
+        }
+    }
+
+    public boolean remove(int imageId, LargeImage image) {
+        AtomicReferenceArray<LargeImage> chunk = chunks.get(imageId >>> chunkBits);
+        if (chunk != null && chunk.compareAndSet(imageId & chunkSize - 1, image, null)) {
+            numberOfImages.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public int size() { return numberOfImages.get(); }
+
+}
@@ -1,19 +1,187 @@
 package ImageHandler;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// An image split into a grid of parts. An image also has downscaled levels for zoomed-out views,
+// each half the width and height of the previous one, up to the first level that fits into one part.
+// Levels are images themselves. Their parts are also numbered after the parts of the levels below them,
+// so that a part of any level is identified by a single index.
 public class LargeImage {
 
+    public static final int RECORD_SIZE = 4 * Integer.BYTES;
+
     private final int imageWidth;
     private final int imageHeight;
-    private final int numberOfParts;
+    private final int partWidth;
+    private final int partHeight;
+    private final int numberOfColumns;
+    private final int numberOfRows;
+    // Incremented whenever parts of the image are written, so results read before can be told apart.
+    private final AtomicLong version = new AtomicLong();
+    // Created the first time the level is used, so the images that are stored but not used after a restart
+    // do not take memory for every one of their parts.
+    private final AtomicReference<PartState> partState = new AtomicReference<>();
+    private final int level;
+    private final int firstPartKey;
+    private final LargeImage[] levels;
+    // Whether the versions and coverage of the parts of all levels were loaded from their files.
+    // Images are loaded the first time they are used after a restart, see ImageHandler.loadParts.
+    private volatile boolean partsLoaded = false;
+
+    public LargeImage(int imageWidth, int imageHeight, int partWidth, int partHeight) {
+        this(imageWidth, imageHeight, partWidth, partHeight, 0, 0, null);
+    }
 
-    public LargeImage(int imageWidth, int imageHeight, int numberOfParts) {
+    private LargeImage(int imageWidth, int imageHeight, int partWidth, int partHeight,
+                       int level, int firstPartKey, LargeImage[] levels) {
         this.imageWidth = imageWidth;
         this.imageHeight = imageHeight;
-        this.numberOfParts = numberOfParts;
+        this.partWidth = partWidth;
+        this.partHeight = partHeight;
+        this.numberOfColumns = (imageWidth + partWidth - 1) / partWidth;
+        this.numberOfRows = (imageHeight + partHeight - 1) / partHeight;
+        this.level = level;
+        this.firstPartKey = firstPartKey;
+        this.levels = levels != null ? levels : createLevels();
+    }
+
+    private static class PartState {
+
+        private final ImageLocks locks;
+        private final PartCoverage coverage;
+        // The current version of every part, 0 for parts never drawn on. A draw writes new versions of
+        // the parts next to the current ones and then publishes all of them at once, so a reader that
+        // took the versions before does not see any of the draw, see VersionReclaimer.
+        private final AtomicReference<long[]> partVersions;
+
+        private PartState(int numberOfParts) {
+            this.locks = new ImageLocks(numberOfParts);
+            this.coverage = new PartCoverage(numberOfParts);
+            this.partVersions = new AtomicReference<>(new long[numberOfParts]);
+        }
     }
 
+    private PartState getPartState() {
+        PartState state = partState.get();
+        if (state == null) {
+            partState.compareAndSet(null, new PartState(getNumberOfParts()));
+            state = partState.get();
+        }
+        return state;
+    }
+
+    private LargeImage[] createLevels() {
+        List<LargeImage> levels = new ArrayList<>();
+        levels.add(this);
+        LargeImage level = this;
+        while (level.getNumberOfParts() > 1) {
+            level = new LargeImage((level.imageWidth + 1) / 2, (level.imageHeight + 1) / 2, partWidth, partHeight,
+                    level.level + 1, level.firstPartKey + level.getNumberOfParts(), new LargeImage[0]);
+            levels.add(level);
+        }
+        return levels.toArray(new LargeImage[0]);
+    }
+
+    public static LargeImage read(DataInput input) throws IOException {
+        int imageWidth = input.readInt();
+        int imageHeight = input.readInt();
+        int partWidth = input.readInt();
+        int partHeight = input.readInt();
+
+        if (imageWidth <= 0 || imageHeight <= 0 || partWidth <= 0 || partHeight <= 0) {
+            throw new IOException("Invalid image record.");
+        }
+
+        return new LargeImage(imageWidth, imageHeight, partWidth, partHeight);
+    }
+
+    public void write(DataOutput output) throws IOException {
+        output.writeInt(imageWidth);
+        output.writeInt(imageHeight);
+        output.writeInt(partWidth);
+        output.writeInt(partHeight);
+    }
+
+    public ImageLocks getLocks() { return getPartState().locks; }
+    public PartCoverage getCoverage() { return getPartState().coverage; }
+    public long getVersion() { return version.get(); }
+    public void incrementVersion() { version.incrementAndGet(); }
+    public long[] getPartVersions() { return getPartState().partVersions.get(); }
+    public boolean arePartsLoaded() { return partsLoaded; }
+    public void setPartsLoaded() { partsLoaded = true; }
+    // Only called while the image is loaded, before anything reads it.
+    public void setPartVersion(int partIndex, long version) { getPartVersions()[partIndex] = version; }
     public int getImageHeight() { return imageHeight; }
     public int getImageWidth() { return imageWidth; }
-    public int getNumberOfParts() { return numberOfParts; }
+    public int getNumberOfColumns() { return numberOfColumns; }
+    public int getNumberOfRows() { return numberOfRows; }
+    public int getNumberOfParts() { return numberOfColumns * numberOfRows; }
+
+    // Levels are only known to the full resolution image, level 0 is the image itself.
+    public int getNumberOfLevels() { return levels.length; }
+    public LargeImage getLevel(int level) { return levels[level]; }
+    public int getLevel() { return level; }
+    // Index of a part among the parts of all levels.
+    public int getPartKey(int partIndex) { return firstPartKey + partIndex; }
+
+    public int getPartIndex(int column, int row) { return row * numberOfColumns + column; }
+    public int getPartColumnOfIndex(int partIndex) { return partIndex % numberOfColumns; }
+    public int getPartRowOfIndex(int partIndex) { return partIndex / numberOfColumns; }
+    public int getPartColumn(int x) { return x / partWidth; }
+    public int getPartRow(int y) { return y / partHeight; }
+    public int getPartX(int column) { return column * partWidth; }
+    public int getPartY(int row) { return row * partHeight; }
+    public int getPartWidth(int column) { return Math.min(partWidth, imageWidth - getPartX(column)); }
+    public int getPartHeight(int row) { return Math.min(partHeight, imageHeight - getPartY(row)); }
+
+    // Replaces the versions of the parts, keyed by part index, and returns the versions they replaced.
+    // Draws on disjoint regions publish concurrently, so the versions are copied until one publication
+    // wins, which keeps the versions other draws published meanwhile.
+    public Map<Integer, Long> publishPartVersions(Map<Integer, Long> versions) {
+        AtomicReference<long[]> partVersions = getPartState().partVersions;
+        long[] current;
+        long[] published;
+        do {
+            current = partVersions.get();
+            published = current.clone();
+            for (Map.Entry<Integer, Long> version : versions.entrySet()) {
+                published[version.getKey()] = version.getValue();
+            }
+        } while (!partVersions.compareAndSet(current, published));
+
+        Map<Integer, Long> replaced = new HashMap<>();
+        for (int partIndex : versions.keySet()) {
+            replaced.put(partIndex, current[partIndex]);
+        }
+        return replaced;
+    }
+
+    public void markCovered(int column, int row) {
+        getCoverage().mark(getPartIndex(column, row), (long) getPartWidth(column) * getPartHeight(row));
+    }
+
+    // Whether anything was drawn on the parts of the rectangle of part columns and rows.
+    public boolean isAnyCovered(int firstColumn, int lastColumn, int firstRow, int lastRow) {
+        for (int row = firstRow; row <= lastRow; row++) {
+            if (getCoverage().isAnyCovered(getPartIndex(firstColumn, row), getPartIndex(lastColumn, row))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public ImageCoverage getCoverageStats() {
+        PartCoverage coverage = getCoverage();
+        return new ImageCoverage(getNumberOfParts(), coverage.getCoveredParts(),
+                (long) imageWidth * imageHeight, coverage.getCoveredPixels());
+    }
 
 }
@@ -0,0 +1,113 @@
+package ImageHandler;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Keeps the files of recently read image parts in direct buffers, so they take no heap space.
+// The least recently used parts are evicted once the total size exceeds the capacity in bytes.
+// A part is kept in a single version, see LargeImage.getPartVersions, and looking up any other
+// version of it is a miss.
+public class PartCache {
+
+    private final long capacity;
+    private long size = 0;
+    private final LinkedHashMap<Long, CachedPart> parts = new LinkedHashMap<>(16, 0.75f, true);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private static class CachedPart {
+
+        private final long version;
+        private final ByteBuffer content;
+
+        public CachedPart(long version, ByteBuffer content) {
+            this.version = version;
+            this.content = content;
+        }
+    }
+
+    public PartCache(long capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Invalid cache capacity.");
+        }
+
+        this.capacity = capacity;
+    }
+
+    private static long getKey(int imageId, int partIndex) {
+        return (long) imageId << 32 | partIndex & 0xffffffffL;
+    }
+
+    public boolean fits(long partSize) {
+        return partSize <= capacity;
+    }
+
+    private ByteBuffer find(int imageId, int partIndex, long version) {
+        CachedPart part = parts.get(getKey(imageId, partIndex));
+        return part == null || part.version != version ? null : part.content;
+    }
+
+    public synchronized ByteBuffer get(int imageId, int partIndex, long version) {
+        ByteBuffer part = find(imageId, partIndex, version);
+        if (part == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return part;
+    }
+
+    // Same as get, but is not counted as a cache hit or miss.
+    public synchronized ByteBuffer peek(int imageId, int partIndex, long version) {
+        return find(imageId, partIndex, version);
+    }
+
+    // Replaces any other version of the part.
+    public synchronized void put(int imageId, int partIndex, long version, ByteBuffer part) {
+        if (!fits(part.capacity())) {
+            return;
+        }
+
+        CachedPart previousPart = parts.put(getKey(imageId, partIndex), new CachedPart(version, part));
+        if (previousPart != null) {
+            size -= previousPart.content.capacity();
+        }
+        size += part.capacity();
+
+        Iterator<CachedPart> eldestParts = parts.values().iterator();
+        while (size > capacity) {
+            size -= eldestParts.next().content.capacity();
+            eldestParts.remove();
+        }
+    }
+
+    // Does nothing if the part is cached in another version.
+    public synchronized void invalidate(int imageId, int partIndex, long version) {
+        long key = getKey(imageId, partIndex);
+        CachedPart part = parts.get(key);
+        if (part != null && part.version == version) {
+            parts.remove(key);
+            size -= part.content.capacity();
+        }
+    }
+
+    public synchronized void invalidateImage(int imageId) {
+        Iterator<Map.Entry<Long, CachedPart>> entries = parts.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Long, CachedPart> entry = entries.next();
+            if (entry.getKey() >>> 32 == imageId) {
+                size -= entry.getValue().content.capacity();
+                entries.remove();
+            }
+        }
+    }
+
+    public synchronized long getSize() { return size; }
+    public long getCapacity() { return capacity; }
+    public long getHits() { return hits.sum(); }
+    public long getMisses() { return misses.sum(); }
+
+}
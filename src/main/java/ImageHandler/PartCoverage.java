@@ -0,0 +1,63 @@
+package ImageHandler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A bit per part of an image, set once something was drawn on the part. Parts without
+// the bit were never restored and are black, so reads of them need no disk I/O.
+// Bits are only ever set, and a draw sets them before it writes the part.
+public class PartCoverage {
+
+    private final AtomicLongArray words;
+    private final AtomicLong coveredParts = new AtomicLong();
+    private final AtomicLong coveredPixels = new AtomicLong();
+
+    public PartCoverage(int numberOfParts) {
+        this.words = new AtomicLongArray((numberOfParts + Long.SIZE - 1) / Long.SIZE);
+    }
+
+    // Returns false if the part was already covered.
+    public boolean mark(int partIndex, long partPixels) {
+        int word = partIndex / Long.SIZE;
+        long bit = 1L << partIndex;
+        long value;
+        do {
+            value = words.get(word);
+            if ((value & bit) != 0) {
+                return false;
+            }
+        } while (!words.compareAndSet(word, value, value | bit));
+
+        coveredParts.incrementAndGet();
+        coveredPixels.addAndGet(partPixels);
+        return true;
+    }
+
+    public boolean isCovered(int partIndex) {
+        return (words.get(partIndex / Long.SIZE) & 1L << partIndex) != 0;
+    }
+
+    // Whether any part in [fromPart, toPart] is covered.
+    public boolean isAnyCovered(int fromPart, int toPart) {
+        int firstWord = fromPart / Long.SIZE;
+        int lastWord = toPart / Long.SIZE;
+        for (int word = firstWord; word <= lastWord; word++) {
+            long mask = -1L;
+            if (word == firstWord) {
+                mask &= -1L << fromPart;
+            }
+            if (word == lastWord) {
+                mask &= -1L >>> (Long.SIZE - 1 - toPart % Long.SIZE);
+            }
+            if ((words.get(word) & mask) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long getCoveredParts() { return coveredParts.get(); }
+
+    public long getCoveredPixels() { return coveredPixels.get(); }
+
+}
@@ -0,0 +1,72 @@
+package ImageHandler;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// The parts written by a draw. A part gets a new version when the draw opens it, and the new versions
+// of a level are published together once the draw is done with the level. The versions they replaced
+// are retired after the draw commits, and the directories the files of the new versions were created in
+// are forced then, see Durability.
+public class PartWrites {
+
+    private final long draw;
+    private final Map<Integer, Long> versions = new LinkedHashMap<>();
+    private final List<ReplacedVersion> replacedVersions = new ArrayList<>();
+    private final Set<String> directories = new LinkedHashSet<>();
+
+    // draw identifies the rows of the draw in the write-ahead log.
+    public PartWrites(long draw) {
+        this.draw = draw;
+    }
+
+    public static class ReplacedVersion {
+
+        private final LargeImage image;
+        private final int partIndex;
+        private final long version;
+
+        public ReplacedVersion(LargeImage image, int partIndex, long version) {
+            this.image = image;
+            this.partIndex = partIndex;
+            this.version = version;
+        }
+
+        // The level of the image the part belongs to.
+        public LargeImage getImage() { return image; }
+
+        public int getPartIndex() { return partIndex; }
+
+        public long getVersion() { return version; }
+    }
+
+    public long getDraw() { return draw; }
+
+    // path is null if the version is only written in memory, see WriteBehindBuffer.
+    public void add(int partIndex, long version, String path) {
+        versions.put(partIndex, version);
+        if (path != null) {
+            directories.add(Path.of(path).getParent().toString());
+        }
+    }
+
+    // The versions written since the last call, by part index, all of them of a single level.
+    public Map<Integer, Long> takeVersions() {
+        Map<Integer, Long> takenVersions = new LinkedHashMap<>(versions);
+        versions.clear();
+        return takenVersions;
+    }
+
+    public void addReplaced(LargeImage image, int partIndex, long version) {
+        replacedVersions.add(new ReplacedVersion(image, partIndex, version));
+    }
+
+    public List<ReplacedVersion> getReplacedVersions() { return replacedVersions; }
+
+    public Set<String> getDirectories() { return directories; }
+
+}
@@ -0,0 +1,27 @@
+package ImageHandler;
+
+import java.util.concurrent.locks.Lock;
+
+// Locks taken one after another as a single lock and released in the opposite order, see ImageLocks.
+// A region is only ever locked and unlocked as a whole, so nothing else is offered.
+public class RegionLock {
+
+    private final Lock[] locks;
+
+    public RegionLock(Lock... locks) {
+        this.locks = locks;
+    }
+
+    public void lock() {
+        for (Lock lock : locks) {
+            lock.lock();
+        }
+    }
+
+    public void unlock() {
+        for (int i = locks.length - 1; i >= 0; i--) {
+            locks[i].unlock();
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+package ImageHandler;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Append-only log of created and deleted images, and of the part versions reserved so far. Every record
+// has the same size, so a record torn by a crash can only be at the end of the log and is dropped on load.
+public class RegistryLog implements Closeable {
+
+    private static final byte createRecord = 1;
+    private static final byte deleteRecord = 2;
+    private static final byte reserveRecord = 3;
+    private static final int recordSize = 1 + Integer.BYTES + LargeImage.RECORD_SIZE;
+
+    private final Path path;
+    private int nextImageId = 0;
+    private long reservedPartVersions = 0;
+    private int numberOfRecords = 0;
+    private FileChannel channel;
+
+    public RegistryLog(Path path) {
+        this.path = path;
+    }
+
+    // Replays the log and returns the live images, or null if there is no log yet.
+    public Map<Integer, LargeImage> load() throws IOException {
+        byte[] log;
+        try {
+            log = Files.readAllBytes(path);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        Map<Integer, LargeImage> images = new TreeMap<>();
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(log));
+        int numberOfCompleteRecords = log.length / recordSize;
+
+        for (int i = 0; i < numberOfCompleteRecords; i++) {
+            byte type = input.readByte();
+            int imageId = input.readInt();
+
+            if (type == createRecord) {
+                images.put(imageId, LargeImage.read(input));
+            } else if (type == deleteRecord) {
+                images.remove(imageId);
+                input.skipBytes(LargeImage.RECORD_SIZE);
+            } else if (type == reserveRecord) {
+                reservedPartVersions = Math.max(reservedPartVersions, input.readLong());
+                input.skipBytes(LargeImage.RECORD_SIZE - Long.BYTES);
+                continue;
+            } else {
+                throw new IOException("Invalid registry record.");
+            }
+            nextImageId = Math.max(nextImageId, imageId + 1);
+        }
+
+        numberOfRecords = numberOfCompleteRecords;
+        return images;
+    }
+
+    // The smallest id that was never used by an image in the log.
+    public int getNextImageId() { return nextImageId; }
+
+    // No part has a version above this, 0 for logs written before versions were reserved.
+    public long getReservedPartVersions() { return reservedPartVersions; }
+
+    private static byte[] getRecord(byte type, int imageId, LargeImage image) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(recordSize);
+        DataOutputStream output = new DataOutputStream(record);
+
+        output.writeByte(type);
+        output.writeInt(imageId);
+        if (image != null) {
+            image.write(output);
+        } else {
+            output.write(new byte[LargeImage.RECORD_SIZE]);
+        }
+        return record.toByteArray();
+    }
+
+    private static byte[] getReserveRecord(long reservedPartVersions) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(recordSize);
+        DataOutputStream output = new DataOutputStream(record);
+
+        output.writeByte(reserveRecord);
+        output.writeInt(0);
+        output.writeLong(reservedPartVersions);
+        output.write(new byte[LargeImage.RECORD_SIZE - Long.BYTES]);
+        return record.toByteArray();
+    }
+
+    // Rewrites the log with the create records of the passed images if it is missing
+    // or mostly consists of records of deleted images, then opens it for appending.
+    public void open(Map<Integer, LargeImage> images) throws IOException {
+        if (numberOfRecords == 0 || numberOfRecords > 2 * images.size() + 1024) {
+            Path compactedPath = path.resolveSibling(path.getFileName() + ".tmp");
+            try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(compactedPath))) {
+                for (Map.Entry<Integer, LargeImage> image : images.entrySet()) {
+                    output.write(getRecord(createRecord, image.getKey(), image.getValue()));
+                }
+                // Keeps the ids of deleted images from being reused after the next load.
+                if (nextImageId > 0 && !images.containsKey(nextImageId - 1)) {
+                    output.write(getRecord(deleteRecord, nextImageId - 1, null));
+                }
+                if (reservedPartVersions > 0) {
+                    output.write(getReserveRecord(reservedPartVersions));
+                }
+            }
+            try (FileChannel compacted = FileChannel.open(compactedPath, StandardOpenOption.WRITE)) {
+                compacted.force(true);
+            }
+            Files.move(compactedPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            numberOfRecords = (int) (Files.size(path) / recordSize);
+        }
+
+        channel = FileChannel.open(path, StandardOpenOption.WRITE);
+        channel.truncate((long) numberOfRecords * recordSize);
+        channel.position(channel.size());
+    }
+
+    private synchronized void append(byte[] record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+        numberOfRecords++;
+    }
+
+    public void appendCreate(int imageId, LargeImage image) throws IOException {
+        append(getRecord(createRecord, imageId, image));
+    }
+
+    public void appendDelete(int imageId) throws IOException {
+        append(getRecord(deleteRecord, imageId, null));
+    }
+
+    public void appendReserve(long reservedPartVersions) throws IOException {
+        append(getReserveRecord(reservedPartVersions));
+        this.reservedPartVersions = reservedPartVersions;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+}
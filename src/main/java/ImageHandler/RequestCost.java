@@ -0,0 +1,21 @@
+package ImageHandler;
+
+// Estimated resources of a sub-image or draw request: the memory it allocates while it runs
+// and the number of bytes it reads from or writes to image parts.
+public class RequestCost {
+
+    public static final RequestCost none = new RequestCost(0, 0);
+
+    private final long memoryBytes;
+    private final long ioBytes;
+
+    public RequestCost(long memoryBytes, long ioBytes) {
+        this.memoryBytes = memoryBytes;
+        this.ioBytes = ioBytes;
+    }
+
+    public long getMemoryBytes() { return memoryBytes; }
+
+    public long getIoBytes() { return ioBytes; }
+
+}
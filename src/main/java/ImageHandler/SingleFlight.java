@@ -0,0 +1,65 @@
+package ImageHandler;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Runs at most one computation per key at a time. Callers that ask for a key while its computation
+// is in progress wait for it and share its result, or its exception, instead of computing it again.
+// Results are not kept once the computation finishes.
+public class SingleFlight<K> {
+
+    public interface Computation {
+        byte[] compute() throws IOException;
+    }
+
+    private final ConcurrentHashMap<K, CompletableFuture<byte[]>> flights = new ConcurrentHashMap<>();
+    private final LongAdder computations = new LongAdder();
+    private final LongAdder sharedResults = new LongAdder();
+
+    private static byte[] await(CompletableFuture<byte[]> flight) throws IOException {
+        try {
+            return flight.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    public byte[] run(K key, Computation computation) throws IOException {
+        CompletableFuture<byte[]> flight = new CompletableFuture<>();
+        CompletableFuture<byte[]> existingFlight = flights.putIfAbsent(key, flight);
+        if (existingFlight != null) {
+            sharedResults.increment();
+            return await(existingFlight);
+        }
+
+        computations.increment();
+        try {
+            byte[] result = computation.compute();
+            flight.complete(result);
+            return result;
+        } catch (Throwable e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    public long getComputations() { return computations.sum(); }
+
+    public long getSharedResults() { return sharedResults.sum(); }
+
+}
@@ -0,0 +1,180 @@
+package ImageHandler;
+
+import Metrics.MetricsRegistry;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Deletes superseded versions of parts once no reader can read them anymore. A reader pins the current
+// epoch before it takes the part versions of an image and unpins it when it is done. Every retirement
+// ends an epoch, and what was retired in an epoch is reclaimed once all readers that pinned it or an
+// earlier one are done, as only they could have taken the versions from before the retirement.
+// Retired versions are reclaimed right away if no reader holds them back, otherwise by a background
+// thread every reclaimIntervalMillis.
+public class VersionReclaimer implements Closeable {
+
+    private static final Logger log = Logger.getLogger(VersionReclaimer.class.getName());
+
+    public interface Reclaim {
+        void reclaim() throws IOException;
+    }
+
+    private static class Retired {
+
+        private final long epoch;
+        private final Reclaim reclaim;
+
+        public Retired(long epoch, Reclaim reclaim) {
+            this.epoch = epoch;
+            this.reclaim = reclaim;
+        }
+    }
+
+    private final long reclaimIntervalNanos;
+    private final AtomicLong epoch = new AtomicLong();
+    // The number of readers that pinned each epoch.
+    private final ConcurrentSkipListMap<Long, Integer> pins = new ConcurrentSkipListMap<>();
+    private final List<Retired> retired = new ArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition closing = lock.newCondition();
+    private final Thread reclaimer;
+    private final LongAdder reclaimed;
+    private final LongAdder reclaimErrors;
+    private boolean closed = false;
+
+    public VersionReclaimer(long reclaimIntervalMillis, MetricsRegistry metrics) {
+        if (reclaimIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Invalid reclaim interval.");
+        }
+
+        this.reclaimIntervalNanos = TimeUnit.MILLISECONDS.toNanos(reclaimIntervalMillis);
+        this.reclaimed = metrics.counter("versions.reclaimed");
+        this.reclaimErrors = metrics.counter("versions.reclaim_errors");
+        metrics.gauge("versions.retired", this::getRetired);
+        metrics.gauge("versions.pinned_readers", this::getPinnedReaders);
+
+        this.reclaimer = new Thread(this::runReclaimer, "version-reclaimer");
+        this.reclaimer.setDaemon(true);
+        this.reclaimer.start();
+    }
+
+    // Returns the pinned epoch, to be passed to unpin.
+    public long pin() {
+        long pinnedEpoch = epoch.get();
+        pins.merge(pinnedEpoch, 1, Integer::sum);
+        return pinnedEpoch;
+    }
+
+    public void unpin(long pinnedEpoch) {
+        pins.computeIfPresent(pinnedEpoch, (pinned, readers) -> readers == 1 ? null : readers - 1);
+    }
+
+    // Called once the versions reclaim deletes are not current anymore, so that readers
+    // pinning from now on cannot take them.
+    public void retire(Reclaim reclaim) {
+        lock.lock();
+        try {
+            retired.add(new Retired(epoch.getAndIncrement(), reclaim));
+        } finally {
+            lock.unlock();
+        }
+        reclaim();
+    }
+
+    public void reclaim() {
+        Map.Entry<Long, Integer> oldestPin = pins.firstEntry();
+        long oldestPinnedEpoch = oldestPin == null ? Long.MAX_VALUE : oldestPin.getKey();
+        List<Retired> reclaimable = new ArrayList<>();
+        lock.lock();
+        try {
+            Iterator<Retired> entries = retired.iterator();
+            while (entries.hasNext()) {
+                Retired entry = entries.next();
+                if (entry.epoch < oldestPinnedEpoch) {
+                    reclaimable.add(entry);
+                    entries.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for (Retired entry : reclaimable) {
+            try {
+                entry.reclaim.reclaim();
+                reclaimed.increment();
+            } catch (IOException | RuntimeException e) {
+                reclaimErrors.increment();
+                log.log(Level.WARNING, "Could not reclaim a part version.", e);
+            }
+        }
+    }
+
+    private void runReclaimer() {
+        lock.lock();
+        try {
+            while (!closed) {
+                closing.awaitNanos(reclaimIntervalNanos);
+                lock.unlock();
+                try {
+                    reclaim();
+                } finally {
+                    lock.lock();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getRetired() {
+        lock.lock();
+        try {
+            return retired.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getPinnedReaders() {
+        int readers = 0;
+        for (int epochReaders : pins.values()) {
+            readers += epochReaders;
+        }
+        return readers;
+    }
+
+    // Stops the background thread and reclaims what no reader holds back anymore. The rest is left
+    // on disk, and older versions of parts are deleted when the images are loaded again.
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            closing.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            reclaimer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        reclaim();
+    }
+
+}
@@ -0,0 +1,221 @@
+package ImageHandler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Log of the rows written to parts held by the write-behind buffer. Records are collected in memory
+// and written out by write, or by commit, which also forces them to disk, before a draw is acknowledged.
+// The log is split into numbered segments: rotate starts a new one, and the older ones are deleted
+// once the parts they have records of were flushed. Every record has a checksum, so a record torn
+// by a crash can only be at the end of a segment and ends its replay. The rows of a draw are only
+// replayed if the log also has its commit record, which the draw appends before it is acknowledged.
+public class WriteAheadLog implements Closeable {
+
+    private static final String segmentSuffix = ".wal";
+    private static final int bufferSize = 1024 * 1024;
+    // The length and checksum of the record, then the draw, image id, level, part index, x and y of the row.
+    private static final int recordHeaderSize = 2 * Integer.BYTES + Long.BYTES + 5 * Integer.BYTES;
+    // A commit record only has the length, checksum and draw.
+    private static final int commitRecordSize = 2 * Integer.BYTES + Long.BYTES;
+
+    private final Path directory;
+    private final ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+    private FileChannel channel;
+    private long segment;
+    private long appendedBytes = 0;
+
+    public interface RecordConsumer {
+        void accept(int imageId, int level, int partIndex, int x, int y, ByteBuffer row) throws IOException;
+    }
+
+    public WriteAheadLog(Path directory) {
+        this.directory = directory;
+    }
+
+    private Path getSegmentPath(long segment) {
+        return directory.resolve(segment + segmentSuffix);
+    }
+
+    // The numbers of the segments in the directory, in ascending order.
+    private List<Long> listSegments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return segments;
+        }
+        try (Stream<Path> paths = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                String name = path.getFileName().toString();
+                if (!name.endsWith(segmentSuffix)) {
+                    continue;
+                }
+                try {
+                    segments.add(Long.parseLong(name.substring(0, name.length() - segmentSuffix.length())));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    private static int getChecksum(ByteBuffer record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.duplicate().position(2 * Integer.BYTES));
+        return (int) crc.getValue();
+    }
+
+    // The records of a segment up to the first torn one.
+    private List<ByteBuffer> readRecords(long segment) throws IOException {
+        ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(getSegmentPath(segment)));
+        List<ByteBuffer> records = new ArrayList<>();
+        while (log.remaining() >= commitRecordSize) {
+            int length = log.getInt(log.position());
+            if ((length != commitRecordSize && length < recordHeaderSize) || length > log.remaining()) {
+                break;
+            }
+            ByteBuffer record = log.slice().limit(length);
+            if (record.getInt(Integer.BYTES) != getChecksum(record)) {
+                break;
+            }
+            records.add(record);
+            log.position(log.position() + length);
+        }
+        return records;
+    }
+
+    // Passes the rows of the committed draws in all segments to consumer in the order they were
+    // appended in. A draw may commit in a later segment than its rows. Returns the number of replayed records.
+    public long replay(RecordConsumer consumer) throws IOException {
+        List<Long> segments = listSegments();
+        Set<Long> committedDraws = new HashSet<>();
+        for (long replayedSegment : segments) {
+            for (ByteBuffer record : readRecords(replayedSegment)) {
+                if (record.limit() == commitRecordSize) {
+                    committedDraws.add(record.getLong(8));
+                }
+            }
+        }
+
+        long records = 0;
+        for (long replayedSegment : segments) {
+            for (ByteBuffer record : readRecords(replayedSegment)) {
+                if (record.limit() == commitRecordSize || !committedDraws.contains(record.getLong(8))) {
+                    continue;
+                }
+                consumer.accept(record.getInt(16), record.getInt(20), record.getInt(24), record.getInt(28),
+                        record.getInt(32), record.position(recordHeaderSize).slice());
+                records++;
+            }
+        }
+        return records;
+    }
+
+    // Creates a segment, whose directory entry is forced so that records committed to it are not lost
+    // along with it.
+    private FileChannel openSegment(long segment) throws IOException {
+        FileChannel segmentChannel = FileChannel.open(getSegmentPath(segment), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        ImagePartFile.forceDirectory(directory.toString());
+        return segmentChannel;
+    }
+
+    // Starts a new segment after the existing ones, which stay until deleteSegmentsBefore removes them.
+    public synchronized void open() throws IOException {
+        Files.createDirectories(directory);
+        ImagePartFile.forceDirectory(directory.toAbsolutePath().getParent().toString());
+        List<Long> segments = listSegments();
+        segment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1) + 1;
+        channel = openSegment(segment);
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    public void append(long draw, int imageId, int level, int partIndex, int x, int y,
+                       ByteBuffer row) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(recordHeaderSize + row.remaining());
+        record.putInt(record.capacity()).putInt(0).putLong(draw).putInt(imageId).putInt(level).putInt(partIndex)
+                .putInt(x).putInt(y).put(row.duplicate()).flip();
+        append(record);
+    }
+
+    // Called once all rows of the draw were appended.
+    public void appendCommit(long draw) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(commitRecordSize);
+        record.putInt(record.capacity()).putInt(0).putLong(draw).flip();
+        append(record);
+    }
+
+    private synchronized void append(ByteBuffer record) throws IOException {
+        record.putInt(Integer.BYTES, getChecksum(record));
+        if (record.remaining() > buffer.remaining()) {
+            writeBuffer();
+        }
+        if (record.remaining() > buffer.remaining()) {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+        } else {
+            buffer.put(record);
+        }
+        appendedBytes += record.capacity();
+    }
+
+    // Writes out the records appended so far.
+    public synchronized void write() throws IOException {
+        writeBuffer();
+    }
+
+    // Writes out the records appended so far and forces them to disk.
+    public synchronized void commit() throws IOException {
+        writeBuffer();
+        channel.force(false);
+    }
+
+    // Returns the number of the new segment, records appended before are in the older ones.
+    // The old segment is forced, a commit after this only forces the new one.
+    public synchronized long rotate() throws IOException {
+        writeBuffer();
+        channel.force(false);
+        channel.close();
+        segment++;
+        channel = openSegment(segment);
+        return segment;
+    }
+
+    public void deleteSegmentsBefore(long lastSegment) throws IOException {
+        for (long deletedSegment : listSegments()) {
+            if (deletedSegment < lastSegment) {
+                Files.deleteIfExists(getSegmentPath(deletedSegment));
+            }
+        }
+    }
+
+    public synchronized long getAppendedBytes() { return appendedBytes; }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            writeBuffer();
+            channel.close();
+            channel = null;
+        }
+    }
+
+}
@@ -0,0 +1,387 @@
+package ImageHandler;
+
+import Metrics.Histogram;
+import Metrics.MetricsRegistry;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Parts that were drawn on but not written to their files yet. A draw writes a new version of a part
+// as a copy of the whole part file kept here, and only the current version of a part is written to
+// its file, so repeated draws on a part are coalesced into a single write of it, which a background
+// thread does every flushIntervalMillis or as soon as the dirty parts take more than maxDirtyBytes.
+// The written rows are also appended to the write-ahead log, so that acknowledged draws survive a crash.
+// The flush of a part is done by the passed PartWriter, under the lock of the part. Versions are unique
+// among all parts, so they are the keys of the dirty parts.
+public class WriteBehindBuffer implements Closeable {
+
+    private static final Logger log = Logger.getLogger(WriteBehindBuffer.class.getName());
+
+    private final WriteAheadLog writeAheadLog;
+    private final long maxDirtyBytes;
+    private final long flushIntervalNanos;
+    private final PartWriter partWriter;
+    private final Map<Long, DirtyPart> parts = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushRequested = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+    private final Thread flusher;
+    private final LongAdder coalescedWrites;
+    private final LongAdder flushedParts;
+    private final LongAdder flushErrors;
+    private final Histogram flushTime;
+    private final Histogram capacityWaitTime;
+    private final Histogram commitTime;
+    private long dirtyBytes = 0;
+    private long flushes = 0;
+    private boolean lastFlushFailed = false;
+    private boolean closed = false;
+
+    public static class DirtyPart {
+
+        private final int imageId;
+        private final LargeImage image;
+        private final int partIndex;
+        private final long version;
+        private final long previousVersion;
+        private final ByteBuffer content;
+        // Set once a newer version of the part was flushed, guarded by the lock of the buffer.
+        private boolean superseded = false;
+
+        public DirtyPart(int imageId, LargeImage image, int partIndex, long version, long previousVersion,
+                         ByteBuffer content) {
+            this.imageId = imageId;
+            this.image = image;
+            this.partIndex = partIndex;
+            this.version = version;
+            this.previousVersion = previousVersion;
+            this.content = content;
+        }
+
+        public int getImageId() { return imageId; }
+
+        // The level of the image the part belongs to.
+        public LargeImage getImage() { return image; }
+
+        public int getPartIndex() { return partIndex; }
+
+        public long getVersion() { return version; }
+
+        // The version of the part this one replaced, 0 if there was none.
+        public long getPreviousVersion() { return previousVersion; }
+
+        public ByteBuffer getContent() { return content; }
+    }
+
+    public interface PartWriter {
+        // Writes the current version of the part to its file and removes it from the buffer, unless
+        // its image was deleted or it was written already. Returns whether it was written.
+        boolean flush(DirtyPart part) throws IOException;
+    }
+
+    public interface PartLoader {
+        ByteBuffer load() throws IOException;
+    }
+
+    public WriteBehindBuffer(WriteAheadLog writeAheadLog, long maxDirtyBytes, long flushIntervalMillis,
+                             PartWriter partWriter, MetricsRegistry metrics) {
+        if (maxDirtyBytes <= 0 || flushIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Invalid write-behind limits.");
+        }
+
+        this.writeAheadLog = writeAheadLog;
+        this.maxDirtyBytes = maxDirtyBytes;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.partWriter = partWriter;
+        this.coalescedWrites = metrics.counter("writebehind.coalesced_writes");
+        this.flushedParts = metrics.counter("writebehind.flushed_parts");
+        this.flushErrors = metrics.counter("writebehind.flush_errors");
+        this.flushTime = metrics.histogram("writebehind.flush_ns");
+        this.capacityWaitTime = metrics.histogram("writebehind.capacity_wait_ns");
+        this.commitTime = metrics.histogram("wal.commit_ns");
+        metrics.gauge("writebehind.dirty_bytes", this::getDirtyBytes);
+        metrics.gauge("writebehind.dirty_parts", this::getDirtyParts);
+        metrics.gauge("wal.appended_bytes", writeAheadLog::getAppendedBytes);
+
+        this.flusher = new Thread(this::runFlusher, "write-behind-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    // The content of a dirty version of a part. The current version is only written to under the
+    // write lock of the part, and the older ones are never written to.
+    public ByteBuffer get(long version) {
+        lock.lock();
+        try {
+            DirtyPart part = parts.get(version);
+            return part == null ? null : part.getContent();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public DirtyPart getPart(long version) {
+        lock.lock();
+        try {
+            return parts.get(version);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the content of version, a new version of the part that replaces previousVersion, the current
+    // one, and is loaded by loader. Must be called under the write lock of the part.
+    public ByteBuffer open(int imageId, LargeImage image, int partIndex, long version, long previousVersion,
+                           PartLoader loader) throws IOException {
+        lock.lock();
+        try {
+            if (parts.containsKey(previousVersion)) {
+                coalescedWrites.increment();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        ByteBuffer content = loader.load();
+        lock.lock();
+        try {
+            parts.put(version, new DirtyPart(imageId, image, partIndex, version, previousVersion, content));
+            dirtyBytes += content.capacity();
+            if (dirtyBytes > maxDirtyBytes) {
+                flushRequested.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return content;
+    }
+
+    private void remove(DirtyPart part) {
+        if (parts.remove(part.getVersion(), part) && !part.superseded) {
+            dirtyBytes -= part.getContent().capacity();
+        }
+    }
+
+    // Called by the PartWriter under the lock of the part, once the part is in its file,
+    // or once a version that is not current anymore is reclaimed.
+    public void remove(long version) {
+        lock.lock();
+        try {
+            DirtyPart part = parts.get(version);
+            if (part != null) {
+                remove(part);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called by the PartWriter once part, the current version of its part, is in its file. The older
+    // versions of the part stop counting as dirty, but stay readable until they are removed. Returns
+    // them, followed by the version the oldest of them replaced, which was in the file before.
+    public List<Long> supersedeOlderVersions(DirtyPart part) {
+        List<Long> olderVersions = new ArrayList<>();
+        lock.lock();
+        try {
+            long version = part.getPreviousVersion();
+            DirtyPart olderPart;
+            while ((olderPart = parts.get(version)) != null) {
+                if (!olderPart.superseded) {
+                    olderPart.superseded = true;
+                    dirtyBytes -= olderPart.getContent().capacity();
+                }
+                olderVersions.add(version);
+                version = olderPart.getPreviousVersion();
+            }
+            olderVersions.add(version);
+        } finally {
+            lock.unlock();
+        }
+        return olderVersions;
+    }
+
+    // Drops the dirty parts of a deleted image, once no reader reads them anymore.
+    public void invalidateImage(int imageId) {
+        lock.lock();
+        try {
+            Iterator<Map.Entry<Long, DirtyPart>> entries = parts.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<Long, DirtyPart> entry = entries.next();
+                DirtyPart part = entry.getValue();
+                if (part.getImageId() == imageId) {
+                    if (!part.superseded) {
+                        dirtyBytes -= part.getContent().capacity();
+                    }
+                    entries.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void log(long draw, int imageId, int level, int partIndex, int x, int y,
+                    ByteBuffer row) throws IOException {
+        writeAheadLog.append(draw, imageId, level, partIndex, x, y, row);
+    }
+
+    // Marks the rows logged by the draw as complete, so that they are replayed after a crash once the
+    // commit record is written out by commit. The rows of a draw that failed are never replayed.
+    public void logCommit(long draw) throws IOException {
+        writeAheadLog.appendCommit(draw);
+    }
+
+    // Makes the draws done so far survive a crash of the process, or of the machine if force is set.
+    // Called before they are acknowledged.
+    public void commit(boolean force) throws IOException {
+        long start = System.nanoTime();
+        if (force) {
+            writeAheadLog.commit();
+        } else {
+            writeAheadLog.write();
+        }
+        commitTime.record(System.nanoTime() - start);
+    }
+
+    // Called before a draw takes any locks, as the flusher needs the locks of the parts it writes.
+    // Waits while the dirty parts take more than maxDirtyBytes, so a draw may go over the limit
+    // by its own size at most.
+    public void awaitCapacity() throws IOException {
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            while (dirtyBytes > maxDirtyBytes && !closed) {
+                long flushesBefore = flushes;
+                flushRequested.signal();
+                while (flushes == flushesBefore && !closed) {
+                    flushed.awaitUninterruptibly();
+                }
+                if (lastFlushFailed) {
+                    throw new IOException("Could not flush the write-behind buffer.");
+                }
+            }
+        } finally {
+            lock.unlock();
+            capacityWaitTime.record(System.nanoTime() - start);
+        }
+    }
+
+    // Records appended before the rotation of the log are in parts that are dirty at that point,
+    // or were flushed already, so the older segments can be deleted once these parts are written.
+    // A newer version of a part has the records of the older ones too, so the current version
+    // of every dirty part is written.
+    private void flushAll() throws IOException {
+        long start = System.nanoTime();
+        long segment = writeAheadLog.rotate();
+        List<DirtyPart> flushedParts = new ArrayList<>();
+        lock.lock();
+        try {
+            for (DirtyPart part : parts.values()) {
+                if (!part.superseded) {
+                    flushedParts.add(part);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for (DirtyPart part : flushedParts) {
+            if (partWriter.flush(part)) {
+                this.flushedParts.increment();
+            }
+        }
+        writeAheadLog.deleteSegmentsBefore(segment);
+        flushTime.record(System.nanoTime() - start);
+    }
+
+    private void runFlusher() {
+        lock.lock();
+        try {
+            while (!closed) {
+                if (dirtyBytes <= maxDirtyBytes) {
+                    flushRequested.awaitNanos(flushIntervalNanos);
+                }
+                if (closed) {
+                    break;
+                }
+
+                boolean failed = false;
+                lock.unlock();
+                try {
+                    flushAll();
+                } catch (IOException | RuntimeException e) {
+                    failed = true;
+                    flushErrors.increment();
+                    log.log(Level.WARNING, "Could not flush the write-behind buffer.", e);
+                } finally {
+                    lock.lock();
+                }
+                lastFlushFailed = failed;
+                flushes++;
+                flushed.signalAll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDirtyBytes() {
+        lock.lock();
+        try {
+            return dirtyBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getDirtyParts() {
+        lock.lock();
+        try {
+            return parts.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stops the flusher and writes out all dirty parts.
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            flushRequested.signal();
+            flushed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            flushAll();
+        } finally {
+            writeAheadLog.close();
+        }
+    }
+
+}
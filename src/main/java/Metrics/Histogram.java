@@ -0,0 +1,71 @@
+package Metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock-free histogram of non-negative values. Every power of two is split into a fixed number
+// of linear sub-buckets, so a percentile is reported with a relative error of at most 1 / subBuckets.
+public class Histogram {
+
+    private static final int subBucketBits = 3;
+    private static final int subBuckets = 1 << subBucketBits;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - subBucketBits + 1) * subBuckets);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    private static int getBucketIndex(long value) {
+        if (value < subBuckets) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value) - subBucketBits;
+        return (exponent + 1) * subBuckets + (int) (value >>> exponent) - subBuckets;
+    }
+
+    // The largest value that falls into the bucket.
+    private static long getBucketValue(int bucketIndex) {
+        if (bucketIndex < subBuckets) {
+            return bucketIndex;
+        }
+        int exponent = bucketIndex / subBuckets - 1;
+        long subBucket = bucketIndex % subBuckets + subBuckets;
+        return ((subBucket + 1) << exponent) - 1;
+    }
+
+    public void record(long value) {
+        value = Math.max(value, 0);
+        counts.incrementAndGet(getBucketIndex(value));
+        count.increment();
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    public long getCount() { return count.sum(); }
+
+    public long getSum() { return sum.sum(); }
+
+    public long getMax() { return max.get(); }
+
+    // Concurrent records may be partially visible, so the result is approximate under load.
+    public long getPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(getBucketValue(i), getMax());
+            }
+        }
+        return 0;
+    }
+
+}
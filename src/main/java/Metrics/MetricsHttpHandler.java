@@ -0,0 +1,39 @@
+package Metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.apache.http.HttpStatus;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+// Serves the plain text report of a MetricsRegistry on GET.
+public class MetricsHttpHandler implements HttpHandler {
+
+    private final MetricsRegistry metrics;
+
+    public MetricsHttpHandler(MetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void handle(HttpExchange httpExchange) throws IOException {
+        try {
+            if (!httpExchange.getRequestMethod().equals("GET")) {
+                httpExchange.sendResponseHeaders(HttpStatus.SC_METHOD_NOT_ALLOWED, -1);
+                return;
+            }
+
+            byte[] report = metrics.report().getBytes(StandardCharsets.UTF_8);
+            httpExchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            httpExchange.sendResponseHeaders(HttpStatus.SC_OK, report.length);
+            try (OutputStream outputStream = httpExchange.getResponseBody()) {
+                outputStream.write(report);
+            }
+        } finally {
+            httpExchange.close();
+        }
+    }
+
+}
@@ -0,0 +1,58 @@
+package Metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Named counters, histograms and gauges. Looking a metric up is a single map read,
+// hot paths keep the returned counter or histogram in a field instead.
+public class MetricsRegistry {
+
+    private static final double[] reportedPercentiles = {50, 90, 99, 99.9};
+    private static final String[] reportedPercentileNames = {"p50", "p90", "p99", "p999"};
+
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    public LongAdder counter(String name) {
+        LongAdder counter = counters.get(name);
+        return counter != null ? counter : counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    public Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        return histogram != null ? histogram : histograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    // One metric per line, sorted by name. Histograms are reported as their count, sum,
+    // max and percentiles, e.g. "http.get.latency_ns count=10 sum=... p50=... max=...".
+    public String report() {
+        Map<String, String> lines = new TreeMap<>();
+
+        counters.forEach((name, counter) -> lines.put(name, Long.toString(counter.sum())));
+        gauges.forEach((name, gauge) -> lines.put(name, Long.toString(gauge.getAsLong())));
+        histograms.forEach((name, histogram) -> {
+            StringBuilder line = new StringBuilder()
+                    .append("count=").append(histogram.getCount())
+                    .append(" sum=").append(histogram.getSum());
+            for (int i = 0; i < reportedPercentiles.length; i++) {
+                line.append(' ').append(reportedPercentileNames[i])
+                        .append('=').append(histogram.getPercentile(reportedPercentiles[i]));
+            }
+            line.append(" max=").append(histogram.getMax());
+            lines.put(name, line.toString());
+        });
+
+        StringBuilder report = new StringBuilder();
+        lines.forEach((name, value) -> report.append(name).append(' ').append(value).append('\n'));
+        return report.toString();
+    }
+
+}
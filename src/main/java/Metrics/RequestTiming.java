@@ -0,0 +1,88 @@
+package Metrics;
+
+import java.util.Locale;
+
+// Time spent by a single request in each of its phases. A request is handled by one thread,
+// so the phases are plain fields. The disabled instance does not even read the clock.
+public class RequestTiming {
+
+    public enum Phase {
+        // Waiting for the region or image lock.
+        LOCK("lock"),
+        // Opening image parts, including filling the part cache on a miss.
+        OPEN("open"),
+        // Reading rows of image parts.
+        READ("read"),
+        // Writing rows to image parts.
+        WRITE("write"),
+        // Receiving and parsing the BMP of a request body.
+        DECODE("decode"),
+        // Writing the response body to the socket.
+        SEND("send");
+
+        private final String name;
+
+        Phase(String name) {
+            this.name = name;
+        }
+    }
+
+    public static final RequestTiming disabled = new RequestTiming(false);
+
+    private final boolean enabled;
+    private final long start;
+    private final long[] phaseTimes = new long[Phase.values().length];
+
+    private RequestTiming(boolean enabled) {
+        this.enabled = enabled;
+        this.start = enabled ? System.nanoTime() : 0;
+    }
+
+    public RequestTiming() {
+        this(true);
+    }
+
+    // Returns the start of a phase, to be passed to stop.
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    public void stop(Phase phase, long startedAt) {
+        if (enabled) {
+            phaseTimes[phase.ordinal()] += System.nanoTime() - startedAt;
+        }
+    }
+
+    public long getPhaseTime(Phase phase) {
+        return phaseTimes[phase.ordinal()];
+    }
+
+    public long getTotalTime() {
+        return System.nanoTime() - start;
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    // E.g. "lock;dur=0.012, read;dur=3.250, total;dur=4.100", phases that took no time are skipped.
+    public String toServerTiming() {
+        StringBuilder serverTiming = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            if (getPhaseTime(phase) > 0) {
+                serverTiming.append(phase.name).append(";dur=").append(toMillis(getPhaseTime(phase))).append(", ");
+            }
+        }
+        return serverTiming.append("total;dur=").append(toMillis(getTotalTime())).toString();
+    }
+
+    // E.g. "total_ms=4.100 lock_ms=0.012 open_ms=0.000 read_ms=3.250 ...".
+    public String toLogFields() {
+        StringBuilder fields = new StringBuilder("total_ms=").append(toMillis(getTotalTime()));
+        for (Phase phase : Phase.values()) {
+            fields.append(' ').append(phase.name).append("_ms=").append(toMillis(getPhaseTime(phase)));
+        }
+        return fields.toString();
+    }
+
+}
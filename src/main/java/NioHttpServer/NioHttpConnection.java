@@ -0,0 +1,211 @@
+package NioHttpServer;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+// A connection stays in non-blocking mode for its whole life. While idle it is watched by the selector
+// of the server, while a request is handled its exchange reads and writes it from a worker thread
+// and only waits for the socket, on a separate selector, when it is not ready.
+public class NioHttpConnection implements Closeable {
+
+    private static final int readBufferSize = 16 * 1024;
+    private static final int lineFeed = '\n';
+
+    private final NioHttpServer server;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    // Bytes received but not consumed yet, in read mode. Idle connections without
+    // such bytes drop the buffer, so they only cost their socket and selection key.
+    private ByteBuffer readBuffer;
+    private volatile long lastActivity = System.currentTimeMillis();
+    private volatile boolean handlingRequest = false;
+
+    public NioHttpConnection(NioHttpServer server, SocketChannel channel, Selector selector) throws IOException {
+        this.server = server;
+        this.channel = channel;
+        this.key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    public SocketChannel getChannel() { return channel; }
+
+    public SelectionKey getKey() { return key; }
+
+    public long getLastActivity() { return lastActivity; }
+
+    public boolean isHandlingRequest() { return handlingRequest; }
+
+    public void setHandlingRequest(boolean handlingRequest) {
+        this.handlingRequest = handlingRequest;
+        lastActivity = System.currentTimeMillis();
+    }
+
+    private ByteBuffer getReadBuffer() {
+        if (readBuffer == null) {
+            readBuffer = ByteBuffer.allocate(readBufferSize).flip();
+        }
+        return readBuffer;
+    }
+
+    public void releaseIdleBuffer() {
+        if (readBuffer != null && !readBuffer.hasRemaining()) {
+            readBuffer = null;
+        }
+    }
+
+    // Reads whatever the socket has without waiting. Returns -1 at the end of the stream.
+    private int fill() throws IOException {
+        ByteBuffer buffer = getReadBuffer().compact();
+        try {
+            return channel.read(buffer);
+        } finally {
+            buffer.flip();
+            lastActivity = System.currentTimeMillis();
+        }
+    }
+
+    private int findHeadEnd() {
+        if (readBuffer == null) {
+            return -1;
+        }
+        for (int i = readBuffer.position(); i + 3 < readBuffer.limit(); i++) {
+            if (readBuffer.get(i) == '\r' && readBuffer.get(i + 1) == '\n' &&
+                    readBuffer.get(i + 2) == '\r' && readBuffer.get(i + 3) == '\n') {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+
+    // Called by the selector thread. Returns the bytes of a complete request head including
+    // its terminating empty line, or null if more bytes are needed.
+    public byte[] readRequestHead(boolean readSocket) throws IOException {
+        int headEnd = findHeadEnd();
+        if (headEnd < 0 && readSocket) {
+            if (fill() < 0) {
+                throw new EOFException();
+            }
+            headEnd = findHeadEnd();
+        }
+
+        if (headEnd < 0) {
+            if (readBuffer != null && readBuffer.remaining() == readBuffer.capacity()) {
+                throw new IOException("Request head is too large.");
+            }
+            return null;
+        }
+
+        byte[] head = new byte[headEnd - readBuffer.position()];
+        readBuffer.get(head);
+        return head;
+    }
+
+    private void await(int operation) throws IOException {
+        Selector selector = server.acquireWaitSelector();
+        try {
+            SelectionKey waitKey = channel.register(selector, operation);
+            try {
+                long deadline = System.currentTimeMillis() + server.getSocketTimeoutMillis();
+                while (selector.select(Math.max(1, deadline - System.currentTimeMillis())) == 0) {
+                    if (System.currentTimeMillis() >= deadline) {
+                        throw new SocketTimeoutException();
+                    }
+                }
+            } finally {
+                waitKey.cancel();
+                selector.selectNow();
+            }
+        } finally {
+            server.releaseWaitSelector(selector);
+        }
+    }
+
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        ByteBuffer buffer = getReadBuffer();
+        while (!buffer.hasRemaining()) {
+            // Large reads bypass the buffer.
+            if (length >= buffer.capacity()) {
+                int bytesRead = channel.read(ByteBuffer.wrap(bytes, offset, length));
+                if (bytesRead != 0) {
+                    lastActivity = System.currentTimeMillis();
+                    return bytesRead;
+                }
+            } else if (fill() < 0) {
+                return -1;
+            }
+            if (!buffer.hasRemaining()) {
+                await(SelectionKey.OP_READ);
+            }
+        }
+
+        int bytesRead = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, bytesRead);
+        return bytesRead;
+    }
+
+    public int read() throws IOException {
+        ByteBuffer buffer = getReadBuffer();
+        while (!buffer.hasRemaining()) {
+            if (fill() < 0) {
+                return -1;
+            }
+            if (!buffer.hasRemaining()) {
+                await(SelectionKey.OP_READ);
+            }
+        }
+        return buffer.get() & 0xff;
+    }
+
+    // Reads a CRLF terminated line of ASCII text, without the line terminator.
+    public String readLine(int maxLength) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = read()) != lineFeed) {
+            if (c < 0) {
+                throw new EOFException();
+            }
+            if (line.length() >= maxLength) {
+                throw new IOException("Line is too long.");
+            }
+            line.append((char) c);
+        }
+        if (line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+            line.setLength(line.length() - 1);
+        }
+        return line.toString();
+    }
+
+    public void write(ByteBuffer... buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            long bytesWritten = channel.write(buffers);
+            if (bytesWritten == 0) {
+                await(SelectionKey.OP_WRITE);
+            }
+            remaining -= bytesWritten;
+        }
+        lastActivity = System.currentTimeMillis();
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        readBuffer = null;
+    }
+
+}
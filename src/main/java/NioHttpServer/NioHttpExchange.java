@@ -0,0 +1,259 @@
+package NioHttpServer;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Follows the semantics of the exchanges of the JDK server: a response length of 0 means
+// a chunked body, -1 means no body, and the connection is reused only if the request body
+// was read to its end and the response body was completely written when the exchange is closed.
+public class NioHttpExchange extends HttpExchange {
+
+    private static final long maxDrainedBytes = 64 * 1024;
+    private static final Map<Integer, String> reasonPhrases = Map.ofEntries(
+            Map.entry(100, "Continue"), Map.entry(200, "OK"), Map.entry(201, "Created"),
+            Map.entry(204, "No Content"), Map.entry(304, "Not Modified"), Map.entry(400, "Bad Request"),
+            Map.entry(401, "Unauthorized"), Map.entry(403, "Forbidden"), Map.entry(404, "Not Found"), Map.entry(405, "Method Not Allowed"), Map.entry(413, "Payload Too Large"),
+            Map.entry(500, "Internal Server Error"), Map.entry(503, "Service Unavailable"));
+
+    private final NioHttpServer server;
+    private final NioHttpConnection connection;
+    private final String method;
+    private final URI requestURI;
+    private final String protocol;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+    private final Map<String, Object> attributes = new HashMap<>();
+    private final RequestBodyStream requestBody;
+    private final ResponseBodyStream responseBody;
+    private HttpContext context;
+    private HttpPrincipal principal;
+    private InputStream requestBodyStream;
+    private OutputStream responseBodyStream;
+    private boolean keepAlive;
+    private int responseCode = -1;
+    private boolean closed = false;
+
+    private NioHttpExchange(NioHttpServer server, NioHttpConnection connection, String method, URI requestURI,
+                            String protocol, Headers requestHeaders, RequestBodyStream requestBody) {
+        this.server = server;
+        this.connection = connection;
+        this.method = method;
+        this.requestURI = requestURI;
+        this.protocol = protocol;
+        this.requestHeaders = requestHeaders;
+        this.requestBody = requestBody;
+        this.responseBody = new ResponseBodyStream(connection);
+        this.requestBodyStream = requestBody;
+        this.responseBodyStream = responseBody;
+
+        String connectionHeader = requestHeaders.getFirst("Connection");
+        this.keepAlive = protocol.equals("HTTP/1.1") && !"close".equalsIgnoreCase(connectionHeader);
+    }
+
+    // Parses a request head, i.e. the request line and headers followed by an empty line.
+    public static NioHttpExchange parse(NioHttpServer server, NioHttpConnection connection,
+                                        byte[] head) throws IOException {
+        String[] lines = new String(head, StandardCharsets.ISO_8859_1).split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/")) {
+            throw new IOException("Invalid request line: " + lines[0]);
+        }
+
+        URI requestURI;
+        try {
+            requestURI = new URI(requestLine[1]);
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid request URI: " + requestLine[1]);
+        }
+
+        Headers requestHeaders = new Headers();
+        for (int i = 1; i < lines.length; i++) {
+            int separator = lines[i].indexOf(':');
+            if (separator <= 0) {
+                throw new IOException("Invalid header: " + lines[i]);
+            }
+            requestHeaders.add(lines[i].substring(0, separator).trim(), lines[i].substring(separator + 1).trim());
+        }
+
+        boolean chunked = "chunked".equalsIgnoreCase(requestHeaders.getFirst("Transfer-Encoding"));
+        long contentLength = 0;
+        if (!chunked && requestHeaders.containsKey("Content-Length")) {
+            try {
+                contentLength = Long.parseLong(requestHeaders.getFirst("Content-Length"));
+            } catch (NumberFormatException e) {
+                contentLength = -1;
+            }
+            if (contentLength < 0) {
+                throw new IOException("Invalid Content-Length: " + requestHeaders.getFirst("Content-Length"));
+            }
+        }
+
+        return new NioHttpExchange(server, connection, requestLine[0], requestURI, requestLine[2],
+                requestHeaders, new RequestBodyStream(connection, contentLength, chunked));
+    }
+
+    public NioHttpConnection getConnection() { return connection; }
+
+    public boolean isKeepAlive() { return keepAlive; }
+
+    public void setHttpContext(HttpContext context) {
+        this.context = context;
+    }
+
+    public void sendContinue() throws IOException {
+        if ("100-continue".equalsIgnoreCase(requestHeaders.getFirst("Expect")) && protocol.equals("HTTP/1.1")) {
+            connection.write(ByteBuffer.wrap(
+                    "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+        }
+    }
+
+    @Override
+    public Headers getRequestHeaders() { return requestHeaders; }
+
+    @Override
+    public Headers getResponseHeaders() { return responseHeaders; }
+
+    @Override
+    public URI getRequestURI() { return requestURI; }
+
+    @Override
+    public String getRequestMethod() { return method; }
+
+    @Override
+    public HttpContext getHttpContext() { return context; }
+
+    @Override
+    public InputStream getRequestBody() { return requestBodyStream; }
+
+    @Override
+    public OutputStream getResponseBody() { return responseBodyStream; }
+
+    @Override
+    public void sendResponseHeaders(int responseCode, long responseLength) throws IOException {
+        if (this.responseCode != -1) {
+            throw new IOException("Response headers were already sent.");
+        }
+        this.responseCode = responseCode;
+
+        boolean noBody = responseLength == -1 || method.equals("HEAD") ||
+                responseCode == 204 || responseCode == 304 || responseCode < 200;
+        boolean chunked = !noBody && responseLength == 0;
+
+        responseHeaders.set("Date", DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC)));
+        if (chunked) {
+            responseHeaders.set("Transfer-encoding", "chunked");
+        } else if (responseCode != 204 && responseCode != 304 && responseCode >= 200) {
+            responseHeaders.set("Content-length", Long.toString(Math.max(responseLength, 0)));
+        }
+        if ("close".equalsIgnoreCase(responseHeaders.getFirst("Connection"))) {
+            keepAlive = false;
+        }
+        if (!keepAlive || server.isStopping()) {
+            keepAlive = false;
+            responseHeaders.set("Connection", "close");
+        }
+
+        StringBuilder head = new StringBuilder("HTTP/1.1 ").append(responseCode).append(' ')
+                .append(reasonPhrases.getOrDefault(responseCode, "")).append("\r\n");
+        for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+            for (String value : header.getValue()) {
+                head.append(header.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        head.append("\r\n");
+
+        responseBody.start(head.toString().getBytes(StandardCharsets.ISO_8859_1),
+                noBody ? 0 : responseLength, chunked);
+        if (noBody) {
+            responseBody.close();
+        }
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return (InetSocketAddress) connection.getChannel().socket().getRemoteSocketAddress();
+    }
+
+    @Override
+    public int getResponseCode() { return responseCode; }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return (InetSocketAddress) connection.getChannel().socket().getLocalSocketAddress();
+    }
+
+    @Override
+    public String getProtocol() { return protocol; }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (value == null) {
+            attributes.remove(name);
+        } else {
+            attributes.put(name, value);
+        }
+    }
+
+    @Override
+    public void setStreams(InputStream requestBodyStream, OutputStream responseBodyStream) {
+        if (requestBodyStream != null) {
+            this.requestBodyStream = requestBodyStream;
+        }
+        if (responseBodyStream != null) {
+            this.responseBodyStream = responseBodyStream;
+        }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() { return principal; }
+
+    void setPrincipal(HttpPrincipal principal) {
+        this.principal = principal;
+    }
+
+    // Finishes the response and hands the connection back to the server, which either
+    // waits for the next request on it or closes it.
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            if (responseCode == -1) {
+                keepAlive = false;
+            } else {
+                responseBody.close();
+                keepAlive = keepAlive && responseBody.isComplete() && requestBody.drain(maxDrainedBytes);
+            }
+        } catch (IOException e) {
+            keepAlive = false;
+        } finally {
+            server.finishExchange(this);
+        }
+    }
+
+}
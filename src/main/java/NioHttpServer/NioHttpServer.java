@@ -0,0 +1,388 @@
+package NioHttpServer;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// An HttpServer that can be used instead of the one of the JDK. A single selector thread accepts
+// connections and reads request heads, so idle keep-alive connections do not hold any thread.
+// Once a request head is read the exchange is handed to the executor, and the connection
+// is watched by the selector again when the exchange is closed. Requests pipelined by a client
+// are handled one after another.
+public class NioHttpServer extends HttpServer {
+
+    private static final Logger log = Logger.getLogger(NioHttpServer.class.getName());
+    private static final long selectTimeoutMillis = 1000;
+    private static final long defaultIdleTimeoutMillis = 60_000;
+    private static final long defaultSocketTimeoutMillis = 30_000;
+    // Used when no backlog is passed, the default of 50 drops connections under bursts of connects.
+    private static final int defaultBacklog = 1024;
+    private static final byte[] badRequestResponse =
+            "HTTP/1.1 400 Bad Request\r\nContent-length: 0\r\nConnection: close\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII);
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Map<String, NioHttpContext> contexts = new ConcurrentHashMap<>();
+    private final Queue<NioHttpConnection> connectionsToResume = new ConcurrentLinkedQueue<>();
+    private final Queue<Selector> waitSelectors = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger activeExchanges = new AtomicInteger();
+    private final long idleTimeoutMillis;
+    private final long socketTimeoutMillis;
+    private volatile Executor executor;
+    private volatile boolean stopping = false;
+    private volatile boolean failed = false;
+    private Thread selectorThread;
+    private boolean bound = false;
+
+    public NioHttpServer(long idleTimeoutMillis, long socketTimeoutMillis) throws IOException {
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.socketTimeoutMillis = socketTimeoutMillis;
+    }
+
+    // Same as HttpServer.create, the server is bound if the address is not null.
+    public static NioHttpServer create(InetSocketAddress address, int backlog) throws IOException {
+        NioHttpServer server = new NioHttpServer(defaultIdleTimeoutMillis, defaultSocketTimeoutMillis);
+        if (address != null) {
+            server.bind(address, backlog);
+        }
+        return server;
+    }
+
+    public long getSocketTimeoutMillis() { return socketTimeoutMillis; }
+
+    public boolean isStopping() { return stopping; }
+
+    // True once the selector thread died, the server then no longer accepts connections.
+    public boolean isFailed() { return failed; }
+
+    // Selectors used by worker threads to wait until a connection is readable or writable.
+    public Selector acquireWaitSelector() throws IOException {
+        Selector waitSelector = waitSelectors.poll();
+        return waitSelector != null ? waitSelector : Selector.open();
+    }
+
+    public void releaseWaitSelector(Selector waitSelector) {
+        waitSelectors.add(waitSelector);
+    }
+
+    @Override
+    public void bind(InetSocketAddress address, int backlog) throws IOException {
+        if (bound) {
+            throw new IllegalStateException("The server is already bound.");
+        }
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(address, backlog > 0 ? backlog : defaultBacklog);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        bound = true;
+    }
+
+    @Override
+    public void start() {
+        if (!bound || selectorThread != null) {
+            throw new IllegalStateException("The server is not bound or was already started.");
+        }
+        selectorThread = new Thread(this::runSelector, "nio-http-selector");
+        selectorThread.start();
+    }
+
+    @Override
+    public void setExecutor(Executor executor) {
+        if (selectorThread != null) {
+            throw new IllegalStateException("The server was already started.");
+        }
+        this.executor = executor;
+    }
+
+    @Override
+    public Executor getExecutor() { return executor; }
+
+    // Stops accepting connections and waits up to delay seconds for the exchanges in progress.
+    @Override
+    public void stop(int delay) {
+        stopping = true;
+        try {
+            serverChannel.close();
+        } catch (IOException ignored) {
+        }
+
+        long deadline = System.currentTimeMillis() + delay * 1000L;
+        while (activeExchanges.get() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        selector.wakeup();
+        if (selectorThread != null) {
+            try {
+                selectorThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Selector waitSelector;
+        while ((waitSelector = waitSelectors.poll()) != null) {
+            try {
+                waitSelector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public HttpContext createContext(String path, HttpHandler handler) {
+        if (!path.startsWith("/")) {
+            throw new IllegalArgumentException("Invalid path: " + path);
+        }
+        NioHttpContext context = new NioHttpContext(path, handler, this);
+        if (contexts.putIfAbsent(path, context) != null) {
+            throw new IllegalArgumentException("A context already exists for " + path);
+        }
+        return context;
+    }
+
+    @Override
+    public HttpContext createContext(String path) {
+        return createContext(path, null);
+    }
+
+    @Override
+    public void removeContext(String path) {
+        if (contexts.remove(path) == null) {
+            throw new IllegalArgumentException("No context exists for " + path);
+        }
+    }
+
+    @Override
+    public void removeContext(HttpContext context) {
+        contexts.remove(context.getPath(), context);
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        try {
+            return (InetSocketAddress) serverChannel.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // The context with the longest path that is a prefix of the request path, like in the JDK server.
+    private NioHttpContext findContext(String path) {
+        NioHttpContext found = null;
+        for (NioHttpContext context : contexts.values()) {
+            if (path.startsWith(context.getPath()) &&
+                    (found == null || context.getPath().length() > found.getPath().length())) {
+                found = context;
+            }
+        }
+        return found;
+    }
+
+    private void runSelector() {
+        long lastIdleCheck = System.currentTimeMillis();
+        try {
+            while (!stopping) {
+                selector.select(selectTimeoutMillis);
+
+                NioHttpConnection resumedConnection;
+                while ((resumedConnection = connectionsToResume.poll()) != null) {
+                    resume(resumedConnection);
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        readRequestHead((NioHttpConnection) key.attachment(), true);
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                if (System.currentTimeMillis() - lastIdleCheck >= selectTimeoutMillis) {
+                    closeIdleConnections();
+                    lastIdleCheck = System.currentTimeMillis();
+                }
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            // Nothing would accept or read connections anymore, so the server stops instead
+            // of leaving clients to connect and time out.
+            failed = true;
+            stopping = true;
+            log.log(Level.SEVERE, "The selector thread failed, the server stopped accepting connections.", e);
+            try {
+                serverChannel.close();
+            } catch (IOException ignored) {
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioHttpConnection) {
+                    ((NioHttpConnection) key.attachment()).close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void accept() {
+        SocketChannel channel;
+        try {
+            while ((channel = serverChannel.accept()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    new NioHttpConnection(this, channel, selector);
+                } catch (IOException e) {
+                    channel.close();
+                }
+            }
+        } catch (IOException ignored) {
+            // The server channel was closed by stop.
+        }
+    }
+
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof NioHttpConnection) {
+                NioHttpConnection connection = (NioHttpConnection) key.attachment();
+                if (!connection.isHandlingRequest() &&
+                        (stopping || now - connection.getLastActivity() > idleTimeoutMillis)) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private void resume(NioHttpConnection connection) {
+        if (!connection.getChannel().isOpen()) {
+            return;
+        }
+        connection.setHandlingRequest(false);
+        connection.releaseIdleBuffer();
+        if (stopping) {
+            connection.close();
+            return;
+        }
+        connection.getKey().interestOps(SelectionKey.OP_READ);
+        // A pipelined request may already be buffered.
+        readRequestHead(connection, false);
+    }
+
+    private void readRequestHead(NioHttpConnection connection, boolean readSocket) {
+        NioHttpExchange exchange;
+        try {
+            byte[] head = connection.readRequestHead(readSocket);
+            if (head == null) {
+                return;
+            }
+            exchange = NioHttpExchange.parse(this, connection, head);
+        } catch (EOFException e) {
+            connection.close();
+            return;
+        } catch (IOException e) {
+            rejectRequest(connection);
+            return;
+        }
+
+        connection.getKey().interestOps(0);
+        connection.setHandlingRequest(true);
+        activeExchanges.incrementAndGet();
+
+        Executor currentExecutor = executor;
+        if (currentExecutor == null) {
+            handle(exchange);
+        } else {
+            currentExecutor.execute(() -> handle(exchange));
+        }
+    }
+
+    private void rejectRequest(NioHttpConnection connection) {
+        try {
+            connection.getChannel().write(ByteBuffer.wrap(badRequestResponse));
+        } catch (IOException ignored) {
+        }
+        connection.close();
+    }
+
+    private void handle(NioHttpExchange exchange) {
+        try {
+            NioHttpContext context = findContext(exchange.getRequestURI().getPath());
+            exchange.setHttpContext(context);
+            exchange.sendContinue();
+
+            if (context == null || context.getHandler() == null) {
+                exchange.sendResponseHeaders(404, -1);
+            } else if (authenticate(context, exchange)) {
+                new Filter.Chain(context.getFilters(), context.getHandler()).doFilter(exchange);
+            }
+        } catch (IOException | RuntimeException e) {
+            exchange.getConnection().close();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // Like the JDK server, an exchange that is not authenticated is answered with the code of the result.
+    private static boolean authenticate(NioHttpContext context, NioHttpExchange exchange) throws IOException {
+        Authenticator authenticator = context.getAuthenticator();
+        if (authenticator == null) {
+            return true;
+        }
+        Authenticator.Result result = authenticator.authenticate(exchange);
+        if (result instanceof Authenticator.Success) {
+            exchange.setPrincipal(((Authenticator.Success) result).getPrincipal());
+            return true;
+        }
+        int responseCode = result instanceof Authenticator.Failure ?
+                ((Authenticator.Failure) result).getResponseCode() : ((Authenticator.Retry) result).getResponseCode();
+        exchange.sendResponseHeaders(responseCode, -1);
+        return false;
+    }
+
+    public void finishExchange(NioHttpExchange exchange) {
+        NioHttpConnection connection = exchange.getConnection();
+        if (exchange.isKeepAlive() && connection.getChannel().isOpen()) {
+            connectionsToResume.add(connection);
+            selector.wakeup();
+        } else {
+            connection.close();
+        }
+        activeExchanges.decrementAndGet();
+    }
+
+}
@@ -0,0 +1,115 @@
+package NioHttpServer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// The body of a request, delimited either by its Content-Length or by chunked transfer coding.
+public class RequestBodyStream extends InputStream {
+
+    private static final int maxLineLength = 4096;
+
+    private final NioHttpConnection connection;
+    private final boolean chunked;
+    // Bytes left in the body, or in the current chunk of a chunked body.
+    private long remaining;
+    private boolean eof;
+    private boolean closed = false;
+
+    public RequestBodyStream(NioHttpConnection connection, long contentLength, boolean chunked) {
+        this.connection = connection;
+        this.chunked = chunked;
+        this.remaining = chunked ? 0 : contentLength;
+        this.eof = !chunked && contentLength == 0;
+    }
+
+    private void readChunkSize() throws IOException {
+        String sizeLine = connection.readLine(maxLineLength);
+        int extensionStart = sizeLine.indexOf(';');
+        try {
+            remaining = Long.parseLong((extensionStart < 0 ? sizeLine : sizeLine.substring(0, extensionStart)).trim(), 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid chunk size: " + sizeLine);
+        }
+        if (remaining < 0) {
+            throw new IOException("Invalid chunk size: " + sizeLine);
+        }
+
+        if (remaining == 0) {
+            // Trailers are read and ignored.
+            while (!connection.readLine(maxLineLength).isEmpty()) {
+            }
+            eof = true;
+        }
+    }
+
+    private void readChunkEnd() throws IOException {
+        if (!connection.readLine(maxLineLength).isEmpty()) {
+            throw new IOException("Invalid chunk end.");
+        }
+    }
+
+    public boolean isEOF() { return eof; }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed.");
+        }
+        return readBody(bytes, offset, length);
+    }
+
+    private int readBody(byte[] bytes, int offset, int length) throws IOException {
+        if (chunked && remaining == 0 && !eof) {
+            readChunkSize();
+        }
+        if (eof) {
+            return -1;
+        }
+        if (length == 0) {
+            return 0;
+        }
+
+        int bytesRead = connection.read(bytes, offset, (int) Math.min(length, remaining));
+        if (bytesRead < 0) {
+            throw new EOFException("Connection closed before the whole request body was received.");
+        }
+        remaining -= bytesRead;
+        if (remaining == 0) {
+            if (chunked) {
+                readChunkEnd();
+            } else {
+                eof = true;
+            }
+        }
+        return bytesRead;
+    }
+
+    // Skips up to limit bytes of the rest of the body, returns whether its end was reached.
+    public boolean drain(long limit) throws IOException {
+        if (eof) {
+            return true;
+        }
+        byte[] skipped = new byte[8192];
+        while (!eof && limit > 0) {
+            int bytesRead = readBody(skipped, 0, (int) Math.min(skipped.length, limit));
+            if (bytesRead > 0) {
+                limit -= bytesRead;
+            }
+        }
+        return eof;
+    }
+
+    // The rest of the body is drained when the exchange is closed, so the connection can be reused.
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+}
@@ -0,0 +1,120 @@
+package NioHttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// The body of a response, either of a fixed length or in chunked transfer coding. The response head
+// is buffered together with the start of the body, so small responses are sent in a single write.
+public class ResponseBodyStream extends OutputStream {
+
+    private static final int bufferSize = 16 * 1024;
+    private static final byte[] chunkEnd = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] lastChunk = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final NioHttpConnection connection;
+    private ByteBuffer buffer;
+    // Bytes before bodyStart in the buffer belong to the response head.
+    private int bodyStart;
+    private boolean chunked;
+    private long remaining;
+    private boolean started = false;
+    private boolean closed = false;
+
+    public ResponseBodyStream(NioHttpConnection connection) {
+        this.connection = connection;
+    }
+
+    public void start(byte[] head, long contentLength, boolean chunked) {
+        buffer = ByteBuffer.allocate(Math.max(bufferSize, head.length));
+        buffer.put(head);
+        bodyStart = head.length;
+        this.chunked = chunked;
+        this.remaining = contentLength;
+        started = true;
+    }
+
+    public boolean isComplete() {
+        return closed && (chunked || remaining == 0);
+    }
+
+    private static ByteBuffer getChunkHeader(int chunkSize) {
+        return ByteBuffer.wrap((Integer.toHexString(chunkSize) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    // Sends the buffered head and body, followed by the given bytes outside of any chunk.
+    private void flushBuffer(ByteBuffer trailer) throws IOException {
+        buffer.flip();
+        ByteBuffer head = buffer.duplicate().limit(bodyStart);
+        ByteBuffer body = buffer.duplicate().position(bodyStart);
+
+        if (chunked && body.hasRemaining()) {
+            connection.write(head, getChunkHeader(body.remaining()), body, ByteBuffer.wrap(chunkEnd), trailer);
+        } else {
+            connection.write(head, body, trailer);
+        }
+        buffer.clear();
+        bodyStart = 0;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (!started) {
+            throw new IOException("Response headers were not sent.");
+        }
+        if (closed) {
+            throw new IOException("Stream is closed.");
+        }
+        if (!chunked) {
+            if (length > remaining) {
+                throw new IOException("Too many bytes to write to the stream.");
+            }
+            remaining -= length;
+        }
+
+        // Small writes are buffered, large ones are sent right away after what is buffered.
+        if (length < buffer.capacity() / 2) {
+            if (length > buffer.remaining()) {
+                flushBuffer(ByteBuffer.allocate(0));
+            }
+            buffer.put(bytes, offset, length);
+            return;
+        }
+
+        if (buffer.position() > 0) {
+            flushBuffer(ByteBuffer.allocate(0));
+        }
+        if (chunked) {
+            connection.write(getChunkHeader(length), ByteBuffer.wrap(bytes, offset, length), ByteBuffer.wrap(chunkEnd));
+        } else {
+            connection.write(ByteBuffer.wrap(bytes, offset, length));
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (started && !closed) {
+            flushBuffer(ByteBuffer.allocate(0));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed || !started) {
+            return;
+        }
+        closed = true;
+
+        flushBuffer(ByteBuffer.wrap(chunked ? lastChunk : new byte[0]));
+        if (!chunked && remaining > 0) {
+            throw new IOException("Insufficient bytes written to the stream.");
+        }
+    }
+
+}
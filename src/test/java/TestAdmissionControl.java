@@ -0,0 +1,109 @@
+import ChartasHttpHandler.AdmissionControl;
+import ChartasHttpHandler.ChartasHttpHandler;
+import ImageHandler.ImageHandler;
+import ImageHandler.RequestCost;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.HttpStatus;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestAdmissionControl {
+
+    private static final int port = 8081;
+    private static final String workingDirectory = "testData";
+
+    @Test
+    public void budgetTest() {
+        AdmissionControl admissionControl = new AdmissionControl(100, 1000, 0, 10);
+
+        AdmissionControl.Permit permit1 = admissionControl.tryAdmit(new RequestCost(60, 500));
+        AdmissionControl.Permit permit2 = admissionControl.tryAdmit(new RequestCost(60, 100));
+        AdmissionControl.Permit permit3 = admissionControl.tryAdmit(new RequestCost(40, 500));
+
+        assertAll(() -> {
+            assertNotNull(permit1);
+            assertNull(permit2);
+            assertNotNull(permit3);
+            assertEquals(0, admissionControl.getAvailableMemory());
+            assertEquals(0, admissionControl.getAvailableIo());
+        });
+
+        permit1.close();
+        permit1.close();
+        assertEquals(60, admissionControl.getAvailableMemory());
+    }
+
+    @Test
+    public void queuedRequestTest() throws Exception {
+        AdmissionControl admissionControl = new AdmissionControl(100, 100, 10_000, 10);
+        AdmissionControl.Permit permit = admissionControl.tryAdmit(new RequestCost(100, 0));
+
+        CompletableFuture<AdmissionControl.Permit> queued =
+                CompletableFuture.supplyAsync(() -> admissionControl.tryAdmit(new RequestCost(50, 0)));
+        while (admissionControl.getWaiting() == 0) {
+            Thread.sleep(1);
+        }
+        permit.close();
+
+        assertNotNull(queued.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void oversizedRequestIsAdmittedAloneTest() {
+        AdmissionControl admissionControl = new AdmissionControl(100, 100, 0, 10);
+
+        AdmissionControl.Permit permit = admissionControl.tryAdmit(new RequestCost(1000, 1000));
+
+        assertAll(() -> {
+            assertNotNull(permit);
+            assertNull(admissionControl.tryAdmit(new RequestCost(1, 1)));
+        });
+    }
+
+    @Test
+    public void fullQueueTest() {
+        AdmissionControl admissionControl = new AdmissionControl(100, 100, 10_000, 0);
+        AdmissionControl.Permit permit = admissionControl.tryAdmit(new RequestCost(100, 0));
+
+        assertNull(admissionControl.tryAdmit(new RequestCost(1, 0)));
+    }
+
+    @Test
+    public void serviceUnavailableTest() throws IOException {
+        new File(workingDirectory).mkdirs();
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        try {
+            ImageHandler imageHandler = new ImageHandler(workingDirectory, 100, 100, "bmp");
+            int imageId = imageHandler.createImage(100, 100);
+            AdmissionControl admissionControl = new AdmissionControl(1000, 1000, 0, 0);
+            server.createContext("/chartas", new ChartasHttpHandler(imageHandler, 1000, admissionControl));
+            server.start();
+
+            AdmissionControl.Permit permit = admissionControl.tryAdmit(new RequestCost(1000, 1000));
+            Response response = new OkHttpClient().newCall(new Request.Builder()
+                    .url("http://localhost:" + port + "/chartas/" + imageId + "/?x=0&y=0&width=10&height=10")
+                    .build()).execute();
+            permit.close();
+
+            assertAll(() -> {
+                assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, response.code());
+                assertEquals("1", response.header("Retry-After"));
+            });
+        } finally {
+            server.stop(0);
+            FileUtils.deleteDirectory(new File(workingDirectory));
+        }
+    }
+
+}
@@ -7,16 +7,27 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 public class TestChartasHttpHandler {
 
-    private static final int port = 8080;
+    protected static final int port = 8080;
     private static final String requestPath = "/chartas";
     private static final String workingDirectory = "testData";
     private static final int maxImagePartWidth = 540;
@@ -29,6 +40,11 @@ public class TestChartasHttpHandler {
 
     private HttpServer server;
 
+    // Overridden to run the same tests on another server implementation.
+    protected HttpServer createServer(InetSocketAddress address) throws IOException {
+        return HttpServer.create(address, 0);
+    }
+
     private String getAnswerPath(int ansId) {
         return testAnswersDir + "/" + ansId + "." + imageExtension;
     }
@@ -42,7 +58,7 @@ public class TestChartasHttpHandler {
     @BeforeEach
     public void startUp() throws IOException {
         new File(workingDirectory).mkdirs();
-        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server = createServer(new InetSocketAddress(port));
 
         server.createContext(requestPath, new ChartasHttpHandler(workingDirectory,
                 maxImagePartWidth, maxImagePartHeight, imageExtension));
@@ -177,6 +193,147 @@ public class TestChartasHttpHandler {
         });
     }
 
+    @Test
+    public void serverTimingTest() throws IOException {
+        int imageId = createImage(10, 20).imageId;
+        String query = "/?x=0&y=0&width=3&height=2";
+        RequestBody reqBody = RequestBody.create(null, Files.readAllBytes(new File(smallImagePath).toPath()));
+
+        OkHttpClient client = new OkHttpClient();
+        Response drawResponse = client.newCall(new Request.Builder()
+                .url("http://localhost:" + port + "/chartas/" + imageId + query)
+                .post(reqBody)
+                .build()).execute();
+        Response getResponse = client.newCall(new Request.Builder()
+                .url("http://localhost:" + port + "/chartas/" + imageId + query)
+                .build()).execute();
+        getResponse.body().bytes();
+
+        assertAll(() -> {
+            assertEquals(HttpStatus.SC_OK, drawResponse.code());
+            assertTrue(drawResponse.header("Server-Timing").contains("decode;dur="));
+            assertTrue(drawResponse.header("Server-Timing").contains("write;dur="));
+            assertTrue(drawResponse.header("Server-Timing").contains("total;dur="));
+            assertEquals(HttpStatus.SC_OK, getResponse.code());
+            assertTrue(getResponse.header("Server-Timing").contains("total;dur="));
+        });
+    }
+
+    @Test
+    public void coverageTest() throws IOException {
+        int imageId = createImage(7, 20).imageId;
+        drawImage(imageId, 1, 0, 3, 2, smallImagePath);
+
+        OkHttpClient client = new OkHttpClient();
+        Response response = client.newCall(new Request.Builder()
+                .url("http://localhost:" + port + "/chartas/" + imageId + "/coverage")
+                .build()).execute();
+        Response notFoundResponse = client.newCall(new Request.Builder()
+                .url("http://localhost:" + port + "/chartas/" + (imageId + 1) + "/coverage")
+                .build()).execute();
+
+        assertAll(() -> {
+            assertEquals(HttpStatus.SC_OK, response.code());
+            assertEquals("parts 2\ncovered_parts 1\npixels 140\ncovered_pixels 70\ncovered_percent 50\n",
+                    response.body().string());
+            assertEquals(HttpStatus.SC_NOT_FOUND, notFoundResponse.code());
+        });
+    }
+
+    @Test
+    public void levelSubImageTest() throws IOException {
+        int imageId = createImage(7, 20).imageId;
+        drawImage(imageId, 1, 9, 3, 2, smallImagePath);
+
+        OkHttpClient client = new OkHttpClient();
+        Response response = client.newCall(new Request.Builder()
+                .url("http://localhost:" + port + "/chartas/" + imageId + "/?x=0&y=0&width=4&height=10&level=1")
+                .build()).execute();
+        Response missingLevelResponse = client.newCall(new Request.Builder()
+                .url("http://localhost:" + port + "/chartas/" + imageId + "/?x=0&y=0&width=4&height=10&level=2")
+                .build()).execute();
+
+        assertAll(() -> {
+            assertEquals(HttpStatus.SC_OK, response.code());
+            assertEquals(54 + 12 * 10, response.body().bytes().length);
+            assertEquals(HttpStatus.SC_BAD_REQUEST, missingLevelResponse.code());
+        });
+    }
+
+    @Test
+    public void batchSubImagesTest() throws IOException {
+        int imageId = createImage(7, 20).imageId;
+        drawImage(imageId, 1, 9, 3, 2, smallImagePath);
+        byte[] subImage1 = getSubImage(imageId, 0, 8, 5, 4).subImage;
+        byte[] subImage2 = getSubImage(imageId, -2, -2, 5, 4).subImage;
+
+        OkHttpClient client = new OkHttpClient();
+        Response response = client.newCall(new Request.Builder()
+                .url("http://localhost:" + port + "/chartas/" + imageId + "/batch?region=0,8,5,4&region=-2,-2,5,4")
+                .build()).execute();
+        Response incorrectRegionResponse = client.newCall(new Request.Builder()
+                .url("http://localhost:" + port + "/chartas/" + imageId + "/batch?region=0,8,5,4&region=7,0,5,4")
+                .build()).execute();
+        DataInputStream body = new DataInputStream(new ByteArrayInputStream(response.body().bytes()));
+
+        assertAll(() -> {
+            assertEquals(HttpStatus.SC_OK, response.code());
+            assertEquals(2, body.readInt());
+            assertEquals(subImage1.length, body.readLong());
+            assertEquals(subImage2.length, body.readLong());
+            assertArrayEquals(subImage1, body.readNBytes(subImage1.length));
+            assertArrayEquals(subImage2, body.readNBytes(subImage2.length));
+            assertEquals(-1, body.read());
+            assertEquals(HttpStatus.SC_BAD_REQUEST, incorrectRegionResponse.code());
+        });
+    }
+
+    private static byte[] getBatchDrawBody(int[][] positions, byte[] image) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(body);
+        output.writeInt(positions.length);
+        for (int[] position : positions) {
+            output.writeInt(position[0]);
+            output.writeInt(position[1]);
+            output.writeLong(image.length);
+            output.write(image);
+        }
+        return body.toByteArray();
+    }
+
+    private static int batchDrawImage(int imageId, byte[] body) throws IOException {
+        OkHttpClient client = new OkHttpClient();
+        Request request = new Request.Builder()
+                .url("http://localhost:" + port + "/chartas/" + imageId + "/batch")
+                .post(RequestBody.create(null, body))
+                .build();
+        return client.newCall(request).execute().code();
+    }
+
+    @Test
+    public void batchDrawImagesTest() throws IOException {
+        int sequentialImageId = createImage(7, 20).imageId;
+        int batchImageId = createImage(7, 20).imageId;
+        drawImage(sequentialImageId, 1, 9, 3, 2, smallImagePath);
+        drawImage(sequentialImageId, 2, 10, 3, 2, smallImagePath);
+        byte[] smallImage = Files.readAllBytes(new File(smallImagePath).toPath());
+        byte[] body = getBatchDrawBody(new int[][]{{1, 9}, {2, 10}}, smallImage);
+
+        int responseCode = batchDrawImage(batchImageId, body);
+        int incorrectRegionResponseCode = batchDrawImage(batchImageId,
+                getBatchDrawBody(new int[][]{{0, 0}, {7, 0}}, smallImage));
+        int truncatedResponseCode = batchDrawImage(batchImageId, Arrays.copyOf(body, body.length - 1));
+
+        assertAll(() -> {
+            assertEquals(HttpStatus.SC_OK, responseCode);
+            assertArrayEquals(getSubImage(sequentialImageId, 0, 0, 7, 20).subImage,
+                    getSubImage(batchImageId, 0, 0, 7, 20).subImage);
+            assertEquals(HttpStatus.SC_BAD_REQUEST, incorrectRegionResponseCode);
+            assertEquals(HttpStatus.SC_BAD_REQUEST, truncatedResponseCode);
+            assertEquals(HttpStatus.SC_NOT_FOUND, batchDrawImage(batchImageId + 1, body));
+        });
+    }
+
     @Test
     public void incorrectIdSubImageTest() throws IOException {
         SubImageResponse response = getSubImage(10, 0, 0, 10, 20);
@@ -236,6 +393,31 @@ public class TestChartasHttpHandler {
         assertEquals(HttpStatus.SC_NOT_FOUND, responseCode);
     }
 
+    @Test
+    public void largeBodyIncorrectIdDrawImageTest() throws IOException {
+        createImage(7, 20);
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(("POST /chartas/10/?x=0&y=0&width=3&height=2 HTTP/1.1\r\nHost: localhost\r\n" +
+                    "Content-Length: " + 10 * 1024 * 1024 + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            // Only part of the body is sent, the response comes without waiting for the rest.
+            outputStream.write(new byte[128 * 1024]);
+            outputStream.flush();
+
+            socket.setSoTimeout(5000);
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            List<String> head = new ArrayList<>();
+            for (String line = reader.readLine(); line != null && !line.isEmpty(); line = reader.readLine()) {
+                head.add(line.toLowerCase());
+            }
+            assertAll(() -> {
+                assertEquals("http/1.1 404 not found", head.get(0));
+                assertTrue(head.contains("connection: close"));
+            });
+        }
+    }
+
     @Test
     public void incorrectRegionDrawImageTest() throws IOException {
         int imageId = createImage(7, 20).imageId;
@@ -0,0 +1,67 @@
+import ImageHandler.GroupCommit;
+import Metrics.MetricsRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestGroupCommit {
+
+    @Test
+    public void batchTest() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        GroupCommit groupCommit = new GroupCommit(500, metrics);
+        AtomicInteger sharedForces = new AtomicInteger();
+        AtomicInteger otherForces = new AtomicInteger();
+
+        CompletableFuture<?>[] commits = new CompletableFuture<?>[4];
+        for (int i = 0; i < commits.length; i++) {
+            String otherFile = "other" + i;
+            commits[i] = CompletableFuture.runAsync(() -> {
+                try {
+                    groupCommit.commit(Map.of("shared", sharedForces::incrementAndGet,
+                            otherFile, otherForces::incrementAndGet));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        }
+        CompletableFuture.allOf(commits).get(10, TimeUnit.SECONDS);
+        groupCommit.close();
+        String report = metrics.report();
+
+        assertAll(() -> {
+            assertEquals(1, sharedForces.get());
+            assertEquals(4, otherForces.get());
+            assertTrue(report.contains("durability.group.batch_commits count=1 "));
+            assertTrue(report.contains("durability.group.forces 5\n"));
+        });
+    }
+
+    @Test
+    public void failedForceTest() {
+        GroupCommit groupCommit = new GroupCommit(0, new MetricsRegistry());
+
+        assertThrowsExactly(IOException.class, () -> groupCommit.commit(Map.of("file", () -> {
+            throw new IOException();
+        })));
+        groupCommit.close();
+    }
+
+    @Test
+    public void closedTest() throws IOException {
+        GroupCommit groupCommit = new GroupCommit(0, new MetricsRegistry());
+        AtomicInteger forces = new AtomicInteger();
+        groupCommit.close();
+
+        groupCommit.commit(Map.of("file", forces::incrementAndGet));
+
+        assertEquals(1, forces.get());
+    }
+
+}
@@ -1,17 +1,44 @@
+import ImageHandler.BmpHeader;
+import ImageHandler.Durability;
+import ImageHandler.Exceptions.IncorrectImageFormatException;
 import ImageHandler.Exceptions.IncorrectImageIdException;
 import ImageHandler.Exceptions.IncorrectImageRegionException;
+import ImageHandler.ImageCoverage;
+import ImageHandler.ImageFragment;
 import ImageHandler.ImageHandler;
+import ImageHandler.ImageRegion;
+import ImageHandler.RequestCost;
+import Metrics.MetricsRegistry;
+import Metrics.RequestTiming;
 import org.apache.commons.io.FileUtils;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
-
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.Math.min;
 import static org.junit.jupiter.api.Assertions.*;
 
 public class TestImageHandler {
@@ -22,8 +49,65 @@ public class TestImageHandler {
     private final String largeImagePath = "src/test/resources/lena_512.bmp";
     private final String testAnswersDir = "src/test/resources/TestAnswers";
 
+    // Parts are stored as <part>.<version>.<extension>, and only the current version is kept.
     private String getImagePartPath(int imageId, int imagePart) {
-        return workingDir + "/" + imageId + "/" + imagePart + "." + imageExtension;
+        File[] versions = new File(workingDir + "/" + imageId).listFiles((dir, name) ->
+                name.startsWith(imagePart + ".") && name.endsWith("." + imageExtension));
+        if (versions == null || versions.length != 1) {
+            return workingDir + "/" + imageId + "/" + imagePart + "." + imageExtension;
+        }
+        return versions[0].getPath();
+    }
+
+    private File[] getImageParts(File imageDir) {
+        return Objects.requireNonNull(imageDir.listFiles((dir, name) -> name.endsWith("." + imageExtension)));
+    }
+
+    // A channel of a pixel of a 24-bit BMP, whose rows are stored bottom-up.
+    private static int getPixelChannel(byte[] bmp, int width, int height, int x, int y, int channel) {
+        int rowStride = (width * 3 + 3) / 4 * 4;
+        return bmp[54 + (height - 1 - y) * rowStride + x * 3 + channel] & 0xff;
+    }
+
+    private static void assertDownscaled(byte[] source, int sourceWidth, int sourceHeight,
+                                         byte[] target, int targetWidth, int targetHeight) {
+        for (int y = 0; y < targetHeight; y++) {
+            for (int x = 0; x < targetWidth; x++) {
+                for (int channel = 0; channel < 3; channel++) {
+                    int sum = 0;
+                    int samples = 0;
+                    for (int sourceY = 2 * y; sourceY < min(2 * y + 2, sourceHeight); sourceY++) {
+                        for (int sourceX = 2 * x; sourceX < min(2 * x + 2, sourceWidth); sourceX++) {
+                            sum += getPixelChannel(source, sourceWidth, sourceHeight, sourceX, sourceY, channel);
+                            samples++;
+                        }
+                    }
+                    assertEquals((sum + samples / 2) / samples,
+                            getPixelChannel(target, targetWidth, targetHeight, x, y, channel));
+                }
+            }
+        }
+    }
+
+    // Checks a sub-image at x, y of an image that has nothing but the large image drawn at
+    // largeImageX, largeImageY on it, pixel by pixel.
+    private void assertLargeImageSubImage(byte[] subImage, int x, int y, int width, int height,
+                                          int largeImageX, int largeImageY) throws IOException {
+        byte[] largeImage = FileUtils.readFileToByteArray(new File(largeImagePath));
+        assertEquals(54 + (long) (width * 3 + 3) / 4 * 4 * height, subImage.length);
+        for (int subImageY = 0; subImageY < height; subImageY++) {
+            for (int subImageX = 0; subImageX < width; subImageX++) {
+                int largeImagePixelX = x + subImageX - largeImageX;
+                int largeImagePixelY = y + subImageY - largeImageY;
+                boolean drawn = largeImagePixelX >= 0 && largeImagePixelX < 512 &&
+                        largeImagePixelY >= 0 && largeImagePixelY < 512;
+                for (int channel = 0; channel < 3; channel++) {
+                    assertEquals(drawn ? getPixelChannel(largeImage, 512, 512,
+                                    largeImagePixelX, largeImagePixelY, channel) : 0,
+                            getPixelChannel(subImage, width, height, subImageX, subImageY, channel));
+                }
+            }
+        }
     }
 
     private String getAnswerPath(int ansId) {
@@ -45,7 +129,7 @@ public class TestImageHandler {
         ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
         int imageId = imageHandler.createImage(10, 10);
         File imageDir = new File(workingDir + "/" + imageId);
-        assertEquals(1, Objects.requireNonNull(imageDir.listFiles()).length);
+        assertEquals(0, getImageParts(imageDir).length);
     }
 
     @Test
@@ -53,7 +137,85 @@ public class TestImageHandler {
         ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
         int imageId = imageHandler.createImage(10, 64);
         File imageDir = new File(workingDir + "/" + imageId);
-        assertEquals(7, Objects.requireNonNull(imageDir.listFiles()).length);
+        assertEquals(0, getImageParts(imageDir).length);
+    }
+
+    @Test
+    public void gridPartsDrawImageTest() throws IOException {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        int imageId = imageHandler.createImage(25, 64);
+        File imageFile = new File(smallImagePath);
+        InputStream inputStream = new FileInputStream(imageFile);
+
+        imageHandler.drawImage(imageId, 9, 19, 3, 2, inputStream);
+
+        File imageDir = new File(workingDir + "/" + imageId);
+        assertAll(() -> {
+            assertEquals(4, getImageParts(imageDir).length);
+            assertTrue(new File(getImagePartPath(imageId, 3)).exists());
+            assertTrue(new File(getImagePartPath(imageId, 4)).exists());
+            assertTrue(new File(getImagePartPath(imageId, 6)).exists());
+            assertTrue(new File(getImagePartPath(imageId, 7)).exists());
+        });
+    }
+
+    @Test
+    public void untouchedPartsDrawImageTest() throws IOException {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        int imageId = imageHandler.createImage(30, 30);
+        int drawnImageId = imageHandler.createImage(30, 30);
+        imageHandler.drawImage(drawnImageId, -10, -10, 512, 512, new FileInputStream(largeImagePath));
+        String[] partPathsBefore = new String[9];
+        byte[][] partsBefore = new byte[9][];
+        for (int part = 0; part < 9; part++) {
+            partPathsBefore[part] = getImagePartPath(drawnImageId, part);
+            partsBefore[part] = FileUtils.readFileToByteArray(new File(partPathsBefore[part]));
+        }
+
+        imageHandler.drawImage(imageId, 9, 9, 3, 2, new FileInputStream(smallImagePath));
+        imageHandler.drawImage(drawnImageId, 9, 9, 3, 2, new FileInputStream(smallImagePath));
+
+        Set<Integer> touchedParts = Set.of(0, 1, 3, 4);
+        assertAll(() -> {
+            for (int part = 0; part < 9; part++) {
+                // Parts the fragment does not intersect are neither created nor written.
+                assertEquals(touchedParts.contains(part), new File(getImagePartPath(imageId, part)).exists());
+                if (!touchedParts.contains(part)) {
+                    assertEquals(partPathsBefore[part], getImagePartPath(drawnImageId, part));
+                    assertArrayEquals(partsBefore[part],
+                            FileUtils.readFileToByteArray(new File(getImagePartPath(drawnImageId, part))));
+                } else {
+                    assertNotEquals(partPathsBefore[part], getImagePartPath(drawnImageId, part));
+                }
+            }
+        });
+        imageHandler.close();
+    }
+
+    @Test
+    public void concurrentCreateTest() throws Exception {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Integer>> imageIds = new ArrayList<>();
+
+        for (int i = 0; i < 200; i++) {
+            imageIds.add(executor.submit(() -> imageHandler.createImage(10, 10)));
+        }
+
+        Set<Integer> uniqueImageIds = new HashSet<>();
+        for (Future<Integer> imageId : imageIds) {
+            uniqueImageIds.add(imageId.get());
+        }
+        executor.shutdown();
+
+        assertAll(() -> {
+            assertEquals(200, uniqueImageIds.size());
+            assertEquals(200, imageHandler.getNumberOfImages());
+            for (int imageId : uniqueImageIds) {
+                assertNotNull(imageHandler.getSubImage(imageId, 0, 0, 1, 1));
+            }
+        });
+        imageHandler.close();
     }
 
     @Test
@@ -71,6 +233,124 @@ public class TestImageHandler {
         assertThrowsExactly(IncorrectImageIdException.class, () -> imageHandler.deleteImage(imageId + 1));
     }
 
+    @Test
+    public void restartTest() throws IOException {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        int imageId1 = imageHandler.createImage(7, 20);
+        int imageId2 = imageHandler.createImage(10, 10);
+        imageHandler.drawImage(imageId1, 1, 9, 3, 2, new FileInputStream(smallImagePath));
+        imageHandler.deleteImage(imageId2);
+        imageHandler.close();
+
+        ImageHandler restartedImageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        byte[] res = restartedImageHandler.getSubImage(imageId1, 0, 8, 5, 4);
+        File ansFile = new File(getAnswerPath(12));
+
+        assertAll(() -> {
+            assertArrayEquals(FileUtils.readFileToByteArray(ansFile), res);
+            assertThrowsExactly(IncorrectImageIdException.class, () ->
+                    restartedImageHandler.getSubImage(imageId2, 0, 0, 5, 5));
+            assertEquals(imageId2 + 1, restartedImageHandler.createImage(5, 5));
+        });
+        restartedImageHandler.close();
+    }
+
+    @Test
+    public void lostRegistryRestartTest() throws IOException {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        imageHandler.createImage(10, 10);
+        int imageId = imageHandler.createImage(7, 20);
+        imageHandler.drawImage(imageId, 1, 9, 3, 2, new FileInputStream(smallImagePath));
+        imageHandler.close();
+        assertTrue(new File(workingDir + "/registry.log").delete());
+
+        ImageHandler restartedImageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        byte[] res = restartedImageHandler.getSubImage(imageId, 0, 8, 5, 4);
+        File ansFile = new File(getAnswerPath(12));
+
+        assertAll(() -> {
+            assertArrayEquals(FileUtils.readFileToByteArray(ansFile), res);
+            assertEquals(imageId + 1, restartedImageHandler.createImage(5, 5));
+        });
+        restartedImageHandler.close();
+    }
+
+    @Test
+    public void deletedImageFilesRestartTest() throws IOException {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        int imageId = imageHandler.createImage(41, 30);
+        int deletedImageId = imageHandler.createImage(41, 30);
+        imageHandler.drawImage(deletedImageId, 9, 19, 3, 2, new FileInputStream(smallImagePath));
+        File deletedImageDir = new File(workingDir + "/" + deletedImageId);
+        File savedImageDir = new File(workingDir + "/saved");
+        FileUtils.copyDirectory(deletedImageDir, savedImageDir);
+        imageHandler.deleteImage(deletedImageId);
+        imageHandler.close();
+
+        // As if the handler crashed before the files of the deleted image were deleted.
+        FileUtils.moveDirectory(savedImageDir, deletedImageDir);
+        savedImageDir.mkdirs();
+        ImageHandler restartedImageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        assertAll(() -> {
+            assertFalse(deletedImageDir.exists());
+            assertTrue(new File(workingDir + "/" + imageId).exists());
+            assertTrue(savedImageDir.exists());
+            assertThrowsExactly(IncorrectImageIdException.class, () ->
+                    restartedImageHandler.getSubImage(deletedImageId, 0, 0, 41, 30));
+        });
+        restartedImageHandler.close();
+    }
+
+    @Test
+    public void unpublishedPartVersionRestartTest() throws IOException {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        int imageId = imageHandler.createImage(41, 30);
+        imageHandler.drawImage(imageId, 9, 19, 3, 2, new FileInputStream(smallImagePath));
+        byte[] subImage = imageHandler.getSubImage(imageId, 0, 0, 41, 30);
+        imageHandler.close();
+
+        // A newer version of a part whose draw was cut short before it was published, as big as a whole part.
+        byte[] part = FileUtils.readFileToByteArray(new File(getImagePartPath(imageId, 10)));
+        Arrays.fill(part, 54, part.length, (byte) 7);
+        File unpublishedPart = new File(workingDir + "/" + imageId + "/10." + Long.MAX_VALUE / 2 + "." +
+                imageExtension + ".new");
+        FileUtils.writeByteArrayToFile(unpublishedPart, part);
+
+        ImageHandler restartedImageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        assertAll(() -> {
+            assertArrayEquals(subImage, restartedImageHandler.getSubImage(imageId, 0, 0, 41, 30));
+            assertFalse(unpublishedPart.exists());
+        });
+        restartedImageHandler.close();
+    }
+
+    @Test
+    public void lazyLoadRestartTest() throws IOException {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        int imageId = imageHandler.createImage(7, 20);
+        imageHandler.drawImage(imageId, 1, 9, 3, 2, new FileInputStream(smallImagePath));
+        imageHandler.close();
+        File partFile = new File(getImagePartPath(imageId, 0));
+        long version = Long.parseLong(partFile.getName().split("\\.")[1]);
+        File staleFile = new File(workingDir + "/" + imageId + "/0.0." + imageExtension);
+        FileUtils.copyFile(partFile, staleFile);
+
+        ImageHandler restartedImageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        boolean scannedOnStart = !staleFile.exists();
+        byte[] res = restartedImageHandler.getSubImage(imageId, 0, 8, 5, 4);
+        boolean scannedOnUse = !staleFile.exists();
+        restartedImageHandler.drawImage(imageId, 0, 0, 3, 2, new FileInputStream(smallImagePath));
+        File redrawnPartFile = new File(getImagePartPath(imageId, 0));
+
+        assertAll(() -> {
+            assertFalse(scannedOnStart);
+            assertTrue(scannedOnUse);
+            assertArrayEquals(FileUtils.readFileToByteArray(new File(getAnswerPath(12))), res);
+            assertTrue(Long.parseLong(redrawnPartFile.getName().split("\\.")[1]) > version);
+        });
+        restartedImageHandler.close();
+    }
+
     @Test
     public void inSinglePartDrawImageTest() throws IOException {
         ImageHandler imageHandler = new ImageHandler(workingDir, 100, 100, imageExtension);
@@ -156,13 +436,12 @@ public class TestImageHandler {
         imageHandler.drawImage(imageId, -1, -1, 3, 2, inputStream);
 
         File ansFile1 = new File(getAnswerPath(7));
-        File ansFile2 = new File(getAnswerPath(8));
         File resFile1 = new File(getImagePartPath(imageId, 0));
         File resFile2 = new File(getImagePartPath(imageId, 1));
 
         assertAll(() -> {
             assertTrue(FileUtils.contentEquals(ansFile1, resFile1));
-            assertTrue(FileUtils.contentEquals(ansFile2, resFile2));
+            assertFalse(resFile2.exists());
         });
     }
 
@@ -175,13 +454,12 @@ public class TestImageHandler {
 
         imageHandler.drawImage(imageId, 5, 19, 3, 2, inputStream);
 
-        File ansFile1 = new File(getAnswerPath(9));
         File ansFile2 = new File(getAnswerPath(10));
         File resFile1 = new File(getImagePartPath(imageId, 0));
         File resFile2 = new File(getImagePartPath(imageId, 1));
 
         assertAll(() -> {
-            assertTrue(FileUtils.contentEquals(ansFile1, resFile1));
+            assertFalse(resFile1.exists());
             assertTrue(FileUtils.contentEquals(ansFile2, resFile2));
         });
     }
@@ -208,6 +486,95 @@ public class TestImageHandler {
                 imageHandler.drawImage(imageId, 100, 100, 3, 2, inputStream));
     }
 
+    @Test
+    public void mismatchedSizeDrawImageTest() throws IOException {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        int imageId = imageHandler.createImage(7, 20);
+        File imageFile = new File(smallImagePath);
+        InputStream inputStream = new FileInputStream(imageFile);
+
+        assertThrowsExactly(IncorrectImageRegionException.class, () ->
+                imageHandler.drawImage(imageId, 1, 1, 2, 3, inputStream));
+    }
+
+    @Test
+    public void incorrectFormatDrawImageTest() throws IOException {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        int imageId = imageHandler.createImage(7, 20);
+        InputStream inputStream = new ByteArrayInputStream("not a bmp image".getBytes(StandardCharsets.UTF_8));
+
+        assertThrowsExactly(IncorrectImageFormatException.class, () ->
+                imageHandler.drawImage(imageId, 1, 1, 3, 2, inputStream));
+    }
+
+    @Test
+    public void hugeHeaderDrawImageTest() throws IOException {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        int imageId = imageHandler.createImage(7, 20);
+        // Headers alone, claiming rows of 1.5 GB and rows too long for an array.
+        byte[] wideHeader = new BmpHeader(500_000_000, 1).toByteArray();
+        byte[] tooWideHeader = new BmpHeader(1_000_000_000, 1).toByteArray();
+
+        assertAll(() -> {
+            assertThrowsExactly(IncorrectImageFormatException.class, () -> imageHandler.drawImage(imageId,
+                    -100, 0, 500_000_000, 1, new ByteArrayInputStream(wideHeader)));
+            assertThrowsExactly(IncorrectImageFormatException.class, () -> imageHandler.drawImage(imageId,
+                    0, 0, 1_000_000_000, 1, new ByteArrayInputStream(tooWideHeader)));
+            assertThrowsExactly(IncorrectImageFormatException.class, () -> imageHandler.drawImages(imageId,
+                    List.of(new ImageFragment(0, 0, wideHeader)), RequestTiming.disabled));
+            assertThrowsExactly(IncorrectImageFormatException.class, () -> imageHandler.drawImages(imageId,
+                    List.of(new ImageFragment(0, 0, tooWideHeader)), RequestTiming.disabled));
+            assertEquals(7 * 3, imageHandler.estimateDrawImageCost(imageId, -100, 0, 500_000_000, 1)
+                    .getMemoryBytes());
+        });
+        imageHandler.close();
+    }
+
+    @Test
+    public void truncatedDrawImageReleasesLocksTest() throws IOException {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        int imageId = imageHandler.createImage(7, 20);
+        byte[] imageBytes = FileUtils.readFileToByteArray(new File(smallImagePath));
+        InputStream inputStream = new ByteArrayInputStream(imageBytes, 0, imageBytes.length - 5);
+
+        assertThrowsExactly(IncorrectImageFormatException.class, () ->
+                imageHandler.drawImage(imageId, 1, 9, 3, 2, inputStream));
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+            imageHandler.getSubImage(imageId, 0, 0, 7, 20);
+            imageHandler.deleteImage(imageId);
+        });
+    }
+
+    @Test
+    public void failedDrawOverPartsTest() throws IOException {
+        // Without a cache the parts are read from their files.
+        ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension, 0);
+        int imageId = imageHandler.createImage(41, 30);
+        imageHandler.drawImage(imageId, 9, 19, 3, 2, new FileInputStream(smallImagePath));
+        byte[] subImage = imageHandler.getSubImage(imageId, 0, 0, 41, 30);
+        byte[] level = imageHandler.getSubImage(imageId, 1, 0, 0, 21, 15);
+        File imageDir = new File(workingDir + "/" + imageId);
+        int parts = getImageParts(imageDir).length;
+
+        // The rows inside the image come first in the body, so some are written to the parts before it fails.
+        byte[] imageBytes = FileUtils.readFileToByteArray(new File(largeImagePath));
+        InputStream truncatedStream = new ByteArrayInputStream(imageBytes, 0, imageBytes.length / 2);
+        assertThrowsExactly(IncorrectImageFormatException.class, () ->
+                imageHandler.drawImage(imageId, -490, -495, 512, 512, truncatedStream));
+        byte[] failedSubImage = imageHandler.getSubImage(imageId, 0, 0, 41, 30);
+        byte[] failedLevel = imageHandler.getSubImage(imageId, 1, 0, 0, 21, 15);
+        imageHandler.close();
+
+        ImageHandler restartedImageHandler = new ImageHandler(workingDir, 10, 10, imageExtension, 0);
+        assertAll(() -> {
+            assertArrayEquals(subImage, failedSubImage);
+            assertArrayEquals(level, failedLevel);
+            assertArrayEquals(subImage, restartedImageHandler.getSubImage(imageId, 0, 0, 41, 30));
+            assertEquals(parts, getImageParts(imageDir).length);
+        });
+        restartedImageHandler.close();
+    }
+
     @Test
     public void inSinglePartGetSubImageTest() throws IOException {
         ImageHandler imageHandler = new ImageHandler(workingDir, 100, 100, imageExtension);
@@ -313,6 +680,549 @@ public class TestImageHandler {
         assertArrayEquals(FileUtils.readFileToByteArray(ansFile), res);
     }
 
+    @Test
+    public void multipleColumnsSubImageTest() throws IOException {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 100, 30, imageExtension);
+        int imageId = imageHandler.createImage(540, 540);
+        File imageFile = new File(largeImagePath);
+        InputStream inputStream = new FileInputStream(imageFile);
+
+        imageHandler.drawImage(imageId, 10, 10, 512, 512, inputStream);
+
+        byte[] res = imageHandler.getSubImage(imageId, 10, 10, 512, 512);
+        File ansFile = new File(largeImagePath);
+
+        assertArrayEquals(FileUtils.readFileToByteArray(ansFile), res);
+    }
+
+    @Test
+    public void inPartOffsetSubImageTest() throws IOException {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 100, 30, imageExtension);
+        int imageId = imageHandler.createImage(540, 540);
+        imageHandler.drawImage(imageId, 10, 10, 512, 512, new FileInputStream(largeImagePath));
+
+        // The region starts in the middle of a part row and ends in the middle of the next one,
+        // so it touches one more part row than its height spans whole.
+        byte[] res = imageHandler.getSubImage(imageId, 37, 45, 150, 30);
+        byte[] bottom = imageHandler.getSubImage(imageId, 250, 515, 200, 40);
+
+        assertAll(() -> {
+            assertLargeImageSubImage(res, 37, 45, 150, 30, 10, 10);
+            assertLargeImageSubImage(bottom, 250, 515, 200, 40, 10, 10);
+        });
+        imageHandler.close();
+    }
+
+    @Test
+    public void streamedSubImageTest() throws IOException {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 100, 100, imageExtension);
+        int imageId = imageHandler.createImage(1500, 1000);
+        imageHandler.drawImage(imageId, 600, 300, 512, 512, new FileInputStream(largeImagePath));
+
+        // Too large to be read into memory first, so the rows go straight to the stream.
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        imageHandler.writeSubImage(imageId, -20, -10, 1530, 1020, streamed);
+        ByteArrayOutputStream small = new ByteArrayOutputStream();
+        imageHandler.writeSubImage(imageId, 590, 290, 40, 30, small);
+
+        assertAll(() -> {
+            assertLargeImageSubImage(streamed.toByteArray(), -20, -10, 1530, 1020, 600, 300);
+            assertArrayEquals(imageHandler.getSubImage(imageId, 590, 290, 40, 30), small.toByteArray());
+            assertLargeImageSubImage(small.toByteArray(), 590, 290, 40, 30, 600, 300);
+        });
+        imageHandler.close();
+    }
+
+    @Test
+    public void incorrectStreamedSubImageTest() throws IOException {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 100, 100, imageExtension);
+        int imageId = imageHandler.createImage(1500, 1000);
+        imageHandler.drawImage(imageId, 600, 300, 512, 512, new FileInputStream(largeImagePath));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        // Nothing is written before the request is known to be correct, so it can still be answered with an error.
+        assertAll(() -> {
+            assertThrowsExactly(IncorrectImageIdException.class, () ->
+                    imageHandler.writeSubImage(imageId + 1, 0, 0, 1500, 1000, outputStream));
+            assertThrowsExactly(IncorrectImageRegionException.class, () ->
+                    imageHandler.writeSubImage(imageId, 1500, 0, 1500, 1000, outputStream));
+            assertThrowsExactly(IncorrectImageRegionException.class, () ->
+                    imageHandler.writeSubImage(imageId, 0, 0, 0, 1000, outputStream));
+            assertEquals(0, outputStream.size());
+        });
+        imageHandler.close();
+    }
+
+    @Test
+    public void ioExecutorSubImageTest() throws IOException {
+        ExecutorService ioExecutor = Executors.newFixedThreadPool(2);
+        ImageHandler imageHandler = new ImageHandler(workingDir, 100, 30, imageExtension, 0,
+                new MetricsRegistry(), ioExecutor);
+        int imageId = imageHandler.createImage(540, 540);
+
+        imageHandler.drawImage(imageId, 10, 10, 512, 512, new FileInputStream(largeImagePath));
+        byte[] res = imageHandler.getSubImage(imageId, 10, 10, 512, 512);
+        ioExecutor.shutdown();
+
+        assertArrayEquals(FileUtils.readFileToByteArray(new File(largeImagePath)), res);
+    }
+
+    @Test
+    public void cachedPartsSubImageTest() throws IOException {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        int imageId = imageHandler.createImage(7, 20);
+
+        imageHandler.drawImage(imageId, 5, 5, 3, 2, new FileInputStream(smallImagePath));
+        imageHandler.getSubImage(imageId, 0, 0, 7, 20);
+        imageHandler.drawImage(imageId, 1, 9, 3, 2, new FileInputStream(smallImagePath));
+
+        byte[] res = imageHandler.getSubImage(imageId, 0, 8, 5, 4);
+        File ansFile = new File(getAnswerPath(12));
+
+        assertArrayEquals(FileUtils.readFileToByteArray(ansFile), res);
+    }
+
+    @Test
+    public void metricsTest() throws IOException {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        int imageId = imageHandler.createImage(7, 20);
+
+        imageHandler.drawImage(imageId, 5, 5, 3, 2, new FileInputStream(smallImagePath));
+        imageHandler.getSubImage(imageId, 0, 0, 7, 20);
+        imageHandler.getSubImage(imageId, 0, 0, 7, 20);
+
+        MetricsRegistry metrics = imageHandler.getMetrics();
+        assertAll(() -> {
+            assertEquals(1, metrics.histogram("part.written_bytes").getCount());
+            assertEquals(2 * 3 * 2, metrics.histogram("part.written_bytes").getSum());
+            assertEquals(4, metrics.histogram("part.read_bytes").getCount());
+            assertEquals(4 * 7 * 3 * 10, metrics.histogram("part.read_bytes").getSum());
+            assertEquals(1, metrics.histogram("image.decode_ns").getCount());
+            assertEquals(2, metrics.histogram("image.encode_ns").getCount());
+            assertEquals(2, metrics.histogram("versions.snapshot_hold_ns").getCount());
+            assertEquals(1, metrics.histogram("lock.region_write.wait_ns").getCount());
+            assertTrue(metrics.report().contains("images.live 1\n"));
+            // The part drawn on is cached by the update of the level above it.
+            assertTrue(metrics.report().contains("cache.hit_rate_percent 66\n"));
+        });
+    }
+
+    @Test
+    public void requestCostTest() throws IOException {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        int imageId = imageHandler.createImage(25, 20);
+        RequestCost unrestoredSubImageCost = imageHandler.estimateSubImageCost(imageId, 5, -5, 10, 10);
+        imageHandler.drawImage(imageId, 5, 0, 3, 2, new FileInputStream(smallImagePath));
+
+        RequestCost subImageCost = imageHandler.estimateSubImageCost(imageId, 5, -5, 10, 10);
+        RequestCost drawImageCost = imageHandler.estimateDrawImageCost(imageId, 20, 15, 10, 10);
+
+        assertAll(() -> {
+            assertEquals(32 + 2 * (54 + 32 * 10) + (54 + 32 * 10), subImageCost.getMemoryBytes());
+            assertEquals(10 * 5 * 3, subImageCost.getIoBytes());
+            assertEquals(32 + (54 + 32 * 10), unrestoredSubImageCost.getMemoryBytes());
+            assertEquals(0, unrestoredSubImageCost.getIoBytes());
+            // Only the 5 columns of a row inside the image are kept.
+            assertEquals(5 * 3, drawImageCost.getMemoryBytes());
+            assertEquals(5 * 5 * 3 + (75 + 18) + (18 + 4), drawImageCost.getIoBytes());
+            assertEquals(0, imageHandler.estimateDrawImageCost(imageId, 25, 0, 10, 10).getIoBytes());
+            assertThrowsExactly(IncorrectImageIdException.class, () ->
+                    imageHandler.estimateSubImageCost(imageId + 1, 0, 0, 10, 10));
+        });
+    }
+
+    @Test
+    public void drawInvalidatesSharedSubImageTest() throws IOException {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        int imageId = imageHandler.createImage(7, 20);
+
+        byte[] before = imageHandler.getSubImage(imageId, 5, 5, 3, 2);
+        imageHandler.drawImage(imageId, 5, 5, 3, 2, new FileInputStream(smallImagePath));
+        byte[] after = imageHandler.getSubImage(imageId, 5, 5, 3, 2);
+
+        assertAll(() -> {
+            assertFalse(Arrays.equals(before, after));
+            assertTrue(imageHandler.getMetrics().report().contains("subimage.reads 2\n"));
+        });
+    }
+
+    @Test
+    public void coverageTest() throws IOException {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        int imageId = imageHandler.createImage(25, 20);
+        imageHandler.drawImage(imageId, 9, 9, 3, 2, new FileInputStream(smallImagePath));
+        imageHandler.close();
+
+        ImageHandler restartedImageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        ImageCoverage coverage = restartedImageHandler.getCoverage(imageId);
+        byte[] unrestored = restartedImageHandler.getSubImage(imageId, 20, 0, 5, 20);
+        byte[] restored = restartedImageHandler.getSubImage(imageId, 0, 8, 5, 4);
+
+        assertAll(() -> {
+            assertEquals(6, coverage.getParts());
+            assertEquals(4, coverage.getCoveredParts());
+            assertEquals(25 * 20, coverage.getPixels());
+            assertEquals(4 * 10 * 10, coverage.getCoveredPixels());
+            assertEquals(80, coverage.getCoveredPercent());
+            assertArrayEquals(new byte[(int) restartedImageHandler.getSubImageSize(5, 20) - 54],
+                    Arrays.copyOfRange(unrestored, 54, unrestored.length));
+            assertEquals(restartedImageHandler.getSubImageSize(5, 4), restored.length);
+            assertTrue(restartedImageHandler.getMetrics().report().contains("subimage.unrestored_reads 1\n"));
+            assertThrowsExactly(IncorrectImageIdException.class, () ->
+                    restartedImageHandler.getCoverage(imageId + 1));
+        });
+        restartedImageHandler.close();
+    }
+
+    @Test
+    public void levelsSubImageTest() throws IOException {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        int imageId = imageHandler.createImage(41, 30);
+        imageHandler.drawImage(imageId, -490, -495, 512, 512, new FileInputStream(largeImagePath));
+        imageHandler.drawImage(imageId, 30, 20, 3, 2, new FileInputStream(smallImagePath));
+        imageHandler.close();
+
+        ImageHandler restartedImageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        byte[] level0 = restartedImageHandler.getSubImage(imageId, 0, 0, 0, 41, 30);
+        byte[] level1 = restartedImageHandler.getSubImage(imageId, 1, 0, 0, 21, 15);
+        byte[] level2 = restartedImageHandler.getSubImage(imageId, 2, 0, 0, 11, 8);
+        byte[] level3 = restartedImageHandler.getSubImage(imageId, 3, 0, 0, 6, 4);
+
+        assertAll(() -> {
+            assertEquals(4, restartedImageHandler.getNumberOfLevels(imageId));
+            assertDownscaled(level0, 41, 30, level1, 21, 15);
+            assertDownscaled(level1, 21, 15, level2, 11, 8);
+            assertDownscaled(level2, 11, 8, level3, 6, 4);
+            assertThrowsExactly(IncorrectImageRegionException.class, () ->
+                    restartedImageHandler.getSubImage(imageId, 4, 0, 0, 1, 1));
+            assertThrowsExactly(IncorrectImageRegionException.class, () ->
+                    restartedImageHandler.getSubImage(imageId, 1, 21, 0, 1, 1));
+        });
+        restartedImageHandler.close();
+    }
+
+    @Test
+    public void batchSubImagesTest() throws IOException {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        int imageId = imageHandler.createImage(41, 30);
+        imageHandler.drawImage(imageId, -490, -495, 512, 512, new FileInputStream(largeImagePath));
+        imageHandler.close();
+        List<ImageRegion> regions = List.of(new ImageRegion(0, 0, 15, 15), new ImageRegion(5, 5, 20, 15),
+                new ImageRegion(-3, 8, 10, 10), new ImageRegion(30, 20, 20, 20));
+
+        ImageHandler restartedImageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        restartedImageHandler.writeSubImages(imageId, 0, regions, batch, RequestTiming.disabled);
+        String report = restartedImageHandler.getMetrics().report();
+
+        ByteArrayOutputStream separately = new ByteArrayOutputStream();
+        for (ImageRegion region : regions) {
+            separately.write(restartedImageHandler.getSubImage(imageId, region.getX(), region.getY(),
+                    region.getWidth(), region.getHeight()));
+        }
+
+        assertAll(() -> {
+            assertArrayEquals(separately.toByteArray(), batch.toByteArray());
+            // Each of the 6 drawn parts is read once, the last region is not drawn on.
+            assertTrue(report.contains("cache.misses 6\n"));
+            assertTrue(report.contains("cache.hits 0\n"));
+            assertTrue(report.contains("versions.snapshot_hold_ns count=1 "));
+            assertThrowsExactly(IncorrectImageRegionException.class, () -> restartedImageHandler.writeSubImages(
+                    imageId, 0, List.of(new ImageRegion(0, 0, 5, 5), new ImageRegion(41, 0, 5, 5)),
+                    OutputStream.nullOutputStream(), RequestTiming.disabled));
+        });
+        restartedImageHandler.close();
+    }
+
+    @Test
+    public void batchDrawImagesTest() throws IOException {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        int sequentialImageId = imageHandler.createImage(41, 30);
+        int batchImageId = imageHandler.createImage(41, 30);
+        imageHandler.drawImage(sequentialImageId, -490, -495, 512, 512, new FileInputStream(largeImagePath));
+        imageHandler.drawImage(sequentialImageId, 9, 19, 3, 2, new FileInputStream(smallImagePath));
+        imageHandler.drawImage(sequentialImageId, 10, 20, 3, 2, new FileInputStream(smallImagePath));
+        imageHandler.drawImage(sequentialImageId, 20, 5, 512, 512, new FileInputStream(largeImagePath));
+        imageHandler.close();
+
+        byte[] largeImage = FileUtils.readFileToByteArray(new File(largeImagePath));
+        byte[] smallImage = FileUtils.readFileToByteArray(new File(smallImagePath));
+        ImageHandler restartedImageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        restartedImageHandler.drawImages(batchImageId, List.of(new ImageFragment(-490, -495, largeImage),
+                new ImageFragment(9, 19, smallImage), new ImageFragment(10, 20, smallImage),
+                new ImageFragment(20, 5, largeImage)), RequestTiming.disabled);
+        String report = restartedImageHandler.getMetrics().report();
+
+        assertAll(() -> {
+            for (int level = 0; level < restartedImageHandler.getNumberOfLevels(batchImageId); level++) {
+                int width = 41 >> level;
+                assertArrayEquals(restartedImageHandler.getSubImage(sequentialImageId, level, 0, 0, width, 30),
+                        restartedImageHandler.getSubImage(batchImageId, level, 0, 0, width, 30));
+            }
+            // Every drawn part is written once, under a single lock.
+            assertTrue(report.contains("part.written_bytes count=15 "));
+            assertTrue(report.contains("lock.region_write.hold_ns count=1 "));
+            assertThrowsExactly(IncorrectImageRegionException.class, () -> restartedImageHandler.drawImages(
+                    batchImageId, List.of(new ImageFragment(0, 0, smallImage), new ImageFragment(41, 0, smallImage)),
+                    RequestTiming.disabled));
+            assertArrayEquals(restartedImageHandler.getSubImage(sequentialImageId, 0, 0, 41, 30),
+                    restartedImageHandler.getSubImage(batchImageId, 0, 0, 41, 30));
+        });
+        restartedImageHandler.close();
+    }
+
+    private ImageHandler createWriteBehindImageHandler(long maxDirtyBytes) throws IOException {
+        return new ImageHandler(workingDir, 10, 10, imageExtension, 1024 * 1024, new MetricsRegistry(),
+                Runnable::run, maxDirtyBytes, Duration.ofHours(1).toMillis());
+    }
+
+    @Test
+    public void writeBehindDrawImageTest() throws IOException {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        int expectedImageId = imageHandler.createImage(41, 30);
+        imageHandler.drawImage(expectedImageId, -490, -495, 512, 512, new FileInputStream(largeImagePath));
+        imageHandler.drawImage(expectedImageId, 9, 19, 3, 2, new FileInputStream(smallImagePath));
+        imageHandler.close();
+
+        ImageHandler writeBehindImageHandler = createWriteBehindImageHandler(1024 * 1024);
+        int imageId = writeBehindImageHandler.createImage(41, 30);
+        writeBehindImageHandler.drawImage(imageId, -490, -495, 512, 512, new FileInputStream(largeImagePath));
+        writeBehindImageHandler.drawImage(imageId, 9, 19, 3, 2, new FileInputStream(smallImagePath));
+        File imageDir = new File(workingDir + "/" + imageId);
+        int pendingParts = getImageParts(imageDir).length;
+        byte[] pendingSubImage = writeBehindImageHandler.getSubImage(imageId, 0, 0, 41, 30);
+        byte[] pendingLevel = writeBehindImageHandler.getSubImage(imageId, 1, 0, 0, 21, 15);
+        String report = writeBehindImageHandler.getMetrics().report();
+        writeBehindImageHandler.close();
+
+        ImageHandler restartedImageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        assertAll(() -> {
+            // Reads see the draws before they are flushed.
+            assertEquals(0, pendingParts);
+            assertArrayEquals(restartedImageHandler.getSubImage(expectedImageId, 0, 0, 41, 30), pendingSubImage);
+            assertArrayEquals(restartedImageHandler.getSubImage(expectedImageId, 1, 0, 0, 21, 15), pendingLevel);
+            // The second draw and the updates of its levels are on parts that are dirty already.
+            assertTrue(report.contains("writebehind.coalesced_writes 5\n"));
+            // Closing flushes the parts.
+            assertEquals(8, getImageParts(imageDir).length);
+            assertArrayEquals(pendingSubImage, restartedImageHandler.getSubImage(imageId, 0, 0, 41, 30));
+            assertArrayEquals(pendingLevel, restartedImageHandler.getSubImage(imageId, 1, 0, 0, 21, 15));
+        });
+        restartedImageHandler.close();
+    }
+
+    @Test
+    public void writeBehindRecoveryTest() throws IOException {
+        ImageHandler imageHandler = createWriteBehindImageHandler(1024 * 1024);
+        int imageId = imageHandler.createImage(41, 30);
+        int deletedImageId = imageHandler.createImage(41, 30);
+        imageHandler.drawImage(imageId, -490, -495, 512, 512, new FileInputStream(largeImagePath));
+        imageHandler.drawImage(deletedImageId, -490, -495, 512, 512, new FileInputStream(largeImagePath));
+        imageHandler.deleteImage(deletedImageId);
+        byte[] subImage = imageHandler.getSubImage(imageId, 0, 0, 41, 30);
+        byte[] level = imageHandler.getSubImage(imageId, 2, 0, 0, 11, 8);
+
+        // The first handler is not closed, as if it crashed before flushing the draws.
+        ImageHandler restartedImageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        assertAll(() -> {
+            assertArrayEquals(subImage, restartedImageHandler.getSubImage(imageId, 0, 0, 41, 30));
+            assertArrayEquals(level, restartedImageHandler.getSubImage(imageId, 2, 0, 0, 11, 8));
+            assertEquals(6, getImageParts(new File(workingDir + "/" + imageId)).length);
+            assertFalse(new File(workingDir + "/" + deletedImageId).exists());
+            assertEquals(0, Objects.requireNonNull(new File(workingDir + "/wal").list()).length);
+        });
+        restartedImageHandler.close();
+        // Otherwise the versions it retired are deleted from the working directory of a later test.
+        imageHandler.close();
+    }
+
+    @Test
+    public void writeBehindFailedDrawRecoveryTest() throws IOException {
+        ImageHandler imageHandler = createWriteBehindImageHandler(1024 * 1024);
+        int imageId = imageHandler.createImage(41, 30);
+        // The rows inside the image come first in the body, so they are logged before the draw fails.
+        byte[] imageBytes = FileUtils.readFileToByteArray(new File(largeImagePath));
+        InputStream truncatedStream = new ByteArrayInputStream(imageBytes, 0, imageBytes.length / 2);
+        assertThrowsExactly(IncorrectImageFormatException.class, () ->
+                imageHandler.drawImage(imageId, -490, -495, 512, 512, truncatedStream));
+        imageHandler.drawImage(imageId, 9, 19, 3, 2, new FileInputStream(smallImagePath));
+        byte[] subImage = imageHandler.getSubImage(imageId, 0, 0, 41, 30);
+        byte[] level = imageHandler.getSubImage(imageId, 1, 0, 0, 21, 15);
+
+        // The first handler is not closed, as if it crashed before flushing the draws.
+        ImageHandler restartedImageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        assertAll(() -> {
+            assertArrayEquals(subImage, restartedImageHandler.getSubImage(imageId, 0, 0, 41, 30));
+            assertArrayEquals(level, restartedImageHandler.getSubImage(imageId, 1, 0, 0, 21, 15));
+            // Only the parts of the second draw.
+            assertEquals(4, getImageParts(new File(workingDir + "/" + imageId)).length);
+        });
+        restartedImageHandler.close();
+        imageHandler.close();
+    }
+
+    @Test
+    public void writeBehindDirtyLimitTest() throws IOException {
+        // Any dirty part is over the limit, so each draw waits for the parts of the previous one to be flushed.
+        ImageHandler imageHandler = createWriteBehindImageHandler(1);
+        int imageId = imageHandler.createImage(41, 30);
+        imageHandler.drawImage(imageId, -490, -495, 512, 512, new FileInputStream(largeImagePath));
+        imageHandler.drawImage(imageId, 9, 19, 3, 2, new FileInputStream(smallImagePath));
+        String report = imageHandler.getMetrics().report();
+
+        assertAll(() -> {
+            assertTrue(report.contains("writebehind.flush_errors 0\n"));
+            assertTrue(report.contains("writebehind.capacity_wait_ns count=2 "));
+            // A part flushed again may still have the file of its previous version too.
+            for (int part : new int[]{0, 1, 2, 5, 6, 7}) {
+                assertTrue(Objects.requireNonNull(new File(workingDir + "/" + imageId).list((dir, name) ->
+                        name.startsWith(part + "."))).length > 0);
+            }
+        });
+        imageHandler.close();
+    }
+
+    @Test
+    public void durabilityTest() throws IOException {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        int expectedImageId = imageHandler.createImage(41, 30);
+        imageHandler.drawImage(expectedImageId, -490, -495, 512, 512, new FileInputStream(largeImagePath));
+        imageHandler.close();
+
+        for (Durability durability : Durability.values()) {
+            for (long maxDirtyBytes : new long[]{0, 1024 * 1024}) {
+                ImageHandler durableImageHandler = new ImageHandler(workingDir, 10, 10, imageExtension,
+                        1024 * 1024, new MetricsRegistry(), Runnable::run, maxDirtyBytes,
+                        Duration.ofHours(1).toMillis(), durability, 1);
+                int imageId = durableImageHandler.createImage(41, 30);
+                durableImageHandler.drawImage(imageId, -490, -495, 512, 512, new FileInputStream(largeImagePath));
+                String report = durableImageHandler.getMetrics().report();
+
+                assertAll(() -> {
+                    assertArrayEquals(durableImageHandler.getSubImage(expectedImageId, 0, 0, 41, 30),
+                            durableImageHandler.getSubImage(imageId, 0, 0, 41, 30));
+                    assertTrue(report.contains("durability." + durability.getName() + ".commit_ns count=1 "));
+                    if (durability == Durability.SYNC) {
+                        // The written parts of all levels and the directories of the 4 levels,
+                        // or the write-ahead log.
+                        assertTrue(report.contains(maxDirtyBytes == 0 ?
+                                "durability.sync.forces 14\n" : "durability.sync.forces 1\n"));
+                    } else if (durability == Durability.GROUP) {
+                        // The parts are forced when they are published, before the directories are.
+                        assertTrue(report.contains("durability.group.batch_commits count=1 "));
+                        assertTrue(report.contains(maxDirtyBytes == 0 ?
+                                "durability.group.forces 4\n" : "durability.group.forces 1\n"));
+                    }
+                });
+                durableImageHandler.close();
+            }
+        }
+    }
+
+    @Test
+    public void subImageDuringDrawImageTest() throws Exception {
+        ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
+        int expectedImageId = imageHandler.createImage(41, 30);
+        int imageId = imageHandler.createImage(41, 30);
+        imageHandler.drawImage(expectedImageId, 9, 19, 3, 2, new FileInputStream(smallImagePath));
+        imageHandler.drawImage(expectedImageId, -490, -495, 512, 512, new FileInputStream(largeImagePath));
+        imageHandler.drawImage(imageId, 9, 19, 3, 2, new FileInputStream(smallImagePath));
+        byte[] subImageBefore = imageHandler.getSubImage(imageId, 0, 0, 41, 30);
+        File imageDir = new File(workingDir + "/" + imageId);
+        int filesBefore = Objects.requireNonNull(imageDir.list()).length;
+
+        // The draw gets the header and the first row of its image, and waits for the rest under the lock.
+        byte[] largeImage = FileUtils.readFileToByteArray(new File(largeImagePath));
+        int firstRowEnd = 54 + 512 * 3;
+        PipedOutputStream drawnImage = new PipedOutputStream();
+        PipedInputStream inputStream = new PipedInputStream(drawnImage, largeImage.length);
+        drawnImage.write(largeImage, 0, firstRowEnd);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> draw = executor.submit(() -> {
+            imageHandler.drawImage(imageId, -490, -495, 512, 512, inputStream);
+            return null;
+        });
+
+        byte[] subImageDuring = assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+            // Until the draw created the files of the new versions, which are not published yet.
+            while (Objects.requireNonNull(imageDir.list()).length == filesBefore) {
+                Thread.sleep(1);
+            }
+            return imageHandler.getSubImage(imageId, 0, 0, 41, 30);
+        });
+        drawnImage.write(largeImage, firstRowEnd, largeImage.length - firstRowEnd);
+        drawnImage.close();
+        draw.get(5, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        assertAll(() -> {
+            // The read is not blocked by the draw and sees none of it.
+            assertArrayEquals(subImageBefore, subImageDuring);
+            assertArrayEquals(imageHandler.getSubImage(expectedImageId, 0, 0, 41, 30),
+                    imageHandler.getSubImage(imageId, 0, 0, 41, 30));
+            // Only the current versions of the drawn parts are left.
+            assertEquals(8, getImageParts(imageDir).length);
+        });
+        imageHandler.close();
+    }
+
+    @Test
+    public void pinnedPartVersionReclaimTest() throws Exception {
+        // Large enough for the read not to be shared, so it streams from the versions it pinned.
+        ImageHandler imageHandler = new ImageHandler(workingDir, 100, 100, imageExtension);
+        int imageId = imageHandler.createImage(1500, 1000);
+        imageHandler.drawImage(imageId, 0, 0, 3, 2, new FileInputStream(smallImagePath));
+        ByteArrayOutputStream subImageBefore = new ByteArrayOutputStream();
+        imageHandler.writeSubImage(imageId, 0, 0, 1500, 1000, subImageBefore);
+
+        CountDownLatch pinned = new CountDownLatch(1);
+        CountDownLatch released = new CountDownLatch(1);
+        ByteArrayOutputStream subImage = new ByteArrayOutputStream();
+        OutputStream blockedStream = new OutputStream() {
+            @Override
+            public void write(int b) {
+                subImage.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                pinned.countDown();
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                subImage.write(b, off, len);
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> read = executor.submit(() -> {
+            imageHandler.writeSubImage(imageId, 0, 0, 1500, 1000, blockedStream);
+            return null;
+        });
+        assertTrue(pinned.await(5, TimeUnit.SECONDS));
+
+        imageHandler.drawImage(imageId, -490, -495, 512, 512, new FileInputStream(largeImagePath));
+        File imageDir = new File(workingDir + "/" + imageId);
+        int pinnedParts = getImageParts(imageDir).length;
+        released.countDown();
+        read.get(5, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        assertAll(() -> {
+            // The replaced version of the part is kept while the read that pinned it is not done.
+            assertEquals(2, pinnedParts);
+            assertArrayEquals(subImageBefore.toByteArray(), subImage.toByteArray());
+            assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+                while (getImageParts(imageDir).length != 1) {
+                    Thread.sleep(10);
+                }
+            });
+            assertTrue(imageHandler.getMetrics().report().contains("versions.retired 0\n"));
+        });
+        imageHandler.close();
+    }
+
     @Test
     public void incorrectIdSubImageTest() throws IOException {
         ImageHandler imageHandler = new ImageHandler(workingDir, 10, 10, imageExtension);
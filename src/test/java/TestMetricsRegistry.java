@@ -0,0 +1,52 @@
+import Metrics.Histogram;
+import Metrics.MetricsRegistry;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestMetricsRegistry {
+
+    @Test
+    public void histogramPercentileTest() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        assertAll(() -> {
+            assertEquals(1000, histogram.getCount());
+            assertEquals(500500, histogram.getSum());
+            assertEquals(1000, histogram.getMax());
+            assertEquals(500, histogram.getPercentile(50), 500 / 8.0);
+            assertEquals(990, histogram.getPercentile(99), 990 / 8.0);
+            assertEquals(1000, histogram.getPercentile(100));
+        });
+    }
+
+    @Test
+    public void smallValuesAreExactTest() {
+        Histogram histogram = new Histogram();
+        histogram.record(0);
+        histogram.record(3);
+        histogram.record(7);
+
+        assertAll(() -> {
+            assertEquals(0, histogram.getPercentile(0));
+            assertEquals(3, histogram.getPercentile(50));
+            assertEquals(7, histogram.getPercentile(100));
+        });
+    }
+
+    @Test
+    public void reportTest() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter("b.counter").add(3);
+        metrics.gauge("a.gauge", () -> 42);
+        metrics.histogram("c.histogram").record(5);
+
+        assertEquals("a.gauge 42\n" +
+                "b.counter 3\n" +
+                "c.histogram count=1 sum=5 p50=5 p90=5 p99=5 p999=5 max=5\n", metrics.report());
+    }
+
+}
@@ -0,0 +1,146 @@
+import NioHttpServer.NioHttpServer;
+import com.sun.net.httpserver.BasicAuthenticator;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Runs the tests of the JDK server front end on NioHttpServer, plus the connection handling it adds.
+public class TestNioChartasHttpHandler extends TestChartasHttpHandler {
+
+    private final String smallImagePath = "src/test/resources/small-one.bmp";
+
+    @Override
+    protected HttpServer createServer(InetSocketAddress address) throws IOException {
+        HttpServer server = NioHttpServer.create(address, 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        return server;
+    }
+
+    private static String readResponse(InputStream inputStream) throws IOException {
+        StringBuilder head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            int c = inputStream.read();
+            if (c < 0) {
+                throw new EOFException();
+            }
+            head.append((char) c);
+        }
+
+        String contentLength = head.toString().replaceAll("(?s).*Content-length: (\\d+).*", "$1");
+        byte[] body = inputStream.readNBytes(Integer.parseInt(contentLength));
+        return head.toString().split("\r\n")[0] + "\n" + new String(body, StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void pipelinedRequestsTest() throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(("POST /chartas/?width=10&height=10 HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                    "POST /chartas/?width=10&height=10 HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                    "DELETE /chartas/0/ HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            outputStream.flush();
+
+            InputStream inputStream = socket.getInputStream();
+            assertAll(() -> {
+                assertEquals("HTTP/1.1 201 Created\n0", readResponse(inputStream));
+                assertEquals("HTTP/1.1 201 Created\n1", readResponse(inputStream));
+                assertEquals("HTTP/1.1 200 OK\n", readResponse(inputStream));
+            });
+        }
+    }
+
+    @Test
+    public void chunkedRequestBodyTest() throws IOException {
+        byte[] image = FileUtils.readFileToByteArray(new File(smallImagePath));
+
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream outputStream = socket.getOutputStream();
+            InputStream inputStream = socket.getInputStream();
+            outputStream.write("POST /chartas/?width=10&height=10 HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            assertEquals("HTTP/1.1 201 Created\n0", readResponse(inputStream));
+
+            outputStream.write(("POST /chartas/0/?x=0&y=0&width=3&height=2 HTTP/1.1\r\n" +
+                    "Transfer-Encoding: chunked\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            for (int offset = 0; offset < image.length; offset += 10) {
+                int length = Math.min(10, image.length - offset);
+                outputStream.write((Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                outputStream.write(image, offset, length);
+                outputStream.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+            }
+            outputStream.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            assertEquals("HTTP/1.1 200 OK\n", readResponse(inputStream));
+        }
+    }
+
+    @Test
+    public void manyIdleConnectionsTest() throws IOException {
+        List<Socket> idleConnections = new ArrayList<>();
+        try {
+            for (int i = 0; i < 500; i++) {
+                idleConnections.add(new Socket("localhost", port));
+            }
+
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.getOutputStream().write("POST /chartas/?width=10&height=10 HTTP/1.1\r\n\r\n"
+                        .getBytes(StandardCharsets.US_ASCII));
+                assertEquals("HTTP/1.1 201 Created\n0", readResponse(socket.getInputStream()));
+            }
+        } finally {
+            for (Socket socket : idleConnections) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    public void malformedRequestTest() throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.getOutputStream().write("NOT HTTP\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            assertEquals("HTTP/1.1 400 Bad Request\n", readResponse(socket.getInputStream()));
+        }
+    }
+
+    @Test
+    public void authenticatorTest() throws IOException {
+        NioHttpServer server = NioHttpServer.create(new InetSocketAddress(0), 0);
+        HttpContext context = server.createContext("/secure", exchange -> {
+            byte[] body = exchange.getPrincipal().getUsername().getBytes(StandardCharsets.US_ASCII);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        assertNull(context.setAuthenticator(new BasicAuthenticator("chartas") {
+            @Override
+            public boolean checkCredentials(String username, String password) {
+                return username.equals("user") && password.equals("secret");
+            }
+        }));
+        server.start();
+        try (Socket socket = new Socket("localhost", server.getAddress().getPort())) {
+            OutputStream outputStream = socket.getOutputStream();
+            InputStream inputStream = socket.getInputStream();
+            outputStream.write("GET /secure HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            assertEquals("HTTP/1.1 401 Unauthorized\n", readResponse(inputStream));
+
+            String credentials = Base64.getEncoder().encodeToString("user:secret".getBytes(StandardCharsets.US_ASCII));
+            outputStream.write(("GET /secure HTTP/1.1\r\nAuthorization: Basic " + credentials + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            assertEquals("HTTP/1.1 200 OK\nuser", readResponse(inputStream));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+import ImageHandler.PartCache;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestPartCache {
+
+    @Test
+    public void hitAndMissTest() {
+        PartCache partCache = new PartCache(100);
+        ByteBuffer part = ByteBuffer.allocateDirect(10);
+
+        partCache.put(0, 0, 1, part);
+
+        assertAll(() -> {
+            assertSame(part, partCache.get(0, 0, 1));
+            assertNull(partCache.get(0, 1, 1));
+            assertNull(partCache.get(1, 0, 1));
+            assertEquals(1, partCache.getHits());
+            assertEquals(2, partCache.getMisses());
+        });
+    }
+
+    @Test
+    public void leastRecentlyUsedEvictionTest() {
+        PartCache partCache = new PartCache(30);
+
+        partCache.put(0, 0, 1, ByteBuffer.allocateDirect(10));
+        partCache.put(0, 1, 1, ByteBuffer.allocateDirect(10));
+        partCache.put(0, 2, 1, ByteBuffer.allocateDirect(10));
+        partCache.get(0, 0, 1);
+        partCache.put(0, 3, 1, ByteBuffer.allocateDirect(10));
+
+        assertAll(() -> {
+            assertNotNull(partCache.peek(0, 0, 1));
+            assertNull(partCache.peek(0, 1, 1));
+            assertNotNull(partCache.peek(0, 2, 1));
+            assertNotNull(partCache.peek(0, 3, 1));
+            assertEquals(30, partCache.getSize());
+        });
+    }
+
+    @Test
+    public void tooLargePartTest() {
+        PartCache partCache = new PartCache(30);
+
+        partCache.put(0, 0, 1, ByteBuffer.allocateDirect(10));
+        partCache.put(0, 1, 1, ByteBuffer.allocateDirect(40));
+
+        assertAll(() -> {
+            assertNotNull(partCache.peek(0, 0, 1));
+            assertNull(partCache.peek(0, 1, 1));
+            assertEquals(10, partCache.getSize());
+        });
+    }
+
+    @Test
+    public void invalidateImageTest() {
+        PartCache partCache = new PartCache(100);
+
+        partCache.put(0, 0, 1, ByteBuffer.allocateDirect(10));
+        partCache.put(1, 0, 1, ByteBuffer.allocateDirect(10));
+        partCache.put(1, 1, 1, ByteBuffer.allocateDirect(10));
+        partCache.invalidateImage(1);
+
+        assertAll(() -> {
+            assertNotNull(partCache.peek(0, 0, 1));
+            assertNull(partCache.peek(1, 0, 1));
+            assertNull(partCache.peek(1, 1, 1));
+            assertEquals(10, partCache.getSize());
+        });
+    }
+
+    @Test
+    public void versionTest() {
+        PartCache partCache = new PartCache(100);
+        ByteBuffer part = ByteBuffer.allocateDirect(10);
+
+        partCache.put(0, 0, 1, ByteBuffer.allocateDirect(10));
+        partCache.put(0, 0, 2, part);
+        partCache.invalidate(0, 0, 1);
+
+        assertAll(() -> {
+            assertSame(part, partCache.peek(0, 0, 2));
+            assertNull(partCache.get(0, 0, 1));
+            assertEquals(10, partCache.getSize());
+        });
+    }
+
+}
@@ -0,0 +1,77 @@
+import ImageHandler.SingleFlight;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestSingleFlight {
+
+    @Test
+    public void sharedResultTest() throws Exception {
+        SingleFlight<String> singleFlight = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<Void> finish = new CompletableFuture<>();
+
+        CompletableFuture<byte[]> first = CompletableFuture.supplyAsync(() -> {
+            try {
+                return singleFlight.run("key", () -> {
+                    started.countDown();
+                    finish.join();
+                    return new byte[]{1, 2, 3};
+                });
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        started.await();
+        CompletableFuture<byte[]> second = CompletableFuture.supplyAsync(() -> {
+            try {
+                return singleFlight.run("key", () -> new byte[]{4});
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        while (singleFlight.getSharedResults() == 0) {
+            Thread.sleep(1);
+        }
+        finish.complete(null);
+
+        byte[] firstResult = first.get(10, TimeUnit.SECONDS);
+        byte[] secondResult = second.get(10, TimeUnit.SECONDS);
+        assertAll(() -> {
+            assertSame(firstResult, secondResult);
+            assertEquals(1, singleFlight.getComputations());
+        });
+    }
+
+    @Test
+    public void finishedComputationIsNotReusedTest() throws IOException {
+        SingleFlight<String> singleFlight = new SingleFlight<>();
+
+        byte[] firstResult = singleFlight.run("key", () -> new byte[]{1});
+        byte[] secondResult = singleFlight.run("key", () -> new byte[]{2});
+
+        assertAll(() -> {
+            assertArrayEquals(new byte[]{1}, firstResult);
+            assertArrayEquals(new byte[]{2}, secondResult);
+            assertEquals(2, singleFlight.getComputations());
+        });
+    }
+
+    @Test
+    public void exceptionTest() {
+        SingleFlight<String> singleFlight = new SingleFlight<>();
+
+        assertThrowsExactly(IOException.class, () -> singleFlight.run("key", () -> {
+            throw new IOException();
+        }));
+        assertThrowsExactly(IllegalStateException.class, () -> singleFlight.run("key", () -> {
+            throw new IllegalStateException();
+        }));
+    }
+
+}